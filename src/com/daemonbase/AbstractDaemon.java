@@ -1,23 +1,40 @@
 package com.cellulant;
 
+import com.cellulant.db.ChunkedUpdater;
 import com.cellulant.db.DATABASE;
+import com.cellulant.db.IndexAdvisor;
+import com.cellulant.db.PostgresNotificationListener;
 import com.cellulant.utils.AbstractProps;
 import com.cellulant.utils.DaemonConstants;
+import com.cellulant.utils.FailedQueryJournal;
+import com.cellulant.utils.FailedUpdate;
+import com.cellulant.utils.FailsafeWriter;
 import com.cellulant.utils.Logging;
 import com.cellulant.utils.ResultApiFailureHandler;
+import com.cellulant.utils.SettableFuture;
 import java.io.*;
+import java.math.BigDecimal;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>Stabilized parent class 26/03/12.</p> <p>This design is based on the
@@ -42,6 +59,10 @@ import java.util.Map;
  * @version Version 3.0
  */
 public abstract class AbstractDaemon {
+    /**
+     * Longest wait between re-executions of a failed query, in milliseconds.
+     */
+    private static final long MAX_RECON_BACKOFF = 60000;
 
     private final String MAIN_DAEMON_TABLE;
     /**
@@ -61,9 +82,54 @@ public abstract class AbstractDaemon {
      */
     private BufferedReader br;
     /**
-     * The job thread pool.
+     * The job thread pool, null when the tasks run on virtual threads.
      */
     protected ThreadPool threadPool;
+    /**
+     * The executor that runs the queued tasks. This is the thread pool unless
+     * virtual threads are enabled and supported.
+     */
+    protected TaskExecutor executor;
+    /**
+     * Runs keyed tasks in order per key, on top of the executor.
+     */
+    private PartitionedExecutor partitionedExecutor;
+    /**
+     * JMX view of the thread pool statistics.
+     */
+    private ThreadPoolMetrics threadPoolMetrics;
+    /**
+     * Paces the polling cycles.
+     */
+    private PollScheduler pollScheduler;
+    /**
+     * Wakes the polling loop on PostgreSQL notifications, null unless
+     * NOTIFY_CHANNEL is set.
+     */
+    private PostgresNotificationListener notificationListener;
+    /**
+     * Fetches buckets on stage threads of their own, null unless
+     * PIPELINE_DEPTH or ALLOCATOR_THREADS is set.
+     */
+    private AllocationPipeline allocationPipeline;
+    /**
+     * Sizes the buckets from the drain rate, null if BUCKET_SIZE is fixed.
+     */
+    private BucketSizer bucketSizer;
+    /**
+     * Where {@link #fetchWork(WorkHandler)} claims work from, null until
+     * first used or set.
+     */
+    private volatile WorkSource workSource;
+    /**
+     * Writes the queued status updates behind in batches, null unless
+     * UPDATE_BATCH_SIZE is set.
+     */
+    private UpdateBuffer updateBuffer;
+    /**
+     * Whether the database supports SKIP LOCKED, null until checked.
+     */
+    private volatile Boolean skipLockedSupported;
     /**
      * The daemons current state.
      */
@@ -77,9 +143,43 @@ public abstract class AbstractDaemon {
      */
     public Logging log;
     /**
-     * The current run ID.
+     * The last run ID handed out by {@link #getCurrentRun()}, kept for
+     * subclasses that read it.
+     */
+    public volatile int runID;
+    /**
+     * Hands out the run IDs, skipping those of buckets still in flight.
+     */
+    private final RunIdAllocator runIds;
+    /**
+     * This instance's share of the run IDs in MULTI_INSTANCE mode, null in
+     * SINGLE_INSTANCE mode.
+     */
+    private RunIdLeaseManager runIdLeases;
+    /**
+     * Leases claimed rows to this instance, null unless CLAIM_LEASE_TIME is
+     * set and the table has a leaseExpiry column.
      */
-    public int runID;
+    private ClaimLeaseManager claimLeases;
+    /**
+     * Runs the resets of partially processed records in chunks.
+     */
+    private ChunkedUpdater resetUpdater;
+    /**
+     * Journals the failed updates for replay, null if FAILED_QUERIES_JOURNAL
+     * is empty or the journal could not be opened.
+     */
+    private FailedQueryJournal failedQueryJournal;
+    /**
+     * Writes to the failed query journal on a thread of its own, null
+     * without a journal.
+     */
+    private FailsafeWriter failsafeWriter;
+    /**
+     * Replays the failed query journal in the background, null without a
+     * journal.
+     */
+    private ReplayEngine replayEngine;
     private ResultApiFailureHandler resultApiFailureHandler;
 
     /**
@@ -101,6 +201,8 @@ public abstract class AbstractDaemon {
 
         // Set the initial run id
         runID = props.getStartupRunID();
+        runIds = new RunIdAllocator(props.getMinRunID(),
+                Math.max(props.getMinRunID(), props.getMaxRunID()), runID);
 
         // Get the list of errors found when loading system properties
         List<String> loadErrors = props.getLoadErrors();
@@ -125,7 +227,110 @@ public abstract class AbstractDaemon {
                     + "All required properties were loaded successfully");
 
             // Create the executor service with a fixed thread pool size
-            threadPool = new ThreadPool(props.getNumOfChildren(), logging);
+            executor = createExecutor();
+            threadPool = executor instanceof ThreadPool
+                    ? (ThreadPool) executor : null;
+            partitionedExecutor = new PartitionedExecutor(executor, logging);
+            registerThreadPoolMetrics();
+
+            if (props.isNotifyEnabled()) {
+                // Notifications wake the loop, polls only catch missed ones
+                pollScheduler = new PollScheduler(props.getMinPollInterval(),
+                        Math.max(props.getMaxPollInterval(),
+                        props.getNotifyFallbackInterval()));
+                notificationListener = new PostgresNotificationListener(
+                        database, props.getNotifyChannel(), new Runnable() {
+                            @Override
+                            public void run() {
+                                wakeUp();
+                            }
+                        }, logging);
+                notificationListener.start();
+            } else if (props.isAdaptivePollingEnabled()) {
+                pollScheduler = new PollScheduler(props.getMinPollInterval(),
+                        props.getMaxPollInterval());
+            } else {
+                pollScheduler = new PollScheduler(props.getSleepTime(),
+                        props.getSleepTime());
+            }
+
+            if (props.getPipelineDepth() > 0
+                    || props.getAllocatorThreads() > 1) {
+                allocationPipeline = new AllocationPipeline(this,
+                        pollScheduler, getPrefetchLimit(),
+                        props.getAllocatorThreads(), getMaxBucketSize(),
+                        logging);
+            }
+
+            if (props.getUpdateBatchSize() > 0) {
+                updateBuffer = new UpdateBuffer(this, database,
+                        props.getUpdateBatchSize(),
+                        props.getUpdateFlushInterval(), logging);
+                updateBuffer.start();
+            }
+
+            if (props.isAdaptiveBucketSizingEnabled()) {
+                bucketSizer = new BucketSizer(props.getBucketSize(),
+                        props.getMinBucketSize(), props.getMaxBucketSize(),
+                        props.getMaxMemCapacity(), logging);
+                try {
+                    bucketSizer.register(this.getClass().getSimpleName());
+                } catch (Exception ex) {
+                    logging.error(getLogPreString() + "Failed to register the "
+                            + "bucket sizer bean: " + ex.getMessage(), ex);
+                }
+            }
+
+            resetUpdater = new ChunkedUpdater(database,
+                    props.getMainTablePrimaryKey(), props.getResetChunkSize(),
+                    props.getResetChunkPause(), logging);
+
+            if (props.getInstanceMode() == DaemonConstants.MULTI_INSTANCE) {
+                runIdLeases = new RunIdLeaseManager(database, maintable,
+                        props.getMinRunID(), props.getMaxRunID(),
+                        props.getMaxInstances(), props.getRunIdLeaseTime(),
+                        props.getUnprocessedStatus(), resetUpdater, logging);
+            }
+
+            if (props.getClaimLeaseTime() > 0) {
+                claimLeases = new ClaimLeaseManager(database, maintable,
+                        props.getMainTablePrimaryKey(),
+                        props.getClaimLeaseTime(),
+                        props.getUnprocessedStatus(), logging);
+            }
+
+            if (props.isFailedQueriesJournalEnabled()) {
+                try {
+                    // The failsafe writer forces each of its writes
+                    failedQueryJournal = new FailedQueryJournal(
+                            new File(props.getFailedQueriesJournal()),
+                            props.getJournalSegmentSize(), 0, logging);
+                    failsafeWriter = new FailsafeWriter(failedQueryJournal,
+                            props.getFailsafeQueueCapacity(),
+                            props.getJournalSyncInterval(), logging);
+                    failsafeWriter.start();
+                    replayEngine = new ReplayEngine(this, database,
+                            failedQueryJournal, props.getReplayThreads(),
+                            props.getReplayBatchSize(),
+                            props.getReplayRateLimit(),
+                            props.getMaxSendRetries(), props.getSleepTime(),
+                            logging);
+                    replayEngine.start();
+                    try {
+                        replayEngine.register(
+                                this.getClass().getSimpleName());
+                    } catch (Exception ex) {
+                        logging.error(getLogPreString() + "Failed to "
+                                + "register the replay engine bean: "
+                                + ex.getMessage(), ex);
+                    }
+                } catch (IOException ex) {
+                    logging.error(getLogPreString() + "Failed to open the "
+                            + "failed query journal, using "
+                            + DaemonConstants.FAILED_QUERIES_FILE + ": "
+                            + ex.getMessage(), ex);
+                }
+            }
 
             logging.info(getLogPreString()
                     + "Checking whether the database is up and running");
@@ -134,6 +339,12 @@ public abstract class AbstractDaemon {
                 int pingState = pingDatabaseServer();
 
                 if (pingState == DaemonConstants.PING_SUCCESS) {
+                    new IndexAdvisor(database, logging).checkAllocationIndex(
+                            maintable, props.isCreateAllocationIndex());
+                    if (claimLeases != null && !claimLeases.start(
+                            props.isCreateAllocationIndex())) {
+                        claimLeases = null;
+                    }
                     resetPartiallyProcessedRecords();
                     daemonState = DaemonConstants.DAEMON_RUNNING;
                     return;
@@ -147,24 +358,161 @@ public abstract class AbstractDaemon {
         }
     }
 
+    /**
+     * Creates the job thread pool. THREAD_POOL_MODE=WORK_STEALING gives every
+     * worker its own task queue. Otherwise a TASK_QUEUE_CAPACITY greater than
+     * zero gives the pool a bounded ring buffer so that executeTask() applies
+     * backpressure, and the original unbounded queue is used if it is not set.
+     * If MIN_NUM_OF_CHILDREN and MAX_NUM_OF_CHILDREN differ the pool resizes
+     * itself between them. A TASK_TIMEOUT greater than zero interrupts tasks
+     * that run longer, see {@link #onTaskTimeout}.
+     *
+     * @return the thread pool
+     */
+    private ThreadPool createThreadPool() {
+        TaskQueue taskQueue;
+        int capacity = props.getTaskQueueCapacity();
+        if (props.isWorkStealingEnabled()) {
+            log.info(getLogPreString() + "Using work stealing task queues"
+                    + (capacity > 0 ? " of total capacity " + capacity : ""));
+            taskQueue = new WorkStealingTaskQueue(Math.max(
+                    props.getNumOfChildren(), props.getMaxNumOfChildren()),
+                    capacity);
+        } else if (capacity > 0) {
+            log.info(getLogPreString() + "Using a bounded task queue of "
+                    + "capacity " + capacity);
+            taskQueue = new RingBufferTaskQueue(capacity);
+        } else {
+            taskQueue = new LinkedTaskQueue();
+        }
+
+        ThreadPool pool = new ThreadPool(props.getNumOfChildren(), taskQueue,
+                log);
+        if (props.isAdaptivePoolSizingEnabled()) {
+            pool.enableAdaptiveSizing(props.getMinNumOfChildren(),
+                    props.getMaxNumOfChildren(), props.getPoolResizeInterval(),
+                    props.getTargetQueueWait());
+        }
+
+        pool.setDefaultTaskTimeout(props.getTaskTimeout());
+        pool.setTaskTimeoutListener(new TaskTimeoutListener() {
+            @Override
+            public void onTaskTimeout(final Runnable task, final Thread worker,
+                    final long elapsedMillis) {
+                AbstractDaemon.this.onTaskTimeout(task, elapsedMillis);
+            }
+        });
+
+        return pool;
+    }
+
+    /**
+     * Called when a task runs past TASK_TIMEOUT, or its own deadline set with
+     * {@link ThreadPool#withTimeout}. The worker running it has already been
+     * interrupted and replaced. Override to, for example, mark the record for
+     * a retry. Runs on the pool's timer thread, so it must return quickly.
+     *
+     * @param task the task that overran
+     * @param elapsedMillis how long the task had been running
+     */
+    protected void onTaskTimeout(final Runnable task,
+            final long elapsedMillis) {
+        log.error(getLogPreString() + "Task " + task + " timed out after "
+                + elapsedMillis + " ms");
+    }
+
+    /**
+     * Publishes the thread pool statistics over JMX. Failing to register the
+     * bean is logged but does not stop the daemon.
+     */
+    private void registerThreadPoolMetrics() {
+        threadPoolMetrics = new ThreadPoolMetrics(executor);
+        try {
+            threadPoolMetrics.register(this.getClass().getSimpleName());
+        } catch (Exception ex) {
+            log.error(getLogPreString() + "Failed to register the thread "
+                    + "pool metrics bean: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Get the task counters and the queue wait and service time percentiles
+     * of the executor, the thread pool or the virtual threads.
+     *
+     * @return a snapshot of the executor statistics
+     */
+    public ThreadPoolStatistics getThreadPoolStatistics() {
+        return executor.getStatistics();
+    }
+
+    /**
+     * Picks the executor for the queued tasks. With EXECUTION_MODE set to
+     * VIRTUAL_THREADS every task gets its own virtual thread, limited by
+     * MAX_CONCURRENT_TASKS, and no thread pool is created. Runtimes without
+     * virtual threads fall back to the thread pool.
+     *
+     * @return the executor
+     */
+    private TaskExecutor createExecutor() {
+        if (props.isVirtualThreadsEnabled()) {
+            if (VirtualThreadExecutor.isSupported()) {
+                log.info(getLogPreString() + "Running tasks on virtual "
+                        + "threads, at most " + props.getMaxConcurrentTasks()
+                        + " in flight");
+                return new VirtualThreadExecutor(props.getMaxConcurrentTasks(),
+                        log);
+            }
+
+            log.info(getLogPreString() + "Virtual threads are not supported "
+                    + "by this runtime, falling back to the thread pool");
+        }
+
+        return createThreadPool();
+    }
+
     /**
      * Method <i>resetPartiallyProcessedRecords</i> is called by Father when he
      * wakes up to reset all records that were partially processed. Maybe
      * because the Application was killed or died prematurely(NOT GOOD).
+     * In MULTI_INSTANCE mode only the run IDs leased by this instance are
+     * reset, leaving other instances' buckets alone. With claim leases, the
+     * unleased claims of this instance's run IDs are given a lease, and only
+     * a first batch of expired claims is returned here, the rest during the
+     * allocation cycles.
      */
     public void resetPartiallyProcessedRecords() {
         log.info(getLogPreString() + "Checking for partially processed records...");
 
-        
-        String updateQuery = "UPDATE " + MAIN_DAEMON_TABLE + " SET bucketID = 0 WHERE "
-                + "bucketID >= ? AND (processed = ? OR processed is NULL)";
+        if (runIdLeases != null) {
+            resetLeasedRecords();
+            return;
+        }
+
+        if (claimLeases != null) {
+            claimLeases.leaseUnleasedRows(props.getMinRunID(),
+                    props.getMaxRunID());
+            claimLeases.reclaimExpired(props.getBucketSize());
+            return;
+        }
+
+        int result = 0;
+        try {
+            result = resetUpdater.update("resetPartiallyProcessedRecords",
+                    MAIN_DAEMON_TABLE, getResetAssignments(), "bucketID >= ? "
+                    + "AND (processed = ? OR processed is NULL)",
+                    props.getMinRunID(), props.getUnprocessedStatus());
+        } catch (SQLException e) {
+            // Buckets may still be allocated, so keep their run IDs in flight
+            log.error(getLogPreString() + "resetPartiallyProcessedRecords "
+                    + "--- Failed to reset partially processed records: "
+                    + e.getMessage(), e);
+            return;
+        }
+
+        // Every bucket is back in the pool, so no run ID is in flight
+        runIds.setRange(props.getMinRunID(), runIds.getMaxRunID(),
+                runIds.getLastRunID());
 
-        List<Object> params = new ArrayList<Object>();
-        params.add(props.getMinRunID());
-        params.add(props.getUnprocessedStatus());
-        
-        int result = updateRecord(updateQuery, params, false);
-        
          if (result > 0) {
                 log.info(getLogPreString()
                         + "resetPartiallyProcessedRecords --- I have reset all "
@@ -177,6 +525,38 @@ public abstract class AbstractDaemon {
         
     }
 
+    /**
+     * Leases a run ID range if this instance has none, waiting until one is
+     * free, then resets the records a previous owner left allocated in it.
+     */
+    private void resetLeasedRecords() {
+        while (!runIdLeases.acquire()) {
+            log.info(getLogPreString() + "Waiting for a free run ID range...");
+            doWait(props.getSleepTime());
+        }
+
+        runID = runIdLeases.getMinRunID() - 1;
+        runIds.setRange(runIdLeases.getMinRunID(), runIdLeases.getMaxRunID(),
+                runID);
+
+        int result = 0;
+        try {
+            result = resetUpdater.update("resetPartiallyProcessedRecords",
+                    MAIN_DAEMON_TABLE, getResetAssignments(), "bucketID "
+                    + "BETWEEN ? AND ? AND (processed = ? OR processed is NULL)",
+                    runIdLeases.getMinRunID(), runIdLeases.getMaxRunID(),
+                    props.getUnprocessedStatus());
+        } catch (SQLException e) {
+            log.error(getLogPreString() + "resetPartiallyProcessedRecords "
+                    + "--- Failed to reset the leased run IDs: "
+                    + e.getMessage(), e);
+            return;
+        }
+        log.info(getLogPreString() + "resetPartiallyProcessedRecords --- "
+                + "Reset " + result + " partially processed records of run IDs "
+                + runIdLeases.getMinRunID() + " to " + runIdLeases.getMaxRunID());
+    }
+
     /**
      * Check if the database server is up. Added 03/07/11.
      */
@@ -228,49 +608,122 @@ public abstract class AbstractDaemon {
         }
     }
 
+    /**
+     * <p>Waits until the next polling cycle is due. The loop that drives
+     * {@link #runDaemon()} calls this between cycles instead of sleeping
+     * SLEEP_TIME itself.</p>
+     *
+     * <p>If MIN_POLL_INTERVAL and MAX_POLL_INTERVAL differ, the wait adapts to
+     * the last allocation: none after a full bucket, MIN_POLL_INTERVAL after
+     * a partly filled one, and an exponential backoff with jitter up to
+     * MAX_POLL_INTERVAL after empty ones. Otherwise it is SLEEP_TIME.</p>
+     *
+     * <p>With NOTIFY_CHANNEL set, a NOTIFY on the channel ends the wait at
+     * once, and empty buckets back off up to NOTIFY_FALLBACK_INTERVAL, which
+     * only catches missed notifications.</p>
+     *
+     * <p>With PIPELINE_DEPTH set, the allocator stage waits on the adaptive
+     * schedule instead, and this always waits SLEEP_TIME.</p>
+     */
+    public void awaitNextCycle() {
+        if (allocationPipeline != null) {
+            // The allocator stage paces itself, this loop only replays
+            doWait(props.getSleepTime());
+            return;
+        }
+
+        try {
+            pollScheduler.awaitNextCycle();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.error(getLogPreString() + " problems :  ", ex);
+        }
+    }
+
+    /**
+     * Ends the current wait between polling cycles early, for example when a
+     * subclass learns that new records have arrived. If the daemon is busy,
+     * the next wait is skipped.
+     */
+    public void wakeUp() {
+        if (allocationPipeline != null) {
+            allocationPipeline.wakeUp();
+        } else {
+            pollScheduler.wakeUp();
+        }
+    }
+
     public int allocateBucket(final int currentRunID) {
         return allocateBucket(currentRunID, false);
     }
 
     /**
      * Method <i>allocateBucket</i> allocates a bucket for father to pick and
-     * put in the processing queue.
+     * put in the processing queue. With ALLOCATION_STRATEGY set to SKIP_LOCKED
+     * and a database that supports it, the bucket is claimed with
+     * {@link #claimBucketSkipLocked}, otherwise with a single UPDATE ... LIMIT.
      *
      * @param currentRunID the Run ID to be used in the allocation
      * @return a status indicating if there were records allocated or not
      */
     public int allocateBucket(final int currentRunID, boolean checkProcessedNull) {
+        int bucketSize = getBucketSize();
+        int result = allocateBucket(currentRunID, checkProcessedNull,
+                bucketSize);
+        recordClaim(bucketSize, result);
+        return result;
+    }
+
+    /**
+     * Allocates a bucket of a given size. The claim is not recorded with the
+     * bucket sizer or the poll scheduler.
+     *
+     * @param currentRunID the Run ID to be used in the allocation
+     * @param checkProcessedNull whether records with a NULL processed status
+     *                           are also unprocessed
+     * @param bucketSize the most records to allocate
+     * @return the number of records allocated
+     */
+    int allocateBucket(final int currentRunID,
+            final boolean checkProcessedNull, final int bucketSize) {
         PreparedStatement stmt = null;
         Connection conn = null;
 
-        String updateQuery = "UPDATE " + MAIN_DAEMON_TABLE + " SET bucketID = ? WHERE "
-                + "( nextSend < now() OR nextSend IS NULL ) AND "
-                + "bucketID = 0 AND (processed = ?";
-        updateQuery += checkProcessedNull ? " OR processed is NULL" : "";
-        updateQuery += ") AND CASE ? "
-                + "WHEN 'MINUTE' THEN TIMESTAMPDIFF(MINUTE, dateCreated, NOW()) < ? "
-                + "WHEN 'HOUR' THEN TIMESTAMPDIFF(HOUR, dateCreated, NOW()) < ? "
-                + "WHEN 'DAY' THEN TIMESTAMPDIFF(DAY, dateCreated, NOW()) < ? "
-                + "ELSE TIMESTAMPDIFF(HOUR, dateCreated, NOW()) < ? "
-                + "END AND numberOfSends < ? LIMIT ?";
+        String updateQuery = "UPDATE " + MAIN_DAEMON_TABLE + " SET "
+                + getClaimAssignment() + " WHERE "
+                + getAllocationPredicate(checkProcessedNull) + " LIMIT ?";
         int result = 0;
 
+        if (currentRunID <= 0) {
+            // getCurrentRun() found every run ID in flight
+            return 0;
+        }
+
+        if (claimLeases != null) {
+            claimLeases.reclaimExpired(bucketSize);
+        }
+
         try {
             conn = database.getConnection();
+            if (isSkipLockedAllocation(conn)) {
+                result = claimBucketSkipLocked(conn, currentRunID,
+                        checkProcessedNull, bucketSize);
+                runIds.claimed(currentRunID, result);
+                return result;
+            }
+
             stmt = conn.prepareStatement(updateQuery);
-            stmt.setInt(1, currentRunID);
-            stmt.setInt(2, props.getUnprocessedStatus());
-            stmt.setString(3, props.getExpiryTimeUnit());
-            stmt.setInt(4, props.getExpiryTimeValue());
-            stmt.setInt(5, props.getExpiryTimeValue());
-            stmt.setInt(6, props.getExpiryTimeValue());
-            stmt.setInt(7, props.getExpiryTimeValue());
-            stmt.setInt(8, props.getMaxSendRetries());
-            stmt.setInt(9, props.getBucketSize());
+            int index = bindClaimAssignment(stmt, 1, currentRunID);
+            index = bindAllocationPredicate(stmt, index);
+            stmt.setInt(index, bucketSize);
 
             result = stmt.executeUpdate();
+            runIds.claimed(currentRunID, result);
 
             if (result > 0) {
+                if (claimLeases != null) {
+                    claimLeases.claimed(currentRunID);
+                }
                 log.info(getLogPreString()
                         + "allocateBucket ==> Just allocated a bucket using: \n"
                         + stmt.toString() + "  \n of size : " + result);
@@ -278,6 +731,7 @@ public abstract class AbstractDaemon {
         } catch (SQLException e) {
             log.error(getLogPreString() + "allocateBucket ==> Failed to "
                     + "allocate Bucket, reason: " + e.getMessage(), e);
+            runIds.release(currentRunID);
         } finally {
             if (stmt != null) {
                 try {
@@ -304,14 +758,336 @@ public abstract class AbstractDaemon {
     }
 
     /**
-     * Method <i>allocateBucket</i> allocates a bucket for father to pick and
-     * put in the processing queue.
+     * Get the number of records to claim in the next bucket. This is
+     * BUCKET_SIZE, unless MIN_BUCKET_SIZE and MAX_BUCKET_SIZE differ, in which
+     * case the {@link BucketSizer} picks a size from the drain rate and the
+     * current backlog.
      *
+     * @return the bucket size
+     */
+    public int getBucketSize() {
+        if (bucketSizer == null) {
+            return props.getBucketSize();
+        }
+
+        return bucketSizer.nextBucketSize(executor.getCompletedTaskCount(),
+                getBacklog());
+    }
+
+    /**
+     * Get the number of tasks waiting to run, on the executor or behind an
+     * earlier task with the same key.
+     *
+     * @return the backlog
+     */
+    public int getBacklog() {
+        return executor.getListSize() + partitionedExecutor.getPendingCount();
+    }
+
+    /**
+     * Get the backlog up to which the allocator stages keep fetching:
+     * PIPELINE_DEPTH buckets, or one per allocator thread if more, capped by
+     * MAX_MEM_CAPACITY and the task queue capacity.
+     *
+     * @return the prefetch limit in tasks
+     */
+    private int getPrefetchLimit() {
+        long limit = (long) Math.max(props.getPipelineDepth(),
+                props.getAllocatorThreads()) * getMaxBucketSize();
+        limit = Math.min(limit, props.getMaxMemCapacity());
+        if (props.getTaskQueueCapacity() > 0) {
+            limit = Math.min(limit, props.getTaskQueueCapacity());
+        }
+
+        return (int) limit;
+    }
+
+    /**
+     * Get the most records a single bucket may claim.
+     *
+     * @return the larger of BUCKET_SIZE and MAX_BUCKET_SIZE
+     */
+    private int getMaxBucketSize() {
+        return Math.max(props.getBucketSize(), props.getMaxBucketSize());
+    }
+
+    /**
+     * Tells the bucket sizer and the poll scheduler how many records an
+     * allocation claimed.
+     *
+     * @param requested the bucket size asked for, or -1 if not known
+     * @param claimed the number of records claimed
+     */
+    private void recordClaim(final int requested, final int claimed) {
+        if (bucketSizer != null) {
+            bucketSizer.recordClaim(claimed);
+        }
+
+        if (props.isAdaptivePollingEnabled() || props.isNotifyEnabled()) {
+            PollScheduler scheduler = allocationPipeline != null
+                    ? allocationPipeline.getScheduler() : pollScheduler;
+            scheduler.recordAllocation(claimed, requested);
+        }
+    }
+
+    /**
+     * Get the assignments that claim records for a bucket: the run ID, and
+     * the lease expiry with claim leases. Bind their parameters with
+     * {@link #bindClaimAssignment}.
+     *
+     * @return the SQL assignments
+     */
+    private String getClaimAssignment() {
+        return claimLeases != null ? "bucketID = ?, leaseExpiry = ?"
+                : "bucketID = ?";
+    }
+
+    /**
+     * Binds the parameters of {@link #getClaimAssignment()}.
+     *
+     * @param stmt the statement
+     * @param index the index of the first parameter
      * @param currentRunID the Run ID to be used in the allocation
+     * @return the index of the next parameter
+     *
+     * @throws SQLException if a parameter cannot be set
+     */
+    private int bindClaimAssignment(final PreparedStatement stmt,
+            final int index, final int currentRunID) throws SQLException {
+        int i = index;
+        stmt.setInt(i++, currentRunID);
+        if (claimLeases != null) {
+            stmt.setTimestamp(i++, claimLeases.newExpiry());
+        }
+        return i;
+    }
+
+    /**
+     * Builds the condition records must meet to be allocated: unallocated,
+     * unprocessed, due for sending, not expired and below the send limit.
+     * Bind its parameters with {@link #bindAllocationPredicate}.
+     *
+     * <p>Every column is compared directly with a value, so the condition can
+     * use an index on (bucketID, processed, nextSend, dateCreated). See
+     * {@link IndexAdvisor}. The expiry cutoff is computed from the database
+     * clock, like nextSend, so the daemon's clock does not matter.</p>
+     *
+     * @param checkProcessedNull whether records with a NULL processed status
+     *                           are also unprocessed
+     * @return the SQL condition
+     */
+    private String getAllocationPredicate(final boolean checkProcessedNull) {
+        String predicate = "( nextSend < now() OR nextSend IS NULL ) AND "
+                + "bucketID = 0 AND (processed = ?";
+        predicate += checkProcessedNull ? " OR processed is NULL" : "";
+        predicate += ") AND dateCreated > " + DATABASE.getTimeAgo(
+                props.getDbType(), getExpiryUnit()) + " AND numberOfSends < ?";
+        return predicate;
+    }
+
+    /**
+     * Binds the parameters of the allocation condition.
+     *
+     * @param stmt the statement
+     * @param index the index of the condition's first parameter
+     * @return the index of the next parameter
+     *
+     * @throws SQLException if a parameter cannot be set
+     */
+    private int bindAllocationPredicate(final PreparedStatement stmt,
+            final int index) throws SQLException {
+        int i = index;
+        stmt.setInt(i++, props.getUnprocessedStatus());
+        stmt.setInt(i++, props.getExpiryTimeValue());
+        stmt.setInt(i++, props.getMaxSendRetries());
+        return i;
+    }
+
+    /**
+     * Get the unit records expire in: EXPIRY_TIME_VALUE minutes, hours or
+     * days after they were created, depending on EXPIRY_TIME_UNIT. Any other
+     * unit counts in hours.
+     *
+     * @return MINUTE, HOUR or DAY
+     */
+    private String getExpiryUnit() {
+        String unit = props.getExpiryTimeUnit();
+        if ("MINUTE".equalsIgnoreCase(unit)) {
+            return "MINUTE";
+        } else if ("DAY".equalsIgnoreCase(unit)) {
+            return "DAY";
+        }
+        return "HOUR";
+    }
+
+    /**
+     * Checks once whether buckets should be claimed with SKIP LOCKED. Falls
+     * back to UPDATE ... LIMIT if the database does not support it.
+     *
+     * @param conn an open connection
+     * @return true if the SKIP_LOCKED strategy is configured and supported
+     */
+    private boolean isSkipLockedAllocation(final Connection conn) {
+        if (!props.isSkipLockedAllocationEnabled()) {
+            return false;
+        }
+
+        Boolean supported = skipLockedSupported;
+        if (supported == null) {
+            try {
+                supported = DATABASE.supportsSkipLocked(conn);
+            } catch (SQLException e) {
+                log.error(getLogPreString() + "allocateBucket ==> Failed to "
+                        + "read the database version: " + e.getMessage(), e);
+                return false;
+            }
+
+            if (supported) {
+                log.info(getLogPreString() + "Claiming buckets with "
+                        + "SELECT ... FOR UPDATE SKIP LOCKED");
+            } else {
+                log.error(getLogPreString() + "ALLOCATION_STRATEGY "
+                        + "SKIP_LOCKED is not supported by this database, "
+                        + "falling back to UPDATE ... LIMIT");
+            }
+            skipLockedSupported = supported;
+        }
+
+        return supported;
+    }
+
+    /**
+     * <p>Claims a bucket in a short transaction. The primary keys of up to a
+     * bucket of candidate rows are locked with SELECT ... FOR UPDATE SKIP
+     * LOCKED, which passes over rows another daemon has already locked
+     * instead of waiting for them, and the locked rows are then updated by
+     * primary key.</p>
+     *
+     * <p>Unlike a single UPDATE ... LIMIT, the range scan takes no locks on
+     * rows it does not claim, so several daemons can drain one table in
+     * parallel.</p>
+     *
+     * @param conn the connection, closed by the caller
+     * @param currentRunID the Run ID to be used in the allocation
+     * @param checkProcessedNull whether records with a NULL processed status
+     *                           are also unprocessed
+     * @param bucketSize the most records to allocate
+     * @return the number of records allocated
+     *
+     * @throws SQLException if the connection cannot be set up
+     */
+    private int claimBucketSkipLocked(final Connection conn,
+            final int currentRunID, final boolean checkProcessedNull,
+            final int bucketSize) throws SQLException {
+        String primaryKey = props.getMainTablePrimaryKey();
+        String selectQuery = "SELECT " + primaryKey + " FROM "
+                + MAIN_DAEMON_TABLE + " WHERE "
+                + getAllocationPredicate(checkProcessedNull)
+                + " LIMIT ? FOR UPDATE SKIP LOCKED";
+
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        int result = 0;
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            stmt = conn.prepareStatement(selectQuery);
+            int index = bindAllocationPredicate(stmt, 1);
+            stmt.setInt(index, bucketSize);
+
+            List<Object> ids = new ArrayList<Object>();
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                ids.add(rs.getObject(1));
+            }
+            rs.close();
+            rs = null;
+            stmt.close();
+            stmt = null;
+
+            if (!ids.isEmpty()) {
+                StringBuilder updateQuery = new StringBuilder("UPDATE ")
+                        .append(MAIN_DAEMON_TABLE)
+                        .append(" SET ").append(getClaimAssignment())
+                        .append(" WHERE bucketID = 0 AND ")
+                        .append(primaryKey).append(" IN (");
+                for (int i = 0; i < ids.size(); i++) {
+                    updateQuery.append(i == 0 ? "?" : ", ?");
+                }
+                updateQuery.append(")");
+
+                stmt = conn.prepareStatement(updateQuery.toString());
+                int first = bindClaimAssignment(stmt, 1, currentRunID);
+                for (int i = 0; i < ids.size(); i++) {
+                    stmt.setObject(first + i, ids.get(i));
+                }
+
+                result = stmt.executeUpdate();
+            }
+
+            conn.commit();
+            if (result > 0 && claimLeases != null) {
+                claimLeases.claimed(currentRunID);
+            }
+
+            if (result > 0) {
+                log.info(getLogPreString() + "allocateBucket ==> Just "
+                        + "claimed a bucket of size " + result + " for runID "
+                        + currentRunID + " using SKIP LOCKED");
+            }
+        } catch (SQLException e) {
+            log.error(getLogPreString() + "allocateBucket ==> Failed to "
+                    + "claim Bucket, reason: " + e.getMessage(), e);
+            try {
+                conn.rollback();
+            } catch (SQLException sqle) {
+                log.error(getLogPreString() + "allocateBucket ==> Failed to "
+                        + "roll back the claim: " + sqle.getMessage(), sqle);
+            }
+            result = 0;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException sqlex) {
+                    log.error(getLogPreString()
+                            + "allocateBucket ==> Failed to close result set: "
+                            + sqlex.getMessage(), sqlex);
+                }
+            }
+
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException sqlex) {
+                    log.error(getLogPreString()
+                            + "allocateBucket ==> Failed to close statement: "
+                            + sqlex.getMessage(), sqlex);
+                }
+            }
+
+            // The connection goes back to the pool
+            conn.setAutoCommit(autoCommit);
+        }
+
+        return result;
+    }
+
+    /**
+     * Method <i>allocateBucket</i> allocates a bucket for father to pick and
+     * put in the processing queue. With CLAIM_LEASE_TIME set, the rows
+     * claimed by a custom query get no lease, so they are not reclaimed
+     * while another instance runs; a stopped instance's rows are recovered
+     * by the startup reset.
+     *
+     * @param updateQuery the allocation query
+     * @param params the parameters of the query
      * @return a status indicating if there were records allocated or not
      */
     public int allocateBucket(final String updateQuery, List<Object> params) {
-        return updateRecord(updateQuery, params, false);
+        int result = updateRecord(updateQuery, params, false);
+        recordClaim(-1, result);
+        return result;
     }
 
     /**
@@ -324,20 +1100,17 @@ public abstract class AbstractDaemon {
      * not
      */
     public int resetBucket(final int runID) {
-        PreparedStatement stmt = null;
-        Connection conn = null;
-
-        String updateQuery = "UPDATE " + MAIN_DAEMON_TABLE + " SET bucketID = 0 WHERE "
-                + "bucketID = ? AND processed = ?";
+        runIds.release(runID);
+        if (claimLeases != null) {
+            claimLeases.released(runID);
+        }
 
         int result = 0;
         try {
-            conn = database.getConnection();
-            stmt = conn.prepareStatement(updateQuery);
-            stmt.setInt(1, runID);
-            stmt.setInt(2, props.getUnprocessedStatus());
-
-            result = stmt.executeUpdate();
+            result = resetUpdater.update("resetBucket " + runID,
+                    MAIN_DAEMON_TABLE, getResetAssignments(),
+                    "bucketID = ? AND processed = ?", runID,
+                    props.getUnprocessedStatus());
             if (result > 0) {
                 log.info(getLogPreString() + "resetBucket --- Just did "
                         + "reset to records with runID " + runID + " to status "
@@ -348,38 +1121,106 @@ public abstract class AbstractDaemon {
                     + "reset bucket for runID - " + runID + ", to status - "
                     + props.getUnprocessedStatus() + ". Reason: "
                     + e.getMessage());
-        } finally {
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException sqlex) {
-                    log.error(getLogPreString() + "resetBucket ==> Failed "
-                            + "to close statement: " + sqlex.getMessage());
-                }
-            }
-
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException sqle) {
-                    log.error(getLogPreString() + "resetBucket ==> Failed "
-                            + "to close connection: " + sqle.getMessage());
-                }
-            }
         }
 
         return result;
     }
 
+    /**
+     * Get the assignments that return records to the pool.
+     *
+     * @return the SQL assignments
+     */
+    private String getResetAssignments() {
+        return claimLeases != null ? "bucketID = 0, leaseExpiry = NULL"
+                : "bucketID = 0";
+    }
+
     /**
      * Method <i>fetchBucket</i> gets a bucket of unprocessed tasks and
      * processes them.
      */
     public abstract void fetchBucket();
 
+    /**
+     * Sets where {@link #fetchWork(WorkHandler)} claims work from, in place
+     * of the main daemon table.
+     *
+     * @param source the work source
+     */
+    public void setWorkSource(final WorkSource source) {
+        workSource = source;
+    }
+
+    /**
+     * Get where {@link #fetchWork(WorkHandler)} claims work from. Unless set
+     * with {@link #setWorkSource(WorkSource)}, this is a
+     * {@link TablePollingWorkSource} on the main daemon table.
+     *
+     * @return the work source
+     */
+    public WorkSource getWorkSource() {
+        if (workSource == null) {
+            synchronized (this) {
+                if (workSource == null) {
+                    workSource = new TablePollingWorkSource(this, database,
+                            MAIN_DAEMON_TABLE, props, log);
+                }
+            }
+        }
+
+        return workSource;
+    }
+
+    /**
+     * Claims a bucket of items from the work source and queues each to be
+     * processed by a handler. An item is acknowledged if the handler
+     * succeeds, and rejected if it fails or throws. A subclass can implement
+     * {@link #fetchBucket()} with this instead of allocating and reading
+     * buckets itself.
+     *
+     * @param handler processes each item
+     * @return the number of items claimed
+     */
+    public int fetchWork(final WorkHandler handler) {
+        if (!isRecordsInStackMaximum()) {
+            return 0;
+        }
+
+        final WorkSource source = getWorkSource();
+        int bucketSize = getBucketSize();
+        List<WorkItem> items = source.claim(bucketSize);
+        recordClaim(bucketSize, items.size());
+
+        for (final WorkItem item : items) {
+            executeTask(new Runnable() {
+                @Override
+                public void run() {
+                    boolean handled = false;
+                    try {
+                        handled = handler.handle(item);
+                    } catch (Exception ex) {
+                        log.error(getLogPreString() + "fetchWork --- Failed "
+                                + "to process " + item + ": "
+                                + ex.getMessage(), ex);
+                    }
+
+                    if (handled) {
+                        source.ack(item);
+                    } else {
+                        source.nack(item);
+                    }
+                }
+            });
+        }
+
+        return items.size();
+    }
+
     /**
      * This function determines how the queries will be re-executed i.e. whether
-     * SELECT or UPDATE.
+     * SELECT or UPDATE. A failed re-execution is retried after SLEEP_TIME,
+     * doubling the wait each time.
      *
      * @param query the query to re-execute
      * @param tries the number of times to retry
@@ -387,22 +1228,25 @@ public abstract class AbstractDaemon {
     private void doRecon(final String query, final int tries) {
         int maxRetry = props.getMaxSendRetries();
 
-        if (query.toLowerCase().startsWith(DaemonConstants.UPDATE_ID)) {
+        if (!query.toLowerCase().startsWith(DaemonConstants.UPDATE_ID)) {
+            return;
+        }
 
+        long backoff = props.getSleepTime();
+        for (int attempt = tries; ; attempt++) {
             int qstate = updateRecord(query);
+            if (qstate != DaemonConstants.UPDATE_RECON_FAILED) {
+                return;
+            }
 
-            if (qstate == DaemonConstants.UPDATE_RECON_FAILED) {
-
-                log.info(getLogPreString() + "Failed to re-execute failed query: " + query + "[ Try " + tries + " out of  " + maxRetry);
-
-
-                if (tries < maxRetry) {
-
-                    log.info(getLogPreString() + "Retrying in " + (props.getSleepTime() / 1000) + " sec(s) ");
-                    doWait(props.getSleepTime());
-                    doRecon(query, tries + 1);
-                }
+            log.info(getLogPreString() + "Failed to re-execute failed query: " + query + "[ Try " + attempt + " out of  " + maxRetry);
+            if (attempt >= maxRetry) {
+                return;
             }
+
+            log.info(getLogPreString() + "Retrying in " + (backoff / 1000) + " sec(s) ");
+            doWait(backoff);
+            backoff = Math.min(backoff * 2, MAX_RECON_BACKOFF);
         }
     }
 
@@ -463,10 +1307,15 @@ public abstract class AbstractDaemon {
     }
 
     /**
-     * Update successful transactions that were not updated.
+     * Update successful transactions that were not updated. With a journal,
+     * this only asks the replay engine for a replay, which runs on its own
+     * threads while buckets are fetched.
      */
     private void rollbackSystem() {
-
+        if (replayEngine != null) {
+            replayEngine.requestReplay();
+            return;
+        }
 
         List<String> failedQueries = checkForFailedQueries(DaemonConstants.FAILED_QUERIES_FILE);
 
@@ -496,7 +1345,25 @@ public abstract class AbstractDaemon {
     private synchronized void doWork() {
 
         rollbackSystem();
-        fetchBucket();
+        if (allocationPipeline != null) {
+            // Buckets are fetched on the allocator stage
+            allocationPipeline.start();
+        } else {
+            fetchBucket();
+        }
+    }
+
+    /**
+     * Drops the keyed tasks still waiting in their key queues, once the
+     * executor's queue has been cleared, so that key queues it dropped do
+     * not hold up their keys or count towards the backlog.
+     */
+    private void clearKeyQueues() {
+        int dropped = partitionedExecutor.clear();
+        if (dropped > 0) {
+            log.info(getLogPreString() + "Performing cleanup => dropped "
+                    + dropped + " keyed tasks...");
+        }
     }
 
     /**
@@ -514,12 +1381,20 @@ public abstract class AbstractDaemon {
 
                 doWait(props.getSleepTime());
 
-                int bucket = threadPool.getListSize();
+                int bucket = executor.getListSize();
                 if (bucket > 0) {
                     log.info(getLogPreString() + "Performing system "
                             + "restore => clearing the work queue ...");
-                    threadPool.clearQueue();
+                    executor.clearQueue();
                 }
+                clearKeyQueues();
+
+                /*
+                 * Let the running tasks finish and stop the old workers,
+                 * timers and virtual threads before they are replaced.
+                 */
+                executor.join();
+                executor.close();
 
                 // Update successfull transactions, that were not updated
                 rollbackSystem();
@@ -528,18 +1403,32 @@ public abstract class AbstractDaemon {
                  * Now, reset partially processed records so that they are
                  * picked up again.
                  */
+                if (claimLeases != null) {
+                    // The queue was cleared, so stop renewing its buckets
+                    claimLeases.releaseHeld();
+                }
                 resetPartiallyProcessedRecords();
 
                 log.info(getLogPreString() + "Performing system restore "
                         + "=> refreshing the work pool...");
 
-                threadPool = new ThreadPool(props.getNumOfChildren(), log);
+                executor = createExecutor();
+                threadPool = executor instanceof ThreadPool
+                        ? (ThreadPool) executor : null;
+                partitionedExecutor.setExecutor(executor);
+                threadPoolMetrics.setExecutor(executor);
 
 
-                if (runID > props.getMinRunID()) {
+                if (runIdLeases != null) {
+                    // resetPartiallyProcessedRecords() restarted the range
+                    log.info(getLogPreString() + "Performing system restore "
+                            + "=> Current_Run_ID is " + runID);
+                } else if (runID > props.getMinRunID()) {
                     log.info(getLogPreString() + "Performing system restore => resetting the Current_Run_ID to "
                             + " initial run_id [ " + runID + " ]");
                     runID = props.getMinRunID();
+                    runIds.setRange(runIds.getMinRunID(), runIds.getMaxRunID(),
+                            runID);
                 }
 
                 log.info(getLogPreString() + "Resuming daemon service...");
@@ -559,12 +1448,17 @@ public abstract class AbstractDaemon {
                     + "interrupted, suspending from service...");
             log.info(getLogPreString() + "Cleaning up service...");
 
-            int bucket = threadPool.getListSize();
+            if (allocationPipeline != null) {
+                allocationPipeline.pause();
+            }
+
+            int bucket = executor.getListSize();
             if (bucket > 0) {
                 log.info(getLogPreString() + "Performing cleanup => "
                         + "clearing the threadpool queue...");
-                threadPool.clearQueue();
+                executor.clearQueue();
             }
+            clearKeyQueues();
 
             log.info(getLogPreString() + "Performing cleanup => closed the "
                     + "threadpool...");
@@ -590,21 +1484,135 @@ public abstract class AbstractDaemon {
 
     /**
      * Method <i>getCurrentRun</i> determines and returns the Current Run ID to
-     * be used when allocating a bucket for the respective iteration.
+     * be used when allocating a bucket for the respective iteration. Run IDs
+     * are handed out in turn, wrapping around at MAX_RUN_ID, and skipping
+     * those whose buckets are still in flight. Once every run ID is in
+     * flight, the buckets with no unprocessed records left are released;
+     * if there are none, -1 is returned and allocating with it claims
+     * nothing.
      *
-     * @return the Current run ID
+     * @return the Current run ID, or -1 if every run ID is in flight
      */
-    @SuppressWarnings("ValueOfIncrementOrDecrementUsed")
     public int getCurrentRun() {
-        // Check if the CURRENT_RUN_AT_STARTUP has exceeded the MAXMIMUM values
-        if (runID > props.getMaxRunID()) {
-            log.info(getLogPreString() + "getCurrentRun --- CRITICAL: "
-                    + "Resetting RunID to " + props.getMinRunID());
-            runID = props.getMinRunID();
-            return runID;
+        if (runIdLeases != null && !runIdLeases.isLeased()) {
+            synchronized (runIds) {
+                if (!runIdLeases.isLeased()) {
+                    // The lease was lost, take a new range before going on
+                    resetLeasedRecords();
+                }
+            }
+        }
+
+        long wraps = runIds.getWrapCount();
+        int next = runIds.next();
+        if (next < 0 && releaseFinishedRuns() > 0) {
+            next = runIds.next();
+        }
+
+        if (next < 0) {
+            log.error(getLogPreString() + "getCurrentRun --- All "
+                    + runIds.getInFlightCount() + " run IDs are in flight, "
+                    + "not allocating until a bucket completes");
+            return -1;
+        }
+
+        if (runIds.getWrapCount() != wraps) {
+            log.info(getLogPreString() + "getCurrentRun --- Wrapped around "
+                    + "to RunID " + next + ", skipping "
+                    + runIds.getInFlightCount() + " in flight");
+        }
+
+        runID = next;
+        return next;
+    }
+
+    /**
+     * Tells the daemon that a record allocated under a run ID is done, so
+     * the run ID can be reused once its whole bucket is. Subclasses that do
+     * not call this have their run IDs released once the range runs out and
+     * their buckets have no unprocessed records left.
+     *
+     * @param runID the run ID the record was allocated under
+     */
+    public void completeRecord(final int runID) {
+        runIds.completed(runID);
+    }
+
+    /**
+     * Get the number of run IDs whose buckets are still in flight.
+     *
+     * @return the in-flight run ID count
+     */
+    public int getInFlightRunCount() {
+        return runIds.getInFlightCount();
+    }
+
+    /**
+     * Looks up which of the run IDs in flight still have unprocessed records,
+     * and releases the others.
+     *
+     * @return the number of run IDs released
+     */
+    private int releaseFinishedRuns() {
+        String query = "SELECT DISTINCT bucketID FROM " + MAIN_DAEMON_TABLE
+                + " WHERE bucketID BETWEEN ? AND ? AND (processed = ? OR "
+                + "processed IS NULL)";
+
+        // Claims recorded after this may not be visible to the lookup
+        long checkpoint = runIds.checkpoint();
+        Set<Integer> unfinished = new HashSet<Integer>();
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = database.getConnection();
+            stmt = conn.prepareStatement(query);
+            stmt.setInt(1, runIds.getMinRunID());
+            stmt.setInt(2, runIds.getMaxRunID());
+            stmt.setInt(3, props.getUnprocessedStatus());
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                unfinished.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            log.error(getLogPreString() + "getCurrentRun --- Failed to look "
+                    + "up the buckets in flight: " + e.getMessage(), e);
+            return 0;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException sqlex) {
+                    log.error(getLogPreString()
+                            + "getCurrentRun --- Failed to close result set: "
+                            + sqlex.getMessage(), sqlex);
+                }
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException sqlex) {
+                    log.error(getLogPreString()
+                            + "getCurrentRun --- Failed to close statement: "
+                            + sqlex.getMessage(), sqlex);
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException sqle) {
+                    log.error(getLogPreString()
+                            + "getCurrentRun --- Failed to close connection: "
+                            + sqle.getMessage(), sqle);
+                }
+            }
         }
 
-        return ++runID;
+        int released = runIds.retainInFlight(unfinished, checkpoint);
+        log.info(getLogPreString() + "getCurrentRun --- Released " + released
+                + " finished run IDs, " + unfinished.size() + " still in "
+                + "flight");
+        return released;
     }
 
     /**
@@ -633,10 +1641,62 @@ public abstract class AbstractDaemon {
                 + "whether there are any tasks(Children) in the queue .... ");
         log.info(getLogPreString() + "freeResources --- Waiting for "
                 + "queued jobs to complete....");
-        threadPool.join();
-        threadPool.close();
+        if (notificationListener != null) {
+            notificationListener.stop();
+        }
+        if (allocationPipeline != null) {
+            allocationPipeline.stop();
+        }
+        executor.join();
+        executor.close();
         log.info(getLogPreString() + "freeResources --- ThreadPool "
-                + "was shutdown successfully...");
+                + "was shutdown successfully... " + executor.getStatistics());
+        if (workSource != null) {
+            workSource.close();
+        }
+        if (claimLeases != null) {
+            claimLeases.stop();
+        }
+        if (updateBuffer != null) {
+            // The workers are done, write their last updates
+            updateBuffer.stop();
+        }
+        if (replayEngine != null) {
+            // Updates that fail again are handed to the failsafe writer
+            replayEngine.stop();
+            try {
+                replayEngine.unregister();
+            } catch (Exception ex) {
+                log.error(getLogPreString() + "freeResources --- Failed to "
+                        + "unregister the replay engine bean: "
+                        + ex.getMessage());
+            }
+        }
+        if (failsafeWriter != null) {
+            failsafeWriter.stop();
+        }
+        if (failedQueryJournal != null) {
+            failedQueryJournal.close();
+        }
+        if (runIdLeases != null) {
+            runIdLeases.release();
+        }
+        if (bucketSizer != null) {
+            try {
+                bucketSizer.unregister();
+            } catch (Exception ex) {
+                log.error(getLogPreString() + "freeResources --- Failed to "
+                        + "unregister the bucket sizer bean: "
+                        + ex.getMessage());
+            }
+        }
+        try {
+            threadPoolMetrics.unregister();
+        } catch (Exception ex) {
+            log.error(getLogPreString() + "freeResources --- Failed to "
+                    + "unregister the thread pool metrics bean: "
+                    + ex.getMessage());
+        }
     }
 
     /**
@@ -692,6 +1752,30 @@ public abstract class AbstractDaemon {
         return result;
     }
 
+    /**
+     * Queues a status update to be written behind in a batch with others.
+     * Without UPDATE_BATCH_SIZE the update is run at once with
+     * {@link #updateRecord(String, List)}. Either way a failed update goes to
+     * the failed queries file.
+     *
+     * @param updateQuery the update query
+     * @param params the parameter array
+     * @return the number of rows updated, once written. A buffered update
+     *         that failed fails with the SQLException; without
+     *         UPDATE_BATCH_SIZE, {@link #updateRecord(String, List)} handles
+     *         the exception and the future completes with 0.
+     *
+     * @throws InterruptedException if interrupted while the buffer is full
+     */
+    public SettableFuture<Integer> queueUpdate(final String updateQuery,
+            final List<Object> params) throws InterruptedException {
+        if (updateBuffer == null) {
+            return SettableFuture.completed(updateRecord(updateQuery, params));
+        }
+
+        return updateBuffer.add(updateQuery, params);
+    }
+
     /**
      * Updates a record via the use of a prepared statement.
      *
@@ -727,40 +1811,7 @@ public abstract class AbstractDaemon {
             conn = database.getConnection();
             stmt = conn.prepareStatement(updateQuery);
 
-            // ******* Loop through objects by getting their object type and
-            // ******* populate the prepared statement params
-            // The counter keeps a reference to index. using indexOf brings problems when u have 
-            // several similar parameters in params.
-            int counter = 0;
-            for (Object param : params) {
-
-
-                counter += 1;
-
-                if (param instanceof Integer) {
-                    stmt.setInt(counter, (Integer) param);
-                } else if (param instanceof String) {
-                	String cleanedStringOne = cleanString((String) param);
-                    stmt.setString(counter, cleanedStringOne);
-                } else if (param instanceof Float) {
-                    stmt.setFloat(counter, (Float) param);
-                } else if (param instanceof Date) {
-                    stmt.setDate(counter, (java.sql.Date) param);
-                } else if (param instanceof Boolean) {
-                    stmt.setBoolean(counter, (Boolean) param);
-                } else if (param instanceof Long) {
-                    stmt.setLong(counter, (Long) param);
-                } else {
-                	String cleanedStringTwo = cleanString((String) param);
-                    stmt.setString(counter, cleanedStringTwo);
-                }
-
-                if (enableFailSafeLogging) {
-                    log.info(getLogPreString() + " updateRecord |--     "
-                            + " Setting: index =>>" + counter + "    "
-                            + " paramerter =>> " + param.toString());
-                }
-            }
+            setParameters(stmt, params, enableFailSafeLogging);
 
             result = stmt.executeUpdate();
 
@@ -776,8 +1827,7 @@ public abstract class AbstractDaemon {
             log.error(getLogPreString() + "Update record error: ", ex);
             log.info(getLogPreString() + "Invoking failsafe => updateFile()");
             if (enableFailSafeLogging) {
-                String query = prepareRowQueryFromPreparedPayload(updateQuery, params);
-                updateFailedQueriesFile(DaemonConstants.FAILED_QUERIES_FILE, query);
+                logFailedUpdate(updateQuery, params);
             }
 
         } catch (Exception ex) {
@@ -786,8 +1836,7 @@ public abstract class AbstractDaemon {
             log.info(getLogPreString() + "Invoking failsafe => updateFile()");
             //log.error(getLogPreString() + "updateRecord --- FAILED UPDATE. " + "updateQuery was => " +  stmt.toString());
             if (enableFailSafeLogging) {
-                String query = prepareRowQueryFromPreparedPayload(updateQuery, params);
-                updateFailedQueriesFile(DaemonConstants.FAILED_QUERIES_FILE, query);
+                logFailedUpdate(updateQuery, params);
             }
 
         } finally {
@@ -811,6 +1860,83 @@ public abstract class AbstractDaemon {
         return result;
     }
 
+    /**
+     * Populates the parameters of a prepared statement from their object
+     * types. Every type a {@link FailedUpdate} keeps is bound as itself, so a
+     * replayed update binds as the original did; other types are bound as
+     * their string form.
+     *
+     * @param stmt the prepared statement
+     * @param params the parameter array
+     * @param logParams whether to log each parameter
+     *
+     * @throws SQLException if a parameter cannot be set
+     */
+    void setParameters(final PreparedStatement stmt, final List<Object> params,
+            final boolean logParams) throws SQLException {
+        // ******* Loop through objects by getting their object type and
+        // ******* populate the prepared statement params
+        // The counter keeps a reference to index. using indexOf brings problems when u have 
+        // several similar parameters in params.
+        int counter = 0;
+        for (Object param : params) {
+
+
+            counter += 1;
+
+            if (param == null) {
+                stmt.setNull(counter, Types.NULL);
+            } else if (param instanceof Integer) {
+                stmt.setInt(counter, (Integer) param);
+            } else if (param instanceof String) {
+            	String cleanedStringOne = cleanString((String) param);
+                stmt.setString(counter, cleanedStringOne);
+            } else if (param instanceof Float) {
+                stmt.setFloat(counter, (Float) param);
+            } else if (param instanceof Double) {
+                stmt.setDouble(counter, (Double) param);
+            } else if (param instanceof BigDecimal) {
+                stmt.setBigDecimal(counter, (BigDecimal) param);
+            } else if (param instanceof Timestamp) {
+                stmt.setTimestamp(counter, (Timestamp) param);
+            } else if (param instanceof java.sql.Date) {
+                stmt.setDate(counter, (java.sql.Date) param);
+            } else if (param instanceof Date) {
+                // Keep the time of day, which setDate would drop
+                stmt.setTimestamp(counter,
+                        new Timestamp(((Date) param).getTime()));
+            } else if (param instanceof Boolean) {
+                stmt.setBoolean(counter, (Boolean) param);
+            } else if (param instanceof Long) {
+                stmt.setLong(counter, (Long) param);
+            } else {
+            	String cleanedStringTwo = cleanString(param.toString());
+                stmt.setString(counter, cleanedStringTwo);
+            }
+
+            if (logParams) {
+                log.info(getLogPreString() + " updateRecord |--     "
+                        + " Setting: index =>>" + counter + "    "
+                        + " paramerter =>> " + param);
+            }
+        }
+    }
+
+    /**
+     * Writes a failed prepared update to the failed query journal, as its
+     * template and parameters, so that it is replayed by
+     * {@link #rollbackSystem()}. Without a journal, it is written to the
+     * failed queries file as literal SQL.
+     *
+     * @param updateQuery the update query
+     * @param params the parameter array
+     */
+    void logFailedUpdate(final String updateQuery, final List<Object> params) {
+        log.info(getLogPreString() + "FailSafe procedure invoked..., time: "
+                + getDateTime());
+        queueFailedUpdate(new FailedUpdate(updateQuery, params));
+    }
+
     private String prepareRowQueryFromPreparedPayload(final String updateQuery, List<Object> params) {
 
         log.debug(getLogPreString() + " prepareRowQueryFromPreparedPayload  : initial query --  " + updateQuery);
@@ -872,6 +1998,12 @@ public abstract class AbstractDaemon {
         log.info(getLogPreString() + "FailSafe procedure invoked..., time: "
                 + getDateTime());
 
+        if (failsafeWriter != null
+                && DaemonConstants.FAILED_QUERIES_FILE.equals(file)) {
+            queueFailedQuery(data);
+            return;
+        }
+
         File queryFile = new File(file);
         log.info(getLogPreString() + "Query file access creation and appending to file..., time " + getDateTime());
         try {
@@ -896,6 +2028,71 @@ public abstract class AbstractDaemon {
         }
     }
 
+    /**
+     * Hands a failed query to the failsafe writer, which journals it for
+     * {@link #rollbackSystem()} on a thread of its own. Without a journal,
+     * the query is appended to FAILED_QUERIES.TXT before returning.
+     *
+     * @param query the failed query
+     * @return a future completed once the query is on disk
+     */
+    public Future<Void> queueFailedQuery(final String query) {
+        return queueFailedUpdate(new FailedUpdate(query, null));
+    }
+
+    /**
+     * Hands a failed update to the failsafe writer, which journals its
+     * template and parameters for {@link #rollbackSystem()} on a thread of
+     * its own. Without a journal, or if it cannot be written, the update is
+     * appended to FAILED_QUERIES.TXT as literal SQL before returning.
+     *
+     * @param update the failed update
+     * @return a future completed once the update is on disk
+     */
+    public Future<Void> queueFailedUpdate(final FailedUpdate update) {
+        if (failsafeWriter == null) {
+            writeToFile(DaemonConstants.FAILED_QUERIES_FILE,
+                    getLiteralQuery(update));
+            return SettableFuture.completed(null);
+        }
+
+        Future<Void> written = failsafeWriter.write(update.encode());
+        if (written.isDone()) {
+            try {
+                written.get();
+            } catch (ExecutionException ex) {
+                log.error(getLogPreString() + "Failed to journal update: "
+                        + update + ", appending it to "
+                        + DaemonConstants.FAILED_QUERIES_FILE + " instead: "
+                        + ex.getCause().getMessage());
+                writeToFile(DaemonConstants.FAILED_QUERIES_FILE,
+                        getLiteralQuery(update));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return written;
+        }
+
+        log.info(getLogPreString() + "Queued update: " + update
+                + " for the failed query journal");
+        return written;
+    }
+
+    /**
+     * Get a failed update as literal SQL, for the failed queries file.
+     *
+     * @param update the failed update
+     * @return the query
+     */
+    private String getLiteralQuery(final FailedUpdate update) {
+        if (update.isPlainQuery()) {
+            return update.getTemplate();
+        }
+
+        return prepareRowQueryFromPreparedPayload(update.getTemplate(),
+                update.getParams());
+    }
+
     /**
      * Return the time.
      *
@@ -924,7 +2121,15 @@ public abstract class AbstractDaemon {
      */
     public boolean isRecordsInStackMaximum() {
 
-        int recordsInStack = threadPool.getListSize();
+        if (executor.isBounded() && partitionedExecutor.getPendingCount() == 0) {
+            /*
+             * executeTask() blocks while the bounded queue is full, so there
+             * is no need to hold back the bucket here.
+             */
+            return true;
+        }
+
+        int recordsInStack = getBacklog();
         if (recordsInStack < props.getMaxMemCapacity()) {
             log.info(getLogPreString() + " | isRecordsInStackMaximum --- We have "
                     + recordsInStack + " records instack " + props.getMaxMemCapacity()
@@ -948,17 +2153,107 @@ public abstract class AbstractDaemon {
     }
 
     /**
+     * Queues a task on the executor. If the task queue is bounded and full, or
+     * the virtual thread limit has been reached, this waits for capacity.
      *
-     * @param task
+     * @param task the task to run
      */
     public void executeTask(Runnable task) {
 
         try {
-            threadPool.runTask(task);
+            executor.runTask(task);
+        } catch (IllegalStateException is) {
+            log.error(getLogPreString() + " | executeTask --- "
+                    + "Failed to add this job to Bucket. "
+                    + "Error: " + is.getMessage(), is);
+        }
+    }
+
+    /**
+     * Queues a task that must not run at the same time as, or ahead of, any
+     * earlier task with the same key. Tasks with different keys still run in
+     * parallel across all the workers, so a daemon that must never process two
+     * records of the same customer at once no longer needs NUM_OF_CHILDREN=1.
+     *
+     * @param key the ordering key, for example the customer ID
+     * @param task the task to run
+     */
+    public void executeTask(Object key, Runnable task) {
+
+        try {
+            partitionedExecutor.runTask(key, task);
+        } catch (IllegalStateException is) {
+            log.error(getLogPreString() + " | executeTask --- "
+                    + "Failed to add the job for key " + key + " to Bucket. "
+                    + "Error: " + is.getMessage(), is);
+        }
+    }
+
+    /**
+     * Queues a whole bucket of tasks on the executor in one go. This is
+     * cheaper than calling executeTask() once per record, especially for
+     * large buckets.
+     *
+     * @param tasks the tasks to run
+     */
+    public void executeTasks(Collection<? extends Runnable> tasks) {
+
+        try {
+            executor.runTasks(tasks);
+        } catch (IllegalStateException is) {
+            log.error(getLogPreString() + " | executeTasks --- "
+                    + "Failed to add " + tasks.size() + " jobs to Bucket. "
+                    + "Error: " + is.getMessage(), is);
+        }
+    }
+
+    /**
+     * Queues a task on the thread pool, waiting at most the specified time for
+     * space in a bounded task queue.
+     *
+     * @param task the task to run
+     * @param timeoutMillis how long to wait for space in the queue
+     * @return true if the task was queued
+     */
+    public boolean executeTask(Runnable task, long timeoutMillis) {
+
+        try {
+            if (executor.runTask(task, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+
+            log.info(getLogPreString() + " | executeTask --- "
+                    + "Task queue still full after " + timeoutMillis + " ms");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            log.error(getLogPreString() + " | executeTask --- "
+                    + "Interrupted while waiting for space in the queue", ie);
         } catch (IllegalStateException is) {
             log.error(getLogPreString() + " | executeTask --- "
                     + "Failed to add this job to Bucket. "
                     + "Error: " + is.getMessage(), is);
         }
+
+        return false;
+    }
+
+    /**
+     * Queues a task on the thread pool only if there is space for it right
+     * away.
+     *
+     * @param task the task to run
+     * @return true if the task was queued, false if the queue is full
+     */
+    public boolean tryExecuteTask(Runnable task) {
+
+        try {
+            return executor.tryRunTask(task);
+        } catch (IllegalStateException is) {
+            log.error(getLogPreString() + " | tryExecuteTask --- "
+                    + "Failed to add this job to Bucket. "
+                    + "Error: " + is.getMessage(), is);
+        }
+
+        return false;
     }
 }
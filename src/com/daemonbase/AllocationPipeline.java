@@ -0,0 +1,301 @@
+package com.cellulant;
+
+import com.cellulant.utils.Logging;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Runs the daemon's {@link AbstractDaemon#fetchBucket()} on a stage thread
+ * of its own, so that the next bucket is allocated and loaded while the
+ * workers are still running the current one. The round trips to allocate a
+ * bucket then overlap with the processing instead of adding to it.</p>
+ *
+ * <p>The stage only fetches while the tasks waiting to run stay below a bound
+ * of a few buckets, capped by the task queue capacity and MAX_MEM_CAPACITY.
+ * Between fetches it waits on the daemon's {@link PollScheduler}, so a full
+ * bucket is followed by the next fetch at once and empty ones back off.</p>
+ *
+ * <p>With ALLOCATOR_THREADS above 1, that many stages fetch concurrently, each
+ * allocating under its own run ID, to keep a large worker pool fed. The
+ * daemon's fetchBucket() must then be safe to call from several threads. Each
+ * stage paces itself on a scheduler of its own. Before fetching, a stage
+ * reserves room for a full bucket against the bound, so stages fetching at
+ * the same time cannot together overshoot it.</p>
+ */
+public class AllocationPipeline {
+    /**
+     * How often a stage blocked on the backlog checks it again, in
+     * milliseconds.
+     */
+    private static final long BACKLOG_CHECK_MILLIS = 50;
+    /**
+     * The daemon whose buckets are fetched.
+     */
+    private final AbstractDaemon daemon;
+    /**
+     * Paces the fetches.
+     */
+    private final PollScheduler scheduler;
+    /**
+     * Most tasks that may wait to run before the stages stop fetching.
+     */
+    private final int maxBacklog;
+    /**
+     * Most tasks a single fetch may add.
+     */
+    private final int maxBucketSize;
+    /**
+     * Number of stage threads.
+     */
+    private final int stageCount;
+    /**
+     * The scheduler each stage waits on, the daemon's for the first.
+     */
+    private final List<PollScheduler> schedulers =
+            new ArrayList<PollScheduler>();
+    /**
+     * The scheduler of the stage running on the current thread.
+     */
+    private final ThreadLocal<PollScheduler> stageScheduler =
+            new ThreadLocal<PollScheduler>();
+    /**
+     * Read-held by each stage while it fetches a bucket.
+     */
+    private final ReentrantReadWriteLock fetchLock =
+            new ReentrantReadWriteLock();
+    /**
+     * Guards {@link #fetching}.
+     */
+    private final Object reservationLock = new Object();
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * The stage threads, empty until started.
+     */
+    private final List<Thread> stages = new ArrayList<Thread>();
+    /**
+     * Number of stages fetching a bucket.
+     */
+    private int fetching;
+    /**
+     * Whether the stage should exit.
+     */
+    private volatile boolean stopped;
+    /**
+     * Whether fetching is suspended.
+     */
+    private volatile boolean paused;
+
+    /**
+     * Constructor.
+     *
+     * @param daemon the daemon whose buckets are fetched
+     * @param scheduler paces the fetches
+     * @param maxBacklog most tasks that may wait to run before the stages
+     *                   stop fetching
+     * @param log the logging class
+     */
+    public AllocationPipeline(final AbstractDaemon daemon,
+            final PollScheduler scheduler, final int maxBacklog,
+            final Logging log) {
+        this(daemon, scheduler, maxBacklog, 1, maxBacklog, log);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param daemon the daemon whose buckets are fetched
+     * @param scheduler paces the fetches of the first stage, and gives the
+     *                  poll intervals of the others
+     * @param maxBacklog most tasks that may wait to run before the stages
+     *                   stop fetching
+     * @param stageCount number of stages fetching concurrently
+     * @param maxBucketSize most tasks a single fetch may add
+     * @param log the logging class
+     */
+    public AllocationPipeline(final AbstractDaemon daemon,
+            final PollScheduler scheduler, final int maxBacklog,
+            final int stageCount, final int maxBucketSize,
+            final Logging log) {
+        this.daemon = daemon;
+        this.scheduler = scheduler;
+        this.maxBacklog = Math.max(1, maxBacklog);
+        this.stageCount = Math.max(1, stageCount);
+        this.maxBucketSize = Math.max(1, maxBucketSize);
+        this.log = log;
+
+        schedulers.add(scheduler);
+        for (int i = 1; i < this.stageCount; i++) {
+            schedulers.add(new PollScheduler(scheduler.getMinInterval(),
+                    scheduler.getMaxInterval()));
+        }
+    }
+
+    /**
+     * Starts the stage threads, or resumes them if they were paused.
+     */
+    public synchronized void start() {
+        paused = false;
+        if (!stages.isEmpty() || stopped) {
+            return;
+        }
+
+        for (int i = 0; i < stageCount; i++) {
+            final PollScheduler stageSchedule = schedulers.get(i);
+            Thread stage = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    stageScheduler.set(stageSchedule);
+                    runStage(stageSchedule);
+                }
+            }, daemon.getClass().getSimpleName() + "-Allocator"
+                    + (stageCount > 1 ? "-" + (i + 1) : ""));
+            stage.setDaemon(true);
+            stage.start();
+            stages.add(stage);
+        }
+
+        log.info(daemon.getLogPreString() + "Prefetching buckets on "
+                + stageCount + " allocator thread(s) while up to "
+                + maxBacklog + " tasks are waiting");
+    }
+
+    /**
+     * Suspends fetching, and waits for the fetches in progress to finish.
+     */
+    public void pause() {
+        paused = true;
+        wakeUp();
+        fetchLock.writeLock().lock();
+        fetchLock.writeLock().unlock();
+    }
+
+    /**
+     * Ends the current wait of every stage early.
+     */
+    public void wakeUp() {
+        for (PollScheduler stageSchedule : schedulers) {
+            stageSchedule.wakeUp();
+        }
+    }
+
+    /**
+     * Get the scheduler to record an allocation with: that of the stage
+     * running on the current thread, or the daemon's.
+     *
+     * @return the scheduler
+     */
+    public PollScheduler getScheduler() {
+        PollScheduler stageSchedule = stageScheduler.get();
+        return stageSchedule != null ? stageSchedule : scheduler;
+    }
+
+    /**
+     * Stops the stage threads, and waits for the fetches in progress to
+     * finish.
+     */
+    public void stop() {
+        List<Thread> threads;
+        synchronized (this) {
+            stopped = true;
+            threads = new ArrayList<Thread>(stages);
+        }
+
+        pause();
+        for (Thread thread : threads) {
+            thread.interrupt();
+            try {
+                thread.join(2000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Check whether the stages are fetching buckets.
+     *
+     * @return true if started and not paused or stopped
+     */
+    public synchronized boolean isRunning() {
+        return !stages.isEmpty() && !paused && !stopped;
+    }
+
+    /**
+     * Get the number of stage threads.
+     *
+     * @return the stage count
+     */
+    public int getStageCount() {
+        return stageCount;
+    }
+
+    /**
+     * Reserves room for a bucket against the backlog bound. A stage may
+     * always fetch while no other is and the backlog is below the bound, so a
+     * bound smaller than a bucket still lets buckets through one at a time.
+     *
+     * @return true if the stage may fetch
+     */
+    private boolean reserve() {
+        int backlog = daemon.getBacklog();
+        synchronized (reservationLock) {
+            long projected = backlog + (long) (fetching + 1) * maxBucketSize;
+            if (backlog >= maxBacklog
+                    || (fetching > 0 && projected > maxBacklog)) {
+                return false;
+            }
+
+            fetching++;
+            return true;
+        }
+    }
+
+    /**
+     * Hands back the room reserved for a bucket once it is fetched.
+     */
+    private void unreserve() {
+        synchronized (reservationLock) {
+            fetching--;
+        }
+    }
+
+    /**
+     * Fetches buckets until stopped.
+     *
+     * @param stageSchedule the scheduler this stage waits on
+     */
+    private void runStage(final PollScheduler stageSchedule) {
+        while (!stopped) {
+            try {
+                if (paused || !reserve()) {
+                    Thread.sleep(BACKLOG_CHECK_MILLIS);
+                    continue;
+                }
+
+                fetchLock.readLock().lock();
+                try {
+                    if (!paused && !stopped) {
+                        daemon.fetchBucket();
+                    }
+                } catch (RuntimeException ex) {
+                    log.error(daemon.getLogPreString() + "Allocator failed "
+                            + "to fetch a bucket: " + ex.getMessage(), ex);
+                } finally {
+                    fetchLock.readLock().unlock();
+                    unreserve();
+                }
+
+                stageSchedule.awaitNextCycle();
+            } catch (InterruptedException ex) {
+                if (!stopped) {
+                    log.error(daemon.getLogPreString() + "Allocator "
+                            + "interrupted: " + ex.getMessage());
+                }
+            }
+        }
+    }
+}
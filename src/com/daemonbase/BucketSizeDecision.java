@@ -0,0 +1,87 @@
+package com.cellulant;
+
+import com.cellulant.utils.DaemonConstants;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A bucket size chosen by a {@link BucketSizer}, together with the
+ * measurements it was based on.
+ */
+public final class BucketSizeDecision {
+    /**
+     * When the decision was taken, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+    /**
+     * The bucket size of the previous allocation.
+     */
+    private final int previousSize;
+    /**
+     * The bucket size chosen.
+     */
+    private final int newSize;
+    /**
+     * Number of tasks still waiting to run.
+     */
+    private final int backlog;
+    /**
+     * Smoothed tasks completed per second.
+     */
+    private final double drainRate;
+    /**
+     * Why this size was chosen.
+     */
+    private final String reason;
+
+    /**
+     * Constructor.
+     *
+     * @param previousSize the bucket size of the previous allocation
+     * @param newSize the bucket size chosen
+     * @param backlog number of tasks still waiting to run
+     * @param drainRate smoothed tasks completed per second
+     * @param reason why this size was chosen
+     */
+    public BucketSizeDecision(final int previousSize, final int newSize,
+            final int backlog, final double drainRate, final String reason) {
+        this.timestamp = System.currentTimeMillis();
+        this.previousSize = previousSize;
+        this.newSize = newSize;
+        this.backlog = backlog;
+        this.drainRate = drainRate;
+        this.reason = reason;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getPreviousSize() {
+        return previousSize;
+    }
+
+    public int getNewSize() {
+        return newSize;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public double getDrainRate() {
+        return drainRate;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        SimpleDateFormat sdf = new SimpleDateFormat(DaemonConstants.DATE_FORMAT);
+        return String.format("%s bucket size %d -> %d (%s): backlog %d, "
+                + "draining %.1f tasks/s", sdf.format(new Date(timestamp)),
+                previousSize, newSize, reason, backlog, drainRate);
+    }
+}
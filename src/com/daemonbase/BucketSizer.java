@@ -0,0 +1,293 @@
+package com.cellulant;
+
+import com.cellulant.utils.Logging;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>Chooses the size of each bucket from how fast the previous buckets
+ * drained, so that the workers have enough to do until the next allocation
+ * without claiming rows that then sit idle in the queue.</p>
+ *
+ * <p>Before each allocation the sizer measures the tasks completed since the
+ * last one. The smoothed drain rate times the time between allocations,
+ * plus some headroom, is the work needed for the next cycle. The tasks still
+ * queued are subtracted from it. If the last bucket was claimed in full and
+ * the queue has run dry, the drain rate was limited by the bucket size rather
+ * than by the workers, so the size doubles to find the real capacity. The
+ * result never takes the backlog above MAX_MEM_CAPACITY, and stays between
+ * MIN_BUCKET_SIZE and MAX_BUCKET_SIZE.</p>
+ */
+public class BucketSizer implements BucketSizerMBean {
+    /**
+     * Extra work claimed on top of the measured demand.
+     */
+    private static final double HEADROOM = 1.25;
+    /**
+     * Weight of the latest measurement in the smoothed drain rate.
+     */
+    private static final double SMOOTHING = 0.5;
+    /**
+     * Smallest relative change worth making to the bucket size.
+     */
+    private static final double DEADBAND = 0.1;
+    /**
+     * Number of decisions kept for inspection.
+     */
+    private static final int HISTORY_SIZE = 50;
+    /**
+     * Smallest bucket.
+     */
+    private final int minSize;
+    /**
+     * Largest bucket.
+     */
+    private final int maxSize;
+    /**
+     * Most tasks to hold in memory at once.
+     */
+    private final int maxMemCapacity;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * The current bucket size.
+     */
+    private volatile int size;
+    /**
+     * Smoothed tasks completed per second.
+     */
+    private volatile double drainRate;
+    /**
+     * Backlog at the last decision.
+     */
+    private volatile int backlog;
+    /**
+     * Rows claimed by the last allocation, -1 before the first.
+     */
+    private volatile int lastClaimed = -1;
+    /**
+     * Number of decisions taken.
+     */
+    private volatile long decisionCount;
+    /**
+     * The last decision, null before the first.
+     */
+    private volatile BucketSizeDecision lastDecision;
+    /**
+     * Completed task count at the last decision.
+     */
+    private long lastCompleted;
+    /**
+     * When the last decision was taken, from System.nanoTime(), 0 before the
+     * first.
+     */
+    private long lastCheck;
+    /**
+     * The most recent decisions that changed the size, oldest first.
+     */
+    private final LinkedList<BucketSizeDecision> history =
+            new LinkedList<BucketSizeDecision>();
+    /**
+     * The name the bean is registered under, null if not registered.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Constructor.
+     *
+     * @param initialSize the size of the first bucket
+     * @param minSize the smallest bucket
+     * @param maxSize the largest bucket
+     * @param maxMemCapacity the most tasks to hold in memory at once
+     * @param log the logging class
+     */
+    public BucketSizer(final int initialSize, final int minSize,
+            final int maxSize, final int maxMemCapacity, final Logging log) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid bucket bounds: min "
+                    + minSize + ", max " + maxSize);
+        }
+
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxMemCapacity = maxMemCapacity;
+        this.log = log;
+        this.size = Math.max(minSize, Math.min(maxSize, initialSize));
+    }
+
+    /**
+     * Decides the size of the next bucket.
+     *
+     * @param completedTasks total number of tasks finished so far
+     * @param queued number of tasks still waiting to run
+     * @return the bucket size
+     */
+    public synchronized int nextBucketSize(final long completedTasks,
+            final int queued) {
+        long now = System.nanoTime();
+        backlog = queued;
+        if (lastCheck == 0) {
+            lastCheck = now;
+            lastCompleted = completedTasks;
+            return size;
+        }
+
+        double elapsed = Math.max(1e-3, (now - lastCheck) / 1e9);
+        double rate = (completedTasks - lastCompleted) / elapsed;
+        lastCheck = now;
+        lastCompleted = completedTasks;
+        drainRate = drainRate == 0 ? rate
+                : (1 - SMOOTHING) * drainRate + SMOOTHING * rate;
+
+        // Work needed until the next allocation, less what is still queued
+        long wanted = (long) Math.ceil(drainRate * elapsed * HEADROOM) - queued;
+        String reason = "matching drain rate";
+        if (queued == 0 && lastClaimed >= size) {
+            wanted = Math.max(wanted, 2L * size);
+            reason = "workers starved";
+        }
+
+        long room = (long) maxMemCapacity - queued;
+        if (wanted > room) {
+            wanted = room;
+            reason = "memory capacity";
+        }
+
+        int next = (int) Math.max(minSize, Math.min(maxSize, wanted));
+        if (Math.abs(next - size) < Math.max(1, size * DEADBAND)) {
+            // Ignore jitter in the measurements
+            next = size;
+        }
+        decide(next, reason);
+        return next;
+    }
+
+    /**
+     * Records how many rows the last allocation claimed.
+     *
+     * @param claimed the number of rows claimed
+     */
+    public void recordClaim(final int claimed) {
+        lastClaimed = claimed;
+    }
+
+    /**
+     * Records a decision, and logs it if the size changed.
+     *
+     * @param next the new bucket size
+     * @param reason why it was chosen
+     */
+    private void decide(final int next, final String reason) {
+        BucketSizeDecision decision = new BucketSizeDecision(size, next,
+                backlog, drainRate, reason);
+        decisionCount++;
+        lastDecision = decision;
+        if (next == size) {
+            return;
+        }
+
+        size = next;
+        synchronized (history) {
+            history.addLast(decision);
+            if (history.size() > HISTORY_SIZE) {
+                history.removeFirst();
+            }
+        }
+
+        log.info("BucketSizer | " + decision);
+    }
+
+    /**
+     * Get the most recent decisions that changed the bucket size, oldest
+     * first.
+     *
+     * @return a copy of the decision history
+     */
+    public List<BucketSizeDecision> getDecisions() {
+        synchronized (history) {
+            return new ArrayList<BucketSizeDecision>(history);
+        }
+    }
+
+    /**
+     * Registers the bean with the platform MBean server as
+     * com.cellulant:type=BucketSizer,name=daemonName.
+     *
+     * @param daemonName the name of the daemon
+     *
+     * @throws JMException if the bean cannot be registered
+     */
+    public synchronized void register(final String daemonName)
+            throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.cellulant:type=BucketSizer,name="
+                + ObjectName.quote(daemonName));
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+
+        server.registerMBean(this, name);
+        objectName = name;
+    }
+
+    /**
+     * Removes the bean from the platform MBean server.
+     *
+     * @throws JMException if the bean cannot be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public int getBucketSize() {
+        return size;
+    }
+
+    @Override
+    public int getMinBucketSize() {
+        return minSize;
+    }
+
+    @Override
+    public int getMaxBucketSize() {
+        return maxSize;
+    }
+
+    @Override
+    public int getLastClaimed() {
+        return lastClaimed;
+    }
+
+    @Override
+    public int getBacklog() {
+        return backlog;
+    }
+
+    @Override
+    public double getDrainRate() {
+        return drainRate;
+    }
+
+    @Override
+    public long getDecisionCount() {
+        return decisionCount;
+    }
+
+    @Override
+    public String getLastDecision() {
+        BucketSizeDecision decision = lastDecision;
+        return decision == null ? null : decision.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.cellulant;
+
+/**
+ * JMX view of the adaptive bucket sizing.
+ */
+public interface BucketSizerMBean {
+
+    int getBucketSize();
+
+    int getMinBucketSize();
+
+    int getMaxBucketSize();
+
+    int getLastClaimed();
+
+    int getBacklog();
+
+    double getDrainRate();
+
+    long getDecisionCount();
+
+    String getLastDecision();
+}
@@ -0,0 +1,485 @@
+package com.cellulant;
+
+import com.cellulant.db.DATABASE;
+import com.cellulant.db.IndexAdvisor;
+import com.cellulant.utils.Logging;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * <p>Leases the rows of each bucket to the instance that claimed it, so that
+ * a crashed instance's rows can be told apart from a live one's and
+ * recovered without a startup-wide reset.</p>
+ *
+ * <p>Allocation stamps the claimed rows with a leaseExpiry CLAIM_LEASE_TIME
+ * seconds ahead. A heartbeat renews the lease of every bucket this instance
+ * holds, at a third of the lease time, until none of its rows are left
+ * unprocessed. Rows whose lease has expired belong to an instance that
+ * stopped. Each allocation cycle returns a limited number of them to the
+ * pool, through an index on (processed, bucketID, leaseExpiry) that only
+ * holds the claimed unprocessed rows in range. Their keys are selected
+ * first and then updated, checking the condition again, so no UPDATE ...
+ * LIMIT is needed and the same SQL works on every database.</p>
+ *
+ * <p>Rows claimed without a lease, by a custom allocation query or before
+ * claim leases were enabled, are never reclaimed, as they may belong to a
+ * live instance. Those found at startup in this instance's own run ID range
+ * are given one lease, so that they are reclaimed if nothing finishes them
+ * within the lease time. Other instances' ranges are left to them.</p>
+ *
+ * <p>The main table needs the column, which is checked at startup:</p>
+ * <pre>
+ * ALTER TABLE table ADD COLUMN leaseExpiry DATETIME NULL;
+ * </pre>
+ *
+ * <p>Lease times are taken from the daemon's clock, so the clocks of the
+ * instances sharing a table must agree to well within the lease time.</p>
+ */
+public class ClaimLeaseManager {
+    /**
+     * The leading columns of the index the reclaim query needs.
+     */
+    public static final List<String> RECLAIM_INDEX_COLUMNS =
+            Arrays.asList("processed", "bucketID", "leaseExpiry");
+    /**
+     * The database connection pool.
+     */
+    private final DATABASE database;
+    /**
+     * The main daemon table.
+     */
+    private final String table;
+    /**
+     * The primary key column of the table.
+     */
+    private final String primaryKey;
+    /**
+     * How long a claim lasts without a heartbeat, in seconds.
+     */
+    private final int leaseSeconds;
+    /**
+     * Status of unprocessed records.
+     */
+    private final int unprocessedStatus;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * The run IDs of the buckets this instance holds.
+     */
+    private final Set<Integer> heldRunIDs = new LinkedHashSet<Integer>();
+    /**
+     * Renews the leases.
+     */
+    private Timer heartbeat;
+    /**
+     * When expired leases may next be looked for, from
+     * System.currentTimeMillis().
+     */
+    private volatile long nextReclaim;
+    /**
+     * Number of rows returned to the pool after their lease expired.
+     */
+    private volatile long reclaimedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param database the database connection pool
+     * @param table the main daemon table
+     * @param primaryKey the primary key column of the table
+     * @param leaseSeconds how long a claim lasts without a heartbeat
+     * @param unprocessedStatus status of unprocessed records
+     * @param log the logging class
+     */
+    public ClaimLeaseManager(final DATABASE database, final String table,
+            final String primaryKey, final int leaseSeconds,
+            final int unprocessedStatus, final Logging log) {
+        if (leaseSeconds < 1) {
+            throw new IllegalArgumentException("Invalid lease time: "
+                    + leaseSeconds);
+        }
+
+        this.database = database;
+        this.table = table;
+        this.primaryKey = primaryKey;
+        this.leaseSeconds = leaseSeconds;
+        this.unprocessedStatus = unprocessedStatus;
+        this.log = log;
+    }
+
+    /**
+     * Checks the table for the leaseExpiry column and the reclaim index, and
+     * starts the heartbeat.
+     *
+     * @param createIndex whether to create a missing index
+     * @return false if the table has no leaseExpiry column, in which case
+     *         claim leases cannot be used
+     */
+    public boolean start(final boolean createIndex) {
+        IndexAdvisor advisor = new IndexAdvisor(database, log);
+        try {
+            if (!advisor.hasColumn(table, "leaseExpiry")) {
+                log.error("ClaimLeaseManager | " + table + " has no "
+                        + "leaseExpiry column, so claim leases are disabled. "
+                        + "Add it with: ALTER TABLE " + table
+                        + " ADD COLUMN leaseExpiry DATETIME NULL");
+                return false;
+            }
+        } catch (SQLException e) {
+            log.error("ClaimLeaseManager | Failed to check the columns of "
+                    + table + ", claim leases are disabled: "
+                    + e.getMessage(), e);
+            return false;
+        }
+
+        advisor.checkIndex(table, "reclaim", RECLAIM_INDEX_COLUMNS,
+                createIndex);
+
+        synchronized (this) {
+            if (heartbeat == null) {
+                long period = getHeartbeatMillis();
+                heartbeat = new Timer("ClaimLease-" + table, true);
+                heartbeat.scheduleAtFixedRate(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            renew();
+                        } catch (RuntimeException ex) {
+                            log.error("ClaimLeaseManager | Heartbeat failed: "
+                                    + ex.getMessage(), ex);
+                        }
+                    }
+                }, period, period);
+            }
+        }
+
+        log.info("ClaimLeaseManager | Leasing claimed rows of " + table
+                + " for " + leaseSeconds + " seconds");
+        return true;
+    }
+
+    /**
+     * Stops the heartbeat and returns the unprocessed rows of the buckets
+     * still held to the pool, for a clean shutdown.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (heartbeat != null) {
+                heartbeat.cancel();
+                heartbeat = null;
+            }
+        }
+
+        releaseHeld();
+    }
+
+    /**
+     * Returns the unprocessed rows of the buckets held to the pool, and stops
+     * renewing their leases. Used when the queued work has been dropped.
+     */
+    public void releaseHeld() {
+        List<Integer> held;
+        synchronized (this) {
+            held = new ArrayList<Integer>(heldRunIDs);
+            heldRunIDs.clear();
+        }
+
+        for (int runID : held) {
+            try {
+                executeUpdate("UPDATE " + table + " SET bucketID = 0, "
+                        + "leaseExpiry = NULL WHERE " + getHeldPredicate(),
+                        unprocessedStatus, runID);
+            } catch (SQLException e) {
+                log.error("ClaimLeaseManager | Failed to release bucket "
+                        + runID + ", it is reclaimed once its lease expires: "
+                        + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Get the lease expiry to stamp on newly claimed rows.
+     *
+     * @return the lease expiry
+     */
+    public Timestamp newExpiry() {
+        return new Timestamp(System.currentTimeMillis()
+                + leaseSeconds * 1000L);
+    }
+
+    /**
+     * Records that a bucket was claimed, so its lease is renewed.
+     *
+     * @param runID the run ID of the bucket
+     */
+    public synchronized void claimed(final int runID) {
+        heldRunIDs.add(runID);
+    }
+
+    /**
+     * Records that a bucket was reset, so its lease is no longer renewed.
+     *
+     * @param runID the run ID of the bucket
+     */
+    public synchronized void released(final int runID) {
+        heldRunIDs.remove(runID);
+    }
+
+    /**
+     * Returns up to a number of rows whose lease has expired to the pool.
+     * Unless the last call found a full batch, this looks at most once per
+     * heartbeat period. Rows with no lease are left alone.
+     *
+     * @param limit the most rows to return
+     * @return the number of rows returned
+     */
+    public int reclaimExpired(final int limit) {
+        long now = System.currentTimeMillis();
+        if (now < nextReclaim) {
+            return 0;
+        }
+        nextReclaim = now + getHeartbeatMillis();
+
+        String condition = "(processed = ? OR processed IS NULL) AND "
+                + "bucketID > 0 AND leaseExpiry < ?";
+        Timestamp cutoff = new Timestamp(now);
+        int reclaimed = 0;
+        int found;
+        try {
+            List<Object> keys = selectKeys(condition, limit,
+                    unprocessedStatus, cutoff);
+            found = keys.size();
+            if (found > 0) {
+                StringBuilder query = new StringBuilder("UPDATE ")
+                        .append(table).append(" SET bucketID = 0, leaseExpiry "
+                        + "= NULL WHERE ").append(primaryKey).append(" IN (");
+                for (int i = 0; i < found; i++) {
+                    query.append(i == 0 ? "?" : ", ?");
+                }
+                // The lease may have been renewed since the select
+                query.append(") AND ").append(condition);
+
+                List<Object> params = new ArrayList<Object>(keys);
+                params.add(unprocessedStatus);
+                params.add(cutoff);
+                reclaimed = executeUpdate(query.toString(), params.toArray());
+            }
+        } catch (SQLException e) {
+            log.error("ClaimLeaseManager | Failed to reclaim expired "
+                    + "leases: " + e.getMessage(), e);
+            return 0;
+        }
+
+        if (reclaimed > 0) {
+            reclaimedCount += reclaimed;
+            log.info("ClaimLeaseManager | Returned " + reclaimed + " rows "
+                    + "with expired leases to the pool");
+        }
+        if (found >= limit) {
+            // There may be more, look again on the next cycle
+            nextReclaim = 0;
+        }
+
+        return reclaimed;
+    }
+
+    /**
+     * Get the number of buckets whose leases are being renewed.
+     *
+     * @return the held bucket count
+     */
+    public synchronized int getHeldBucketCount() {
+        return heldRunIDs.size();
+    }
+
+    /**
+     * Get the number of rows returned to the pool after their lease expired.
+     *
+     * @return the reclaimed row count
+     */
+    public long getReclaimedCount() {
+        return reclaimedCount;
+    }
+
+    /**
+     * Renews the leases of the buckets held. A bucket with no unprocessed
+     * rows left is done, and is dropped.
+     */
+    private void renew() {
+        List<Integer> held;
+        synchronized (this) {
+            held = new ArrayList<Integer>(heldRunIDs);
+        }
+
+        Timestamp expiry = newExpiry();
+        for (int runID : held) {
+            try {
+                int renewed = executeUpdate("UPDATE " + table + " SET "
+                        + "leaseExpiry = ? WHERE " + getHeldPredicate(),
+                        expiry, unprocessedStatus, runID);
+                if (renewed == 0) {
+                    released(runID);
+                }
+            } catch (SQLException e) {
+                log.error("ClaimLeaseManager | Failed to renew the lease on "
+                        + "bucket " + runID + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Gives the claimed unprocessed rows of a run ID range that have no lease
+     * one lease, for the rows claimed before claim leases were enabled.
+     * Nothing renews it, so they are reclaimed once it expires. Only this
+     * instance's own range may be given, as the unleased rows of another
+     * range may belong to a live instance.
+     *
+     * @param minRunID the lowest run ID of the range
+     * @param maxRunID the highest run ID of the range
+     */
+    public void leaseUnleasedRows(final int minRunID, final int maxRunID) {
+        try {
+            int leased = executeUpdate("UPDATE " + table + " SET "
+                    + "leaseExpiry = ? WHERE (processed = ? OR processed IS "
+                    + "NULL) AND bucketID BETWEEN ? AND ? AND leaseExpiry IS "
+                    + "NULL", newExpiry(), unprocessedStatus,
+                    Math.max(1, minRunID), maxRunID);
+            if (leased > 0) {
+                log.info("ClaimLeaseManager | Leased " + leased + " claimed "
+                        + "rows of " + table + " that had no lease, they are "
+                        + "reclaimed in " + leaseSeconds + " seconds unless "
+                        + "processed");
+            }
+        } catch (SQLException e) {
+            log.error("ClaimLeaseManager | Failed to lease the claimed rows "
+                    + "without a lease: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the condition for the unprocessed rows of a bucket. Its parameters
+     * are the unprocessed status and the run ID.
+     *
+     * @return the SQL condition
+     */
+    private static String getHeldPredicate() {
+        return "(processed = ? OR processed IS NULL) AND bucketID = ?";
+    }
+
+    /**
+     * Get the heartbeat period.
+     *
+     * @return a third of the lease time, in milliseconds
+     */
+    private long getHeartbeatMillis() {
+        return Math.max(1000, leaseSeconds * 1000L / 3);
+    }
+
+    /**
+     * Selects the keys of up to a number of matching rows.
+     *
+     * @param condition the WHERE clause
+     * @param limit the most keys to select
+     * @param params the parameters of the WHERE clause
+     * @return the keys
+     *
+     * @throws SQLException on error
+     */
+    private List<Object> selectKeys(final String condition, final int limit,
+            final Object... params) throws SQLException {
+        List<Object> keys = new ArrayList<Object>();
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = database.getConnection();
+            stmt = conn.prepareStatement("SELECT " + primaryKey + " FROM "
+                    + table + " WHERE " + condition + " LIMIT ?");
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+            stmt.setInt(params.length + 1, limit);
+
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                keys.add(rs.getObject(1));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException e) {
+                    log.error("ClaimLeaseManager | Failed to close result "
+                            + "set: " + e.getMessage());
+                }
+            }
+            closeStatement(stmt, conn);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Runs an update statement.
+     *
+     * @param query the query
+     * @param params the parameters
+     * @return the number of rows affected
+     *
+     * @throws SQLException on error
+     */
+    private int executeUpdate(final String query, final Object... params)
+            throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = database.getConnection();
+            stmt = conn.prepareStatement(query);
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+
+            return stmt.executeUpdate();
+        } finally {
+            closeStatement(stmt, conn);
+        }
+    }
+
+    /**
+     * Closes a statement and its connection, logging any errors.
+     *
+     * @param stmt the statement, may be null
+     * @param conn the connection, may be null
+     */
+    private void closeStatement(final PreparedStatement stmt,
+            final Connection conn) {
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                log.error("ClaimLeaseManager | Failed to close "
+                        + "statement: " + e.getMessage());
+            }
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                log.error("ClaimLeaseManager | Failed to close "
+                        + "connection: " + e.getMessage());
+            }
+        }
+    }
+}
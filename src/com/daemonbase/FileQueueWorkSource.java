@@ -0,0 +1,348 @@
+package com.cellulant;
+
+import com.cellulant.utils.Logging;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A work source kept in a local directory, one file per item, so queued
+ * work survives a restart without a database. The directory has three
+ * subdirectories:</p>
+ * <ul>
+ * <li><b>tmp</b>: items being written by {@link #submit(String)}.</li>
+ * <li><b>new</b>: items waiting to be claimed. A finished item is renamed in
+ * from tmp, so a claim never sees half of one.</li>
+ * <li><b>cur</b>: claimed items. A claim renames the file from new, which is
+ * atomic, so only one claimer gets it.</li>
+ * </ul>
+ *
+ * <p>File names start with the submission time, so items are claimed
+ * roughly in the order they were submitted. The name ends with the number of
+ * deliveries so far. Acknowledging an item deletes its file, and rejecting
+ * or releasing it renames it back to new, as does closing the source for the
+ * items still claimed. Items still in cur when the source is opened were
+ * claimed by a run that stopped, and are moved back to new, so only one
+ * daemon may use a directory.</p>
+ *
+ * <p>The payload is the text of the file, in UTF-8.</p>
+ */
+public class FileQueueWorkSource implements WorkSource {
+    /**
+     * Encoding of the payloads.
+     */
+    private static final String ENCODING = "UTF-8";
+    /**
+     * Separates the parts of a file name.
+     */
+    private static final String SEPARATOR = ".";
+    /**
+     * Directory of the items being written.
+     */
+    private final File tmpDir;
+    /**
+     * Directory of the items waiting to be claimed.
+     */
+    private final File newDir;
+    /**
+     * Directory of the claimed items.
+     */
+    private final File curDir;
+    /**
+     * The daemon to wake up when work arrives, null for none.
+     */
+    private final AbstractDaemon daemon;
+    /**
+     * Most deliveries of an item, 0 for no limit.
+     */
+    private final int maxDeliveries;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * Keeps the names of items submitted in the same millisecond apart.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * The items claimed and not yet handed back, by item ID.
+     */
+    private final Map<Object, WorkItem> claimed =
+            new HashMap<Object, WorkItem>();
+
+    /**
+     * Constructor. Creates the queue directories if needed, and moves items
+     * left claimed by an earlier run back to the queue.
+     *
+     * @param directory the queue directory
+     * @param daemon the daemon to wake up when work arrives, null for none
+     * @param maxDeliveries the most deliveries of an item, 0 for no limit
+     * @param log the logging class
+     *
+     * @throws IOException if the directories cannot be created
+     */
+    public FileQueueWorkSource(final File directory,
+            final AbstractDaemon daemon, final int maxDeliveries,
+            final Logging log) throws IOException {
+        this.tmpDir = createDirectory(new File(directory, "tmp"));
+        this.newDir = createDirectory(new File(directory, "new"));
+        this.curDir = createDirectory(new File(directory, "cur"));
+        this.daemon = daemon;
+        this.maxDeliveries = maxDeliveries;
+        this.log = log;
+
+        int recovered = 0;
+        for (String name : list(curDir)) {
+            if (new File(curDir, name).renameTo(new File(newDir, name))) {
+                recovered++;
+            }
+        }
+        if (recovered > 0) {
+            log.info("FileQueueWorkSource | Returned " + recovered
+                    + " items left claimed in " + curDir + " to the queue");
+        }
+    }
+
+    /**
+     * Adds an item of work.
+     *
+     * @param payload the work
+     * @return the ID of the item
+     *
+     * @throws IOException if the item cannot be written
+     */
+    public String submit(final String payload) throws IOException {
+        String id = String.format("%013d-%06d", System.currentTimeMillis(),
+                sequence.incrementAndGet() % 1000000);
+        String name = id + SEPARATOR + 0;
+        File tmp = new File(tmpDir, name);
+
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(payload.getBytes(ENCODING));
+            out.flush();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(new File(newDir, name))) {
+            tmp.delete();
+            throw new IOException("Failed to queue " + name + " in " + newDir);
+        }
+
+        if (daemon != null) {
+            daemon.wakeUp();
+        }
+        return id;
+    }
+
+    @Override
+    public List<WorkItem> claim(final int maxItems) {
+        List<WorkItem> items = new ArrayList<WorkItem>();
+        for (String name : list(newDir)) {
+            if (items.size() >= maxItems) {
+                break;
+            }
+
+            int separator = name.lastIndexOf(SEPARATOR);
+            if (separator < 0) {
+                continue;
+            }
+
+            String id = name.substring(0, separator);
+            int deliveries = parseDeliveries(name.substring(separator + 1)) + 1;
+            File claimed = new File(curDir, id + SEPARATOR + deliveries);
+            if (!new File(newDir, name).renameTo(claimed)) {
+                // Claimed by someone else
+                continue;
+            }
+
+            try {
+                items.add(new WorkItem(id, read(claimed), deliveries));
+            } catch (IOException e) {
+                log.error("FileQueueWorkSource | Failed to read " + claimed
+                        + ", returning it to the queue: " + e.getMessage());
+                claimed.renameTo(new File(newDir, name));
+            }
+        }
+
+        synchronized (this.claimed) {
+            for (WorkItem item : items) {
+                this.claimed.put(item.getId(), item);
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public boolean ack(final WorkItem item) {
+        handBack(item);
+        return getClaimedFile(item).delete();
+    }
+
+    @Override
+    public boolean nack(final WorkItem item) {
+        handBack(item);
+        File claimed = getClaimedFile(item);
+        if (maxDeliveries > 0 && item.getDeliveryCount() >= maxDeliveries) {
+            log.error("FileQueueWorkSource | Dropping " + item.getId()
+                    + " after " + item.getDeliveryCount() + " deliveries");
+            return claimed.delete();
+        }
+
+        return claimed.renameTo(new File(newDir, claimed.getName()));
+    }
+
+    @Override
+    public boolean release(final WorkItem item) {
+        handBack(item);
+        return returnToQueue(item);
+    }
+
+    /**
+     * Returns the items claimed and not yet handed back to the queue.
+     */
+    @Override
+    public void close() {
+        List<WorkItem> items;
+        synchronized (claimed) {
+            items = new ArrayList<WorkItem>(claimed.values());
+            claimed.clear();
+        }
+
+        int released = 0;
+        for (WorkItem item : items) {
+            if (returnToQueue(item)) {
+                released++;
+            }
+        }
+        if (!items.isEmpty()) {
+            log.info("FileQueueWorkSource | Returned " + released + " of "
+                    + items.size() + " items still claimed to the queue");
+        }
+    }
+
+    /**
+     * Get the number of items waiting to be claimed.
+     *
+     * @return the waiting item count
+     */
+    public int getWaitingCount() {
+        return list(newDir).size();
+    }
+
+    /**
+     * Renames a claimed item back to new.
+     *
+     * @param item the item
+     * @return true if it was returned
+     */
+    private boolean returnToQueue(final WorkItem item) {
+        // Not a delivery, so the count goes back
+        return getClaimedFile(item).renameTo(new File(newDir,
+                item.getId() + SEPARATOR + (item.getDeliveryCount() - 1)));
+    }
+
+    /**
+     * Stops tracking a claimed item, as it is handed back.
+     *
+     * @param item the item
+     */
+    private void handBack(final WorkItem item) {
+        synchronized (claimed) {
+            claimed.remove(item.getId());
+        }
+    }
+
+    /**
+     * Get the file of a claimed item.
+     *
+     * @param item the item
+     * @return the file in cur
+     */
+    private File getClaimedFile(final WorkItem item) {
+        return new File(curDir, item.getId() + SEPARATOR
+                + item.getDeliveryCount());
+    }
+
+    /**
+     * Lists a directory in name order.
+     *
+     * @param dir the directory
+     * @return the file names
+     */
+    private static List<String> list(final File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return Collections.emptyList();
+        }
+
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    /**
+     * Reads the delivery count from a file name.
+     *
+     * @param count the part of the name after the last separator
+     * @return the delivery count, 0 if unreadable
+     */
+    private static int parseDeliveries(final String count) {
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the payload of an item.
+     *
+     * @param file the item file
+     * @return the payload
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private static String read(final File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return new String(data, 0, read, ENCODING);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates a directory if it does not exist.
+     *
+     * @param dir the directory
+     * @return the directory
+     *
+     * @throws IOException if it cannot be created
+     */
+    private static File createDirectory(final File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,181 @@
+package com.cellulant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A work source held in memory. Work is pushed in with
+ * {@link #submit(Object)}, which also wakes the daemon up if it is waiting
+ * between polls. Nothing survives a restart, so this is meant for
+ * benchmarking the processing without a database and for work that can be
+ * recreated.</p>
+ *
+ * <p>A rejected item goes to the back of the queue until it has been
+ * delivered MAX_NUMBER_OF_SENDS times, after which it is dropped. A released
+ * item goes back to the front.</p>
+ */
+public class InMemoryWorkSource implements WorkSource {
+    /**
+     * The daemon to wake up when work arrives, null for none.
+     */
+    private final AbstractDaemon daemon;
+    /**
+     * Most deliveries of an item, 0 for no limit.
+     */
+    private final int maxDeliveries;
+    /**
+     * Items waiting to be claimed, oldest first.
+     */
+    private final LinkedList<WorkItem> waiting = new LinkedList<WorkItem>();
+    /**
+     * Claimed items, by ID.
+     */
+    private final Map<Object, WorkItem> claimed =
+            new LinkedHashMap<Object, WorkItem>();
+    /**
+     * The ID of the last item submitted.
+     */
+    private long lastId;
+    /**
+     * Number of items acknowledged.
+     */
+    private long ackCount;
+    /**
+     * Number of items dropped after too many deliveries.
+     */
+    private long droppedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param daemon the daemon to wake up when work arrives, null for none
+     * @param maxDeliveries the most deliveries of an item, 0 for no limit
+     */
+    public InMemoryWorkSource(final AbstractDaemon daemon,
+            final int maxDeliveries) {
+        this.daemon = daemon;
+        this.maxDeliveries = maxDeliveries;
+    }
+
+    /**
+     * Adds an item of work.
+     *
+     * @param payload the work
+     * @return the ID of the item
+     */
+    public long submit(final Object payload) {
+        long id;
+        synchronized (this) {
+            id = ++lastId;
+            waiting.addLast(new WorkItem(id, payload, 0));
+        }
+
+        if (daemon != null) {
+            daemon.wakeUp();
+        }
+        return id;
+    }
+
+    @Override
+    public synchronized List<WorkItem> claim(final int maxItems) {
+        if (waiting.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<WorkItem> items = new ArrayList<WorkItem>(
+                Math.min(maxItems, waiting.size()));
+        while (items.size() < maxItems && !waiting.isEmpty()) {
+            WorkItem next = waiting.removeFirst();
+            WorkItem item = new WorkItem(next.getId(), next.getPayload(),
+                    next.getDeliveryCount() + 1);
+            claimed.put(item.getId(), item);
+            items.add(item);
+        }
+
+        return items;
+    }
+
+    @Override
+    public synchronized boolean ack(final WorkItem item) {
+        if (claimed.remove(item.getId()) == null) {
+            return false;
+        }
+
+        ackCount++;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean nack(final WorkItem item) {
+        if (claimed.remove(item.getId()) == null) {
+            return false;
+        }
+
+        if (maxDeliveries > 0 && item.getDeliveryCount() >= maxDeliveries) {
+            droppedCount++;
+        } else {
+            waiting.addLast(item);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean release(final WorkItem item) {
+        if (claimed.remove(item.getId()) == null) {
+            return false;
+        }
+
+        // Not a delivery, so the count goes back
+        waiting.addFirst(new WorkItem(item.getId(), item.getPayload(),
+                item.getDeliveryCount() - 1));
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        List<WorkItem> items = new ArrayList<WorkItem>(claimed.values());
+        for (WorkItem item : items) {
+            release(item);
+        }
+    }
+
+    /**
+     * Get the number of items waiting to be claimed.
+     *
+     * @return the waiting item count
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Get the number of items claimed and not yet handed back.
+     *
+     * @return the claimed item count
+     */
+    public synchronized int getClaimedCount() {
+        return claimed.size();
+    }
+
+    /**
+     * Get the number of items acknowledged.
+     *
+     * @return the acknowledged item count
+     */
+    public synchronized long getAckCount() {
+        return ackCount;
+    }
+
+    /**
+     * Get the number of items dropped after too many deliveries.
+     *
+     * @return the dropped item count
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
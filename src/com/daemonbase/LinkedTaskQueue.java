@@ -0,0 +1,126 @@
+package com.cellulant;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An unbounded task queue guarded by a single monitor. This is the original
+ * ThreadPool queue and remains the default.
+ */
+public class LinkedTaskQueue implements TaskQueue {
+    /**
+     * The list of tasks to perform.
+     */
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    /**
+     * Flag to check if the queue can accept new tasks.
+     */
+    private boolean closed;
+    /**
+     * Number of consumers waiting on the monitor.
+     */
+    private int waitingConsumers;
+
+    @Override
+    public synchronized boolean offer(final Runnable task) {
+        if (closed) {
+            throw new IllegalStateException("Task queue is closed");
+        }
+
+        tasks.add(task);
+        /*
+         * Use notify() here NOT notifyAll() because all the waiting threads
+         * are interchangeable (the order they wake up doesn't matter). When a
+         * task is added, only one of the threads should be notified to wake
+         * up, execute the task and the go back to sleep.
+         */
+        notify();
+        return true;
+    }
+
+    @Override
+    public boolean offer(final Runnable task, final long timeout,
+            final TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public void put(final Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public synchronized void putAll(final Collection<? extends Runnable> batch) {
+        if (closed) {
+            throw new IllegalStateException("Task queue is closed");
+        }
+
+        tasks.addAll(batch);
+        // Wake one waiting thread per new task, and no more
+        int toWake = Math.min(batch.size(), waitingConsumers);
+        for (int i = 0; i < toWake; i++) {
+            notify();
+        }
+    }
+
+    @Override
+    public synchronized Runnable take() throws InterruptedException {
+        while (tasks.isEmpty()) {
+            if (closed) {
+                return null;
+            }
+
+            waitingConsumers++;
+            try {
+                wait();
+            } finally {
+                waitingConsumers--;
+            }
+        }
+
+        return tasks.removeFirst();
+    }
+
+    @Override
+    public synchronized Runnable poll(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (tasks.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (closed || remaining <= 0) {
+                return null;
+            }
+
+            waitingConsumers++;
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } finally {
+                waitingConsumers--;
+            }
+        }
+
+        return tasks.removeFirst();
+    }
+
+    @Override
+    public synchronized int size() {
+        return tasks.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized void clear() {
+        tasks.clear();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
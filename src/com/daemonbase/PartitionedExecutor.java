@@ -0,0 +1,308 @@
+package com.cellulant;
+
+import com.cellulant.utils.Logging;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Runs tasks that are submitted with a key, such as a customer ID, on a
+ * {@link TaskExecutor}. Tasks with the same key run one at a time in the order
+ * they were submitted, while tasks with different keys run in parallel on all
+ * the executor's workers.</p>
+ *
+ * <p>Each key with pending work has its own queue. Only one task per key is
+ * ever handed to the executor. Once it finishes, the next task for that key
+ * is handed over, and the key's queue is dropped when it runs dry.</p>
+ *
+ * <p>A key queue is a {@link TaskSequence}, so a {@link ThreadPool} applies
+ * its task deadlines to each task rather than to a whole turn.</p>
+ */
+public class PartitionedExecutor {
+    /**
+     * Number of tasks a key may run back to back before giving other keys a
+     * turn on the worker.
+     */
+    private static final int MAX_TASKS_PER_TURN = 16;
+    /**
+     * The queues of the keys with pending or running tasks.
+     */
+    private final ConcurrentMap<Object, KeyQueue> queues =
+            new ConcurrentHashMap<Object, KeyQueue>();
+    /**
+     * Number of tasks waiting in the key queues.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    /**
+     * The executor the tasks run on.
+     */
+    private volatile TaskExecutor executor;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+
+    /**
+     * Constructor.
+     *
+     * @param executor the executor the tasks run on
+     * @param log the logging class
+     */
+    public PartitionedExecutor(final TaskExecutor executor, final Logging log) {
+        this.executor = executor;
+        this.log = log;
+    }
+
+    /**
+     * Moves future work to another executor, for example after the daemon
+     * rebuilds its thread pool.
+     *
+     * @param executor the new executor
+     */
+    public void setExecutor(final TaskExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Requests a task to run once every earlier task with the same key has
+     * finished.
+     *
+     * @param key the ordering key, for example the customer ID
+     * @param task the task to run (if null, no action is taken)
+     *
+     * @throws IllegalStateException if the executor is closed
+     */
+    public void runTask(final Object key, final Runnable task) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+
+        if (task == null) {
+            return;
+        }
+
+        while (true) {
+            KeyQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new KeyQueue(key);
+                KeyQueue existing = queues.putIfAbsent(key, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+
+            synchronized (queue) {
+                if (queue.retired) {
+                    // The queue ran dry and was dropped, start a new one
+                    continue;
+                }
+
+                queue.tasks.addLast(task);
+                pending.incrementAndGet();
+                if (queue.scheduled) {
+                    return;
+                }
+
+                queue.scheduled = true;
+            }
+
+            try {
+                executor.runTask(queue);
+            } catch (RuntimeException ex) {
+                queue.reject(task);
+                throw ex;
+            }
+
+            return;
+        }
+    }
+
+    /**
+     * Drops the tasks waiting in every key queue, for when the executor's
+     * queue has been cleared and the key queues it held will never run. A
+     * key whose task is running keeps its queue until the task returns, so
+     * the key's next task still waits for it.
+     *
+     * @return the number of tasks dropped
+     */
+    public int clear() {
+        int dropped = 0;
+        for (KeyQueue queue : queues.values()) {
+            dropped += queue.abandon();
+        }
+        return dropped;
+    }
+
+    /**
+     * Get the number of tasks waiting behind an earlier task with the same
+     * key.
+     *
+     * @return the number of waiting tasks
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Get the number of keys with pending or running tasks.
+     *
+     * @return the number of active keys
+     */
+    public int getActiveKeyCount() {
+        return queues.size();
+    }
+
+    /**
+     * The pending tasks of one key. Running the queue runs its next tasks.
+     */
+    private final class KeyQueue implements TaskSequence {
+        /**
+         * The key.
+         */
+        private final Object key;
+        /**
+         * Tasks waiting to run, in arrival order.
+         */
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        /**
+         * Whether the queue has been handed to the executor.
+         */
+        private boolean scheduled;
+        /**
+         * Whether the queue has been dropped from the map.
+         */
+        private boolean retired;
+        /**
+         * Whether a worker is running one of the queue's tasks.
+         */
+        private boolean active;
+        /**
+         * Number of tasks handed out in the current turn. Only touched by
+         * the worker running the queue.
+         */
+        private int turnCount;
+
+        /**
+         * Constructor.
+         *
+         * @param key the key
+         */
+        KeyQueue(final Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            while ((task = nextTask()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.error("PartitionedExecutor | Task for key " + key
+                            + " failed: " + t.getMessage(), t);
+                }
+            }
+        }
+
+        @Override
+        public Runnable nextTask() {
+            if (turnCount >= MAX_TASKS_PER_TURN) {
+                turnCount = 0;
+                synchronized (this) {
+                    active = false;
+                    if (tasks.isEmpty()) {
+                        retire();
+                        return null;
+                    }
+                }
+
+                if (requeue()) {
+                    return null;
+                }
+            }
+
+            Runnable task;
+            synchronized (this) {
+                task = tasks.pollFirst();
+                if (task == null) {
+                    turnCount = 0;
+                    active = false;
+                    retire();
+                    return null;
+                }
+                active = true;
+            }
+
+            pending.decrementAndGet();
+            turnCount++;
+            return task;
+        }
+
+        /**
+         * Hands the queue back to the executor to give other keys a turn.
+         *
+         * @return false if the executor has no room, in which case the caller
+         *         keeps going on this worker rather than blocking it
+         */
+        private boolean requeue() {
+            try {
+                return executor.tryRunTask(this);
+            } catch (IllegalStateException ex) {
+                log.error("PartitionedExecutor | Executor closed, finishing "
+                        + "key " + key + " on the current thread");
+                return false;
+            }
+        }
+
+        /**
+         * Drops the queue from the map. Must hold the queue's monitor.
+         */
+        private void retire() {
+            scheduled = false;
+            retired = true;
+            queues.remove(key, this);
+        }
+
+        /**
+         * Drops a task after the executor refused the queue. Tasks accepted
+         * earlier stay queued, and are handed over with the key's next
+         * task.
+         *
+         * @param task the task refused
+         */
+        private synchronized void reject(final Runnable task) {
+            Iterator<Runnable> it = tasks.descendingIterator();
+            while (it.hasNext()) {
+                if (it.next() == task) {
+                    it.remove();
+                    pending.decrementAndGet();
+                    break;
+                }
+            }
+
+            scheduled = false;
+            if (tasks.isEmpty()) {
+                retire();
+            }
+        }
+
+        /**
+         * Drops the queue's waiting tasks. The queue itself is dropped unless
+         * one of its tasks is running, in which case the worker drops it once
+         * the task returns and finds nothing left.
+         *
+         * @return the number of tasks dropped
+         */
+        private synchronized int abandon() {
+            int dropped = tasks.size();
+            pending.addAndGet(-dropped);
+            tasks.clear();
+            if (!active) {
+                retire();
+            }
+            return dropped;
+        }
+    }
+}
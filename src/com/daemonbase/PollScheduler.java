@@ -0,0 +1,161 @@
+package com.cellulant;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Decides how long the daemon waits between polling cycles, from what the
+ * last allocation claimed:</p>
+ * <ul>
+ * <li>A full bucket means more rows are probably waiting, so the next cycle
+ * starts straight away.</li>
+ * <li>A partly filled bucket means the table has just been drained, so the
+ * next cycle starts after the minimum interval.</li>
+ * <li>An empty bucket doubles the wait, up to the maximum interval. A random
+ * jitter keeps several instances from polling in step.</li>
+ * </ul>
+ *
+ * <p>A cycle that allocated nothing at all, for example because the queue was
+ * full, also waits the minimum interval. {@link #wakeUp()} ends the current
+ * wait early, for example when new rows are known to have arrived.</p>
+ */
+public class PollScheduler {
+    /**
+     * Shortest wait after a cycle that did not fill its bucket, in
+     * milliseconds.
+     */
+    private final long minInterval;
+    /**
+     * Longest wait, in milliseconds.
+     */
+    private final long maxInterval;
+    /**
+     * Random source for the jitter.
+     */
+    private final Random random = new Random();
+    /**
+     * Guards the wait.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled by wakeUp().
+     */
+    private final Condition wakeUpCondition = lock.newCondition();
+    /**
+     * The wait before the next cycle, -1 if no allocation was recorded since
+     * the last one.
+     */
+    private long nextDelay = -1;
+    /**
+     * The wait after the last empty bucket, 0 if the last bucket had rows.
+     */
+    private long backoff;
+    /**
+     * Set by wakeUp() until the next wait.
+     */
+    private boolean wokenUp;
+
+    /**
+     * Constructor.
+     *
+     * @param minInterval the shortest wait after a cycle that did not fill its
+     *                    bucket, in milliseconds
+     * @param maxInterval the longest wait, in milliseconds
+     */
+    public PollScheduler(final long minInterval, final long maxInterval) {
+        if (minInterval < 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid poll intervals: min "
+                    + minInterval + ", max " + maxInterval);
+        }
+
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Records the outcome of an allocation.
+     *
+     * @param claimed the number of rows claimed
+     * @param requested the bucket size asked for, or -1 if not known
+     */
+    public void recordAllocation(final int claimed, final int requested) {
+        lock.lock();
+        try {
+            if (requested > 0 && claimed >= requested) {
+                backoff = 0;
+                nextDelay = 0;
+            } else if (claimed > 0) {
+                backoff = 0;
+                nextDelay = minInterval;
+            } else {
+                backoff = backoff == 0 ? Math.max(1, minInterval)
+                        : Math.min(maxInterval, backoff * 2);
+                // Wait between half and all of the backoff
+                nextDelay = Math.min(maxInterval, backoff / 2
+                        + (long) (random.nextDouble() * (backoff / 2 + 1)));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the next cycle is due, or until {@link #wakeUp()} is
+     * called.
+     *
+     * @return how long the cycle was due to wait, in milliseconds
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long awaitNextCycle() throws InterruptedException {
+        lock.lock();
+        try {
+            long delay = nextDelay < 0 ? minInterval : nextDelay;
+            nextDelay = -1;
+
+            long remaining = TimeUnit.MILLISECONDS.toNanos(delay);
+            while (!wokenUp && remaining > 0) {
+                remaining = wakeUpCondition.awaitNanos(remaining);
+            }
+            wokenUp = false;
+            return delay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the next cycle now. If the daemon is not waiting, its next wait
+     * is skipped.
+     */
+    public void wakeUp() {
+        lock.lock();
+        try {
+            wokenUp = true;
+            backoff = 0;
+            wakeUpCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the shortest wait after a cycle that did not fill its bucket.
+     *
+     * @return the minimum interval in milliseconds
+     */
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * Get the longest wait.
+     *
+     * @return the maximum interval in milliseconds
+     */
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+}
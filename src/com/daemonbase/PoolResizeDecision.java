@@ -0,0 +1,110 @@
+package com.cellulant;
+
+import com.cellulant.utils.DaemonConstants;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A resize decision taken by an adaptively sized {@link ThreadPool}, together
+ * with the measurements it was based on.
+ */
+public final class PoolResizeDecision {
+    /**
+     * When the decision was taken, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+    /**
+     * Number of workers before the decision.
+     */
+    private final int previousSize;
+    /**
+     * Number of workers after the decision.
+     */
+    private final int newSize;
+    /**
+     * Number of tasks waiting in the queue.
+     */
+    private final int queueDepth;
+    /**
+     * Average time a task waited in the queue, in milliseconds.
+     */
+    private final double avgQueueWaitMillis;
+    /**
+     * Average time a task took to run, in milliseconds.
+     */
+    private final double avgServiceMillis;
+    /**
+     * Tasks completed per second.
+     */
+    private final double throughput;
+    /**
+     * Why the pool was resized.
+     */
+    private final String reason;
+
+    /**
+     * Constructor.
+     *
+     * @param previousSize number of workers before the decision
+     * @param newSize number of workers after the decision
+     * @param queueDepth number of tasks waiting in the queue
+     * @param avgQueueWaitMillis average queue wait in milliseconds
+     * @param avgServiceMillis average service time in milliseconds
+     * @param throughput tasks completed per second
+     * @param reason why the pool was resized
+     */
+    public PoolResizeDecision(final int previousSize, final int newSize,
+            final int queueDepth, final double avgQueueWaitMillis,
+            final double avgServiceMillis, final double throughput,
+            final String reason) {
+        this.timestamp = System.currentTimeMillis();
+        this.previousSize = previousSize;
+        this.newSize = newSize;
+        this.queueDepth = queueDepth;
+        this.avgQueueWaitMillis = avgQueueWaitMillis;
+        this.avgServiceMillis = avgServiceMillis;
+        this.throughput = throughput;
+        this.reason = reason;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getPreviousSize() {
+        return previousSize;
+    }
+
+    public int getNewSize() {
+        return newSize;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public double getAvgQueueWaitMillis() {
+        return avgQueueWaitMillis;
+    }
+
+    public double getAvgServiceMillis() {
+        return avgServiceMillis;
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        SimpleDateFormat sdf = new SimpleDateFormat(DaemonConstants.DATE_FORMAT);
+        return String.format("%s resized %d -> %d workers (%s): queue depth "
+                + "%d, avg wait %.1f ms, avg service %.1f ms, %.1f tasks/s",
+                sdf.format(new Date(timestamp)), previousSize, newSize, reason,
+                queueDepth, avgQueueWaitMillis, avgServiceMillis, throughput);
+    }
+}
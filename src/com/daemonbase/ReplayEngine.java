@@ -0,0 +1,957 @@
+package com.cellulant;
+
+import com.cellulant.db.DATABASE;
+import com.cellulant.utils.DaemonConstants;
+import com.cellulant.utils.FailedQueryJournal;
+import com.cellulant.utils.FailedUpdate;
+import com.cellulant.utils.Logging;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>Replays the failed query journal in the background, so that draining a
+ * backlog after an outage does not hold up allocation. The daemon only asks
+ * for a replay with {@link #requestReplay()}; a coordinator thread reads the
+ * journal and hands the work to REPLAY_THREADS replay threads.</p>
+ *
+ * <p>Each round reads REPLAY_BATCH_SIZE records per replay thread. Runs of
+ * consecutive updates with the same template, and runs of consecutive plain
+ * queries, are replayed as one statement batch on one connection and in one
+ * transaction. A round is replayed one segment at a time, a segment being a
+ * contiguous stretch of updates with the same template, so an update never
+ * overtakes one with a different template journalled before it. Within a
+ * segment, updates are split across the replay threads by the parameters
+ * of the template's WHERE clause, so the updates of one row stay on one
+ * thread in journal order while different rows replay in parallel. The
+ * checkpoint moves past a round once every run in it is done, so a crash
+ * or a stop during a round replays that round again.</p>
+ *
+ * <p>If a batch fails while the database is unreachable, it is retried after
+ * SLEEP_TIME milliseconds, doubling up to a minute, up to
+ * MAX_NUMBER_OF_SENDS times. If the database is reachable, or the retries
+ * run out, the updates of the batch are run one at a time, and those that
+ * still fail are journalled again for the next replay. An update whose
+ * parameters cannot be bound would fail the same way every time, so it is
+ * logged and skipped rather than holding up the journal. Replay is held to
+ * REPLAY_RATE_LIMIT updates per second, which can be changed over JMX.</p>
+ */
+public class ReplayEngine implements ReplayEngineMBean {
+    /**
+     * Longest wait between retries of a batch, in milliseconds.
+     */
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+    /**
+     * Longest wait for a connection to prove valid, in seconds.
+     */
+    private static final int VALIDATION_TIMEOUT = 5;
+    /**
+     * Longest wait for the replay threads to finish on stop, in seconds.
+     */
+    private static final long STOP_TIMEOUT = 30;
+    /**
+     * The WHERE keyword of a template.
+     */
+    private static final Pattern WHERE_CLAUSE =
+            Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+    /**
+     * Outcomes of replaying a single update.
+     */
+    private static final int REPLAYED = 0;
+    private static final int FAILED = 1;
+    private static final int UNBINDABLE = 2;
+    /**
+     * The daemon whose failed updates are replayed.
+     */
+    private final AbstractDaemon daemon;
+    /**
+     * The database connection pool.
+     */
+    private final DATABASE database;
+    /**
+     * The journal replayed.
+     */
+    private final FailedQueryJournal journal;
+    /**
+     * Number of replay threads.
+     */
+    private final int threads;
+    /**
+     * Most updates per statement batch.
+     */
+    private final int batchSize;
+    /**
+     * Most tries of a batch while the database is unreachable.
+     */
+    private final int maxRetries;
+    /**
+     * First wait before a batch is retried, in milliseconds.
+     */
+    private final long retryInterval;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * Guards the replay requests, and wakes up waits on stop.
+     */
+    private final Object lock = new Object();
+    /**
+     * Whether a replay was requested since the last pass started.
+     */
+    private boolean requested;
+    /**
+     * Whether the engine is stopping.
+     */
+    private volatile boolean stopped;
+    /**
+     * The coordinator thread, null until started.
+     */
+    private Thread coordinator;
+    /**
+     * The replay threads, null until started.
+     */
+    private ExecutorService workers;
+    /**
+     * Most updates replayed per second, 0 for no limit.
+     */
+    private volatile int rateLimit;
+    /**
+     * When the rate limit lets the next update through, in nanoseconds.
+     */
+    private long nextPermit;
+    /**
+     * Whether a pass is running.
+     */
+    private volatile boolean replaying;
+    /**
+     * Number of updates replayed.
+     */
+    private final AtomicLong replayedCount = new AtomicLong();
+    /**
+     * Number of updates that failed again and were journalled again.
+     */
+    private final AtomicLong rejournalledCount = new AtomicLong();
+    /**
+     * Number of records skipped as unreadable, unbindable, duplicate
+     * or not an update.
+     */
+    private final AtomicLong skippedCount = new AtomicLong();
+    /**
+     * Number of batches retried while the database was unreachable.
+     */
+    private final AtomicLong retryCount = new AtomicLong();
+    /**
+     * Number of statement batches committed.
+     */
+    private final AtomicLong batchCount = new AtomicLong();
+    /**
+     * Number of passes that replayed something.
+     */
+    private volatile long passCount;
+    /**
+     * Duration of the last pass, in milliseconds.
+     */
+    private volatile long lastPassMillis;
+    /**
+     * Updates replayed per second in the last pass.
+     */
+    private volatile double lastPassRate;
+    /**
+     * The name the bean is registered under, null if not registered.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Constructor.
+     *
+     * @param daemon the daemon whose failed updates are replayed
+     * @param database the database connection pool
+     * @param journal the journal replayed
+     * @param threads the number of replay threads
+     * @param batchSize the most updates per statement batch
+     * @param rateLimit the most updates replayed per second, 0 for no limit
+     * @param maxRetries the most tries of a batch while the database is
+     *                   unreachable
+     * @param retryInterval the first wait before a batch is retried, in
+     *                      milliseconds
+     * @param log the logging class
+     */
+    public ReplayEngine(final AbstractDaemon daemon, final DATABASE database,
+            final FailedQueryJournal journal, final int threads,
+            final int batchSize, final int rateLimit, final int maxRetries,
+            final long retryInterval, final Logging log) {
+        this.daemon = daemon;
+        this.database = database;
+        this.journal = journal;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+        this.rateLimit = Math.max(0, rateLimit);
+        this.maxRetries = Math.max(1, maxRetries);
+        this.retryInterval = Math.max(1, retryInterval);
+        this.log = log;
+    }
+
+    /**
+     * Starts the coordinator and the replay threads.
+     */
+    public synchronized void start() {
+        if (coordinator != null || stopped) {
+            return;
+        }
+
+        final String name = daemon.getClass().getSimpleName();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable task) {
+                Thread thread = new Thread(task, name + "-Replay-"
+                        + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        coordinator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runCoordinator();
+            }
+        }, name + "-ReplayCoordinator");
+        coordinator.setDaemon(true);
+        coordinator.start();
+
+        log.info(daemon.getLogPreString() + "Replaying failed updates on "
+                + threads + " threads, in batches of " + batchSize
+                + (rateLimit > 0 ? ", at most " + rateLimit + " per second"
+                : ""));
+    }
+
+    /**
+     * Asks for a replay of the journal, and returns at once. A replay
+     * requested during a pass follows it.
+     */
+    public void requestReplay() {
+        synchronized (lock) {
+            requested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops the replay. The round in progress is abandoned at the end of its
+     * current batches and replayed again on the next start.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            stopped = true;
+            thread = coordinator;
+        }
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+
+        if (thread == null) {
+            return;
+        }
+
+        // Not interrupted, the replay threads may be writing the journal
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(STOP_TIMEOUT));
+            workers.shutdown();
+            if (!workers.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS)) {
+                log.error(daemon.getLogPreString() + "Replay threads did not "
+                        + "finish within " + STOP_TIMEOUT + " seconds");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Registers the bean with the platform MBean server as
+     * com.cellulant:type=ReplayEngine,name=daemonName.
+     *
+     * @param daemonName the name of the daemon
+     *
+     * @throws JMException if the bean cannot be registered
+     */
+    public synchronized void register(final String daemonName)
+            throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.cellulant:type=ReplayEngine,"
+                + "name=" + ObjectName.quote(daemonName));
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+
+        server.registerMBean(this, name);
+        objectName = name;
+    }
+
+    /**
+     * Removes the bean from the platform MBean server.
+     *
+     * @throws JMException if the bean cannot be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public boolean isReplaying() {
+        return replaying;
+    }
+
+    @Override
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    @Override
+    public long getRejournalledCount() {
+        return rejournalledCount.get();
+    }
+
+    @Override
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public long getPassCount() {
+        return passCount;
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return journal.getPendingBytes();
+    }
+
+    @Override
+    public long getLastPassMillis() {
+        return lastPassMillis;
+    }
+
+    @Override
+    public double getLastPassRate() {
+        return lastPassRate;
+    }
+
+    @Override
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    @Override
+    public void setRateLimit(final int rateLimit) {
+        this.rateLimit = Math.max(0, rateLimit);
+        log.info(daemon.getLogPreString() + "Replay rate limit set to "
+                + (this.rateLimit > 0 ? this.rateLimit + " updates per second"
+                : "none"));
+    }
+
+    @Override
+    public void replayNow() {
+        requestReplay();
+    }
+
+    /**
+     * Runs a pass for each request until stopped.
+     */
+    private void runCoordinator() {
+        while (true) {
+            synchronized (lock) {
+                while (!requested && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                requested = false;
+            }
+
+            try {
+                replayPass();
+            } catch (RuntimeException ex) {
+                log.error(daemon.getLogPreString() + "Failed to replay the "
+                        + "failed query journal: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Replays the journal a round at a time, moving the checkpoint past each
+     * round once it is done. Queries left in FAILED_QUERIES.TXT are moved
+     * into the journal first.
+     */
+    private void replayPass() {
+        File legacyFile = new File(DaemonConstants.FAILED_QUERIES_FILE);
+        if (!journal.hasPending() && legacyFile.length() == 0) {
+            return;
+        }
+
+        replaying = true;
+        long start = System.currentTimeMillis();
+        long replayedBefore = replayedCount.get();
+        long rejournalledBefore = rejournalledCount.get();
+        int records = 0;
+        try {
+            journal.migrate(legacyFile);
+            journal.seal();
+
+            List<byte[]> round;
+            while (!stopped && !(round = journal.read(
+                    batchSize * threads)).isEmpty()) {
+                if (records == 0) {
+                    log.info(daemon.getLogPreString() + "Replaying "
+                            + journal.getPendingBytes() + " bytes of failed "
+                            + "updates, rolling back transactions...");
+                }
+
+                if (!replayRound(round)) {
+                    journal.rewind();
+                    break;
+                }
+
+                journal.commit();
+                records += round.size();
+                log.info(daemon.getLogPreString() + "Replay progress: "
+                        + records + " records, "
+                        + (replayedCount.get() - replayedBefore)
+                        + " replayed, "
+                        + (rejournalledCount.get() - rejournalledBefore)
+                        + " journalled again, " + journal.getPendingBytes()
+                        + " bytes left");
+            }
+        } catch (IOException ex) {
+            journal.rewind();
+            log.error(daemon.getLogPreString() + "Failed to replay the failed "
+                    + "query journal: " + ex.getMessage(), ex);
+        } finally {
+            replaying = false;
+        }
+
+        if (records > 0) {
+            long replayed = replayedCount.get() - replayedBefore;
+            long millis = Math.max(1, System.currentTimeMillis() - start);
+            passCount++;
+            lastPassMillis = millis;
+            lastPassRate = replayed * 1000.0 / millis;
+            log.info(daemon.getLogPreString() + "I have finished performing "
+                    + "rollback of " + records + " queries: " + replayed
+                    + " replayed, "
+                    + (rejournalledCount.get() - rejournalledBefore)
+                    + " journalled again, in " + millis + " ms ("
+                    + String.format("%.1f", lastPassRate) + "/s)");
+        }
+    }
+
+    /**
+     * Replays a round of records, a segment at a time. A segment is one
+     * contiguous stretch of updates with the same template, or of plain
+     * queries, so updates of different templates never overtake each
+     * other.
+     *
+     * @param round the records
+     * @return false if the round was abandoned and must be replayed again
+     */
+    private boolean replayRound(final List<byte[]> round) {
+        for (Run segment : toSegments(round)) {
+            if (!replaySegment(segment)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Replays a segment on the replay threads, and waits for it. The updates
+     * of a template are split into lanes by the parameters of their WHERE
+     * clause, so all the updates of a row stay on one lane, in journal
+     * order, while different rows are replayed in parallel. Plain queries,
+     * and templates without a WHERE clause, run on one lane.
+     *
+     * @param segment the segment
+     * @return false if the segment was abandoned
+     */
+    private boolean replaySegment(final Run segment) {
+        int keyStart = segment.plain ? -1 : getWhereParamIndex(
+                segment.template);
+        int laneCount = keyStart < 0 ? 1 : threads;
+
+        List<List<FailedUpdate>> laneUpdates =
+                new ArrayList<List<FailedUpdate>>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            laneUpdates.add(new ArrayList<FailedUpdate>());
+        }
+        for (FailedUpdate update : segment.updates) {
+            int lane = 0;
+            if (laneCount > 1) {
+                List<Object> params = update.getParams();
+                Object rowKey = params.subList(
+                        Math.min(keyStart, params.size()), params.size());
+                lane = (rowKey.hashCode() & Integer.MAX_VALUE) % laneCount;
+            }
+            laneUpdates.get(lane).add(update);
+        }
+
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (List<FailedUpdate> updates : laneUpdates) {
+            if (updates.isEmpty()) {
+                continue;
+            }
+
+            final List<Run> lane = new ArrayList<Run>();
+            for (int i = 0; i < updates.size(); i += batchSize) {
+                Run run = new Run(segment.plain, segment.template);
+                run.updates.addAll(updates.subList(i,
+                        Math.min(i + batchSize, updates.size())));
+                lane.add(run);
+            }
+
+            results.add(workers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (Run run : lane) {
+                        if (!replay(run)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+
+        boolean done = true;
+        for (Future<Boolean> result : results) {
+            try {
+                done &= result.get();
+            } catch (ExecutionException ex) {
+                log.error(daemon.getLogPreString() + "Replay thread failed: "
+                        + ex.getCause().getMessage(), ex.getCause());
+                done = false;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                done = false;
+            }
+        }
+
+        return done;
+    }
+
+    /**
+     * Get the index of the first parameter of a template's WHERE clause,
+     * which identifies the rows it updates.
+     *
+     * @param template the template
+     * @return the parameter index, or -1 if the template has no WHERE
+     *         clause
+     */
+    static int getWhereParamIndex(final String template) {
+        Matcher matcher = WHERE_CLAUSE.matcher(template);
+        int where = -1;
+        while (matcher.find()) {
+            where = matcher.start();
+        }
+        if (where < 0) {
+            return -1;
+        }
+
+        int index = 0;
+        for (int i = 0; i < where; i++) {
+            if (template.charAt(i) == '?') {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Decodes a round of records and splits it into segments of consecutive
+     * updates with the same template, or of consecutive plain queries. A
+     * plain query seen earlier in the round is dropped, as is one that is
+     * not an UPDATE, as before.
+     *
+     * @param round the records
+     * @return the segments, in journal order
+     */
+    private List<Run> toSegments(final List<byte[]> round) {
+        List<Run> segments = new ArrayList<Run>();
+        Set<String> plainQueries = new HashSet<String>();
+        Run segment = null;
+        for (byte[] record : round) {
+            FailedUpdate update;
+            try {
+                update = FailedUpdate.decode(record);
+            } catch (IOException ex) {
+                log.error(daemon.getLogPreString() + "Skipping an unreadable "
+                        + "failed update record: " + ex.getMessage());
+                skippedCount.incrementAndGet();
+                continue;
+            }
+
+            boolean plain = update.isPlainQuery();
+            if (plain && (!update.getTemplate().toLowerCase().startsWith(
+                    DaemonConstants.UPDATE_ID)
+                    || !plainQueries.add(update.getTemplate()))) {
+                skippedCount.incrementAndGet();
+                continue;
+            }
+
+            if (segment == null || segment.plain != plain
+                    || (!plain && !segment.template.equals(
+                    update.getTemplate()))) {
+                segment = new Run(plain, update.getTemplate());
+                segments.add(segment);
+            }
+            segment.updates.add(update);
+        }
+
+        return segments;
+    }
+
+    /**
+     * Replays a run as one batch, retrying with backoff while the database
+     * is unreachable, and one update at a time if the batch fails otherwise.
+     *
+     * @param run the run
+     * @return false if the engine stopped before the run was done
+     */
+    private boolean replay(final Run run) {
+        if (!throttle(run.updates.size())) {
+            return false;
+        }
+
+        long backoff = retryInterval;
+        for (int attempt = 1; !stopped; attempt++) {
+            if (executeBatch(run)) {
+                replayedCount.addAndGet(run.updates.size());
+                batchCount.incrementAndGet();
+                return true;
+            }
+
+            if (isDatabaseAvailable()) {
+                return replaySingly(run);
+            }
+            if (attempt >= maxRetries) {
+                log.error(daemon.getLogPreString() + "Database still "
+                        + "unreachable after " + attempt + " tries, "
+                        + "journalling " + run.updates.size()
+                        + " failed updates again");
+                for (FailedUpdate update : run.updates) {
+                    rejournal(update);
+                }
+                return true;
+            }
+
+            retryCount.incrementAndGet();
+            log.info(daemon.getLogPreString() + "Database unreachable, "
+                    + "retrying a batch of " + run.updates.size()
+                    + " failed updates in " + backoff + " ms [ Try "
+                    + attempt + " out of " + maxRetries + " ]");
+            if (!pause(backoff)) {
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+
+        return false;
+    }
+
+    /**
+     * Replays the updates of a run one at a time, journalling again those
+     * that fail.
+     *
+     * @param run the run
+     * @return false if the engine stopped before the run was done
+     */
+    private boolean replaySingly(final Run run) {
+        log.info(daemon.getLogPreString() + "Replaying a batch of "
+                + run.updates.size() + " failed updates one at a time");
+        for (FailedUpdate update : run.updates) {
+            if (stopped) {
+                return false;
+            }
+
+            int outcome = executeOne(update);
+            if (outcome == REPLAYED) {
+                replayedCount.incrementAndGet();
+            } else if (outcome == FAILED) {
+                rejournal(update);
+            } else {
+                // Would fail the same way on every replay
+                skippedCount.incrementAndGet();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Journals an update again, for the next replay.
+     *
+     * @param update the update
+     */
+    private void rejournal(final FailedUpdate update) {
+        rejournalledCount.incrementAndGet();
+        daemon.queueFailedUpdate(update);
+    }
+
+    /**
+     * Runs a run as one statement batch in one transaction.
+     *
+     * @param run the run
+     * @return false if the batch failed and was rolled back
+     */
+    private boolean executeBatch(final Run run) {
+        Connection conn = null;
+        Statement stmt = null;
+        try {
+            conn = database.getConnection();
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                if (run.plain) {
+                    stmt = conn.createStatement();
+                    for (FailedUpdate update : run.updates) {
+                        stmt.addBatch(update.getTemplate());
+                    }
+                } else {
+                    PreparedStatement prepared =
+                            conn.prepareStatement(run.template);
+                    stmt = prepared;
+                    for (FailedUpdate update : run.updates) {
+                        daemon.setParameters(prepared, update.getParams(),
+                                false);
+                        prepared.addBatch();
+                    }
+                }
+
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } catch (RuntimeException ex) {
+                // An update whose parameters cannot be bound
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+
+            return true;
+        } catch (SQLException ex) {
+            log.error(daemon.getLogPreString() + "Replaying a batch of "
+                    + run.updates.size() + " failed updates failed: "
+                    + ex.getMessage());
+            return false;
+        } catch (RuntimeException ex) {
+            log.error(daemon.getLogPreString() + "Replaying a batch of "
+                    + run.updates.size() + " failed updates failed: "
+                    + ex, ex);
+            return false;
+        } finally {
+            close(stmt, conn);
+        }
+    }
+
+    /**
+     * Runs a single update.
+     *
+     * @param update the update
+     * @return REPLAYED, FAILED if the database failed it, or UNBINDABLE if
+     *         its parameters cannot be bound
+     */
+    private int executeOne(final FailedUpdate update) {
+        Connection conn = null;
+        Statement stmt = null;
+        try {
+            conn = database.getConnection();
+            if (update.isPlainQuery()) {
+                stmt = conn.createStatement();
+                stmt.executeUpdate(update.getTemplate());
+            } else {
+                PreparedStatement prepared =
+                        conn.prepareStatement(update.getTemplate());
+                stmt = prepared;
+                daemon.setParameters(prepared, update.getParams(), false);
+                prepared.executeUpdate();
+            }
+
+            return REPLAYED;
+        } catch (SQLException ex) {
+            log.error(daemon.getLogPreString() + "Failed to replay failed "
+                    + "update: " + update + ": " + ex.getMessage());
+            return FAILED;
+        } catch (RuntimeException ex) {
+            log.error(daemon.getLogPreString() + "Skipping failed update "
+                    + "that cannot be bound: " + update + ": " + ex, ex);
+            return UNBINDABLE;
+        } finally {
+            close(stmt, conn);
+        }
+    }
+
+    /**
+     * Check whether a valid connection can be had.
+     *
+     * @return true if the database is reachable
+     */
+    private boolean isDatabaseAvailable() {
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            return conn.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException ex) {
+            return false;
+        } finally {
+            close(null, conn);
+        }
+    }
+
+    /**
+     * Waits until the rate limit lets a number of updates through.
+     *
+     * @param permits the number of updates
+     * @return false if the engine stopped while waiting
+     */
+    private boolean throttle(final int permits) {
+        int limit = rateLimit;
+        if (limit <= 0) {
+            return true;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextPermit - now < 0) {
+                nextPermit = now;
+            }
+            wait = nextPermit - now;
+            nextPermit += permits * TimeUnit.SECONDS.toNanos(1) / limit;
+        }
+
+        return wait <= 0 || pause(TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+    }
+
+    /**
+     * Waits, unless the engine stops meanwhile.
+     *
+     * @param millis the wait, in milliseconds
+     * @return false if the engine stopped
+     */
+    private boolean pause(final long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (lock) {
+            long remaining = millis;
+            while (!stopped && remaining > 0) {
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+
+        return !stopped;
+    }
+
+    /**
+     * Closes a statement and its connection, logging any errors.
+     *
+     * @param stmt the statement, may be null
+     * @param conn the connection, may be null
+     */
+    private void close(final Statement stmt, final Connection conn) {
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                log.error(daemon.getLogPreString() + e.getMessage());
+            }
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                log.error(daemon.getLogPreString() + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Consecutive updates replayed as one batch.
+     */
+    private static final class Run {
+        /**
+         * Whether the updates are plain queries, each its own SQL.
+         */
+        private final boolean plain;
+        /**
+         * The template shared by the updates, or the first plain query.
+         */
+        private final String template;
+        /**
+         * The updates, in journal order.
+         */
+        private final List<FailedUpdate> updates =
+                new ArrayList<FailedUpdate>();
+
+        /**
+         * Constructor.
+         *
+         * @param plain whether the updates are plain queries
+         * @param template the template shared by the updates
+         */
+        Run(final boolean plain, final String template) {
+            this.plain = plain;
+            this.template = template;
+        }
+    }
+}
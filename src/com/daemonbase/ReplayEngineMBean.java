@@ -0,0 +1,33 @@
+package com.cellulant;
+
+/**
+ * JMX view of the failed query replay.
+ */
+public interface ReplayEngineMBean {
+
+    boolean isReplaying();
+
+    long getReplayedCount();
+
+    long getRejournalledCount();
+
+    long getSkippedCount();
+
+    long getRetryCount();
+
+    long getBatchCount();
+
+    long getPassCount();
+
+    long getPendingBytes();
+
+    long getLastPassMillis();
+
+    double getLastPassRate();
+
+    int getRateLimit();
+
+    void setRateLimit(int rateLimit);
+
+    void replayNow();
+}
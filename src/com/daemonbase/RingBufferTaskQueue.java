@@ -0,0 +1,413 @@
+package com.cellulant;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A bounded, array backed, multi-producer/multi-consumer task queue.</p>
+ *
+ * <p>Every slot carries a sequence number that tells producers and consumers
+ * whether the slot is free or holds a task for the current lap, so adding and
+ * removing tasks only needs a compare-and-set on the head or tail cursor. The
+ * lock is only taken when a thread has to sleep because the queue is empty or
+ * full, and by the thread that wakes it up.</p>
+ */
+public class RingBufferTaskQueue implements TaskQueue {
+    /**
+     * The maximum number of tasks the queue can hold.
+     */
+    private final int capacity;
+    /**
+     * The queued tasks.
+     */
+    private final AtomicReferenceArray<Runnable> buffer;
+    /**
+     * The sequence number of each slot.
+     */
+    private final AtomicLongArray sequences;
+    /**
+     * Position of the next task to take.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Position of the next free slot.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Lock used only to park and wake up waiting threads.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a task is added.
+     */
+    private final Condition notEmpty = lock.newCondition();
+    /**
+     * Signalled when a task is removed.
+     */
+    private final Condition notFull = lock.newCondition();
+    /**
+     * Number of consumers sleeping on notEmpty.
+     */
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    /**
+     * Number of producers sleeping on notFull.
+     */
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    /**
+     * Flag to check if the queue can accept new tasks.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of tasks the queue can hold
+     */
+    public RingBufferTaskQueue(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: "
+                    + capacity);
+        }
+
+        this.capacity = capacity;
+        buffer = new AtomicReferenceArray<Runnable>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(final Runnable task) {
+        checkOpen();
+
+        if (enqueue(task)) {
+            signalNotEmpty();
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean offer(final Runnable task, final long timeout,
+            final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        while (true) {
+            checkOpen();
+
+            if (enqueue(task)) {
+                signalNotEmpty();
+                return true;
+            }
+
+            if (nanos <= 0) {
+                return false;
+            }
+
+            lock.lockInterruptibly();
+            try {
+                waitingProducers.incrementAndGet();
+                try {
+                    // Re-check under the lock so a wake up cannot be missed
+                    if (!closed && remainingCapacity() == 0) {
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } finally {
+                    waitingProducers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void put(final Runnable task) throws InterruptedException {
+        while (true) {
+            checkOpen();
+
+            if (enqueue(task)) {
+                signalNotEmpty();
+                return;
+            }
+
+            lock.lockInterruptibly();
+            try {
+                waitingProducers.incrementAndGet();
+                try {
+                    if (!closed && remainingCapacity() == 0) {
+                        notFull.await();
+                    }
+                } finally {
+                    waitingProducers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void putAll(final Collection<? extends Runnable> tasks)
+            throws InterruptedException {
+        checkOpen();
+
+        Iterator<? extends Runnable> it = tasks.iterator();
+        int added = 0;
+        while (it.hasNext()) {
+            Runnable task = it.next();
+            if (!enqueue(task)) {
+                // Full: wake the consumers for what is in, then wait for space
+                signalNotEmpty(added);
+                added = 0;
+                put(task);
+                continue;
+            }
+
+            added++;
+        }
+
+        signalNotEmpty(added);
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        while (true) {
+            Runnable task = dequeue();
+            if (task != null) {
+                signalNotFull();
+                return task;
+            }
+
+            if (closed) {
+                return null;
+            }
+
+            lock.lockInterruptibly();
+            try {
+                waitingConsumers.incrementAndGet();
+                try {
+                    if (!closed && size() == 0) {
+                        notEmpty.await();
+                    }
+                } finally {
+                    waitingConsumers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        while (true) {
+            Runnable task = dequeue();
+            if (task != null) {
+                signalNotFull();
+                return task;
+            }
+
+            if (closed || nanos <= 0) {
+                return null;
+            }
+
+            lock.lockInterruptibly();
+            try {
+                waitingConsumers.incrementAndGet();
+                try {
+                    if (!closed && size() == 0) {
+                        nanos = notEmpty.awaitNanos(nanos);
+                    }
+                } finally {
+                    waitingConsumers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+
+        return (int) Math.min(size, capacity);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Get the maximum number of tasks the queue can hold.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void clear() {
+        int removed = 0;
+        while (dequeue() != null) {
+            removed++;
+        }
+
+        if (removed > 0 && waitingProducers.get() > 0) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Claims the slot at the tail and stores the task in it.
+     *
+     * @param task the task to store
+     * @return false if the queue is full
+     */
+    private boolean enqueue(final Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos % capacity);
+            long diff = sequences.get(index) - pos;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.set(index, task);
+                    // Publish the slot to consumers
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // The slot still holds a task from the previous lap
+                return false;
+            }
+
+            pos = tail.get();
+        }
+    }
+
+    /**
+     * Claims the slot at the head and removes the task from it.
+     *
+     * @return the task, or null if the queue is empty
+     */
+    private Runnable dequeue() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) (pos % capacity);
+            long diff = sequences.get(index) - (pos + 1);
+
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Runnable task = buffer.get(index);
+                    buffer.set(index, null);
+                    // Hand the slot back to producers for the next lap
+                    sequences.set(index, pos + capacity);
+                    return task;
+                }
+            } else if (diff < 0) {
+                // The slot has not been filled yet
+                return null;
+            }
+
+            pos = head.get();
+        }
+    }
+
+    /**
+     * Wakes up one sleeping consumer, if there is one.
+     */
+    private void signalNotEmpty() {
+        if (waitingConsumers.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wakes up to the specified number of sleeping consumers with a single
+     * lock acquisition.
+     *
+     * @param added the number of tasks just added
+     */
+    private void signalNotEmpty(final int added) {
+        int toWake = Math.min(added, waitingConsumers.get());
+        if (toWake > 0) {
+            lock.lock();
+            try {
+                for (int i = 0; i < toWake; i++) {
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wakes up one sleeping producer, if there is one.
+     */
+    private void signalNotFull() {
+        if (waitingProducers.get() > 0) {
+            lock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Throws if the queue no longer accepts tasks.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Task queue is closed");
+        }
+    }
+}
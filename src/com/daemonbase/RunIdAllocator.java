@@ -0,0 +1,266 @@
+package com.cellulant;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Hands out the run IDs that mark allocated buckets, in turn from a range
+ * and wrapping around at its end, skipping the IDs of buckets still in
+ * flight. A bucket that shares its ID with an earlier one that is still being
+ * worked would be reset along with it, so an ID is only reused once its
+ * bucket is done.</p>
+ *
+ * <p>An ID is in flight from {@link #next()} until it is released: at once
+ * if its allocation claimed nothing, when {@link #completed(int)} has been
+ * called for every record claimed, or when the bucket is reset. Daemons that
+ * do not report completions leave their IDs in flight, so when the range runs
+ * out the caller takes a {@link #checkpoint()}, checks which buckets still
+ * have unprocessed records, and releases the rest with
+ * {@link #retainInFlight(Collection, long)}. An ID whose claim is still
+ * pending, or was recorded after the checkpoint, may have rows the lookup
+ * did not see, so it is kept.</p>
+ *
+ * <p>All methods are synchronized, so several allocator threads can share
+ * one instance.</p>
+ */
+public class RunIdAllocator {
+    /**
+     * Records not yet completed in each bucket in flight, by run ID. A
+     * bucket whose claim is not yet known maps to 0.
+     */
+    private final Map<Integer, Integer> outstanding =
+            new HashMap<Integer, Integer>();
+    /**
+     * When the claim of each bucket in flight was recorded, as a value of
+     * {@link #version}. Buckets whose claim is pending have no entry.
+     */
+    private final Map<Integer, Long> claimedAt = new HashMap<Integer, Long>();
+    /**
+     * Counts the claims recorded.
+     */
+    private long version;
+    /**
+     * The lowest run ID handed out.
+     */
+    private int minRunID;
+    /**
+     * The highest run ID handed out.
+     */
+    private int maxRunID;
+    /**
+     * The last run ID handed out.
+     */
+    private int lastRunID;
+    /**
+     * Number of times the range wrapped around.
+     */
+    private long wrapCount;
+
+    /**
+     * Constructor.
+     *
+     * @param minRunID the lowest run ID to hand out
+     * @param maxRunID the highest run ID to hand out
+     * @param startupRunID the run ID to start after
+     */
+    public RunIdAllocator(final int minRunID, final int maxRunID,
+            final int startupRunID) {
+        setRange(minRunID, maxRunID, startupRunID);
+    }
+
+    /**
+     * Changes the range of run IDs and forgets the buckets in flight, for
+     * when they have all been reset.
+     *
+     * @param min the lowest run ID to hand out
+     * @param max the highest run ID to hand out
+     * @param startAfter the run ID to start after
+     */
+    public final synchronized void setRange(final int min, final int max,
+            final int startAfter) {
+        if (max < min) {
+            throw new IllegalArgumentException("Invalid run ID range: " + min
+                    + " to " + max);
+        }
+
+        minRunID = min;
+        maxRunID = max;
+        lastRunID = startAfter;
+        outstanding.clear();
+        claimedAt.clear();
+    }
+
+    /**
+     * Get the next run ID that is not in flight, and marks it in flight.
+     *
+     * @return the run ID, or -1 if every ID in the range is in flight
+     */
+    public synchronized int next() {
+        long size = (long) maxRunID - minRunID + 1;
+        if (outstanding.size() >= size) {
+            return -1;
+        }
+
+        int candidate = lastRunID;
+        for (long i = 0; i < size; i++) {
+            if (candidate < minRunID || candidate >= maxRunID) {
+                if (candidate >= maxRunID) {
+                    wrapCount++;
+                }
+                candidate = minRunID;
+            } else {
+                candidate++;
+            }
+
+            if (!outstanding.containsKey(candidate)) {
+                outstanding.put(candidate, 0);
+                lastRunID = candidate;
+                return candidate;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Records how many records were claimed under a run ID. An ID that
+     * claimed nothing is released.
+     *
+     * @param runID the run ID
+     * @param claimed the number of records claimed
+     */
+    public synchronized void claimed(final int runID, final int claimed) {
+        if (claimed <= 0) {
+            release(runID);
+        } else {
+            outstanding.put(runID, claimed);
+            claimedAt.put(runID, ++version);
+        }
+    }
+
+    /**
+     * Records that a record of a bucket is done. The run ID is released once
+     * all its records are.
+     *
+     * @param runID the run ID
+     */
+    public synchronized void completed(final int runID) {
+        Integer remaining = outstanding.get(runID);
+        if (remaining == null) {
+            return;
+        }
+
+        if (remaining <= 1) {
+            release(runID);
+        } else {
+            outstanding.put(runID, remaining - 1);
+        }
+    }
+
+    /**
+     * Releases a run ID, for when its bucket is reset.
+     *
+     * @param runID the run ID
+     */
+    public synchronized void release(final int runID) {
+        outstanding.remove(runID);
+        claimedAt.remove(runID);
+    }
+
+    /**
+     * Marks the claims recorded so far, to be taken before looking up the
+     * buckets that still have unprocessed records.
+     *
+     * @return the checkpoint to pass to
+     *         {@link #retainInFlight(Collection, long)}
+     */
+    public synchronized long checkpoint() {
+        return version;
+    }
+
+    /**
+     * Releases the run IDs in flight that are not in a collection, for when
+     * the buckets that still have unprocessed records have been looked up.
+     * IDs whose claim is pending, or was recorded after the checkpoint, are
+     * kept, as the lookup may have missed their rows.
+     *
+     * @param stillInFlight the run IDs whose buckets are not done
+     * @param checkpoint the {@link #checkpoint()} taken before the lookup
+     * @return the number of run IDs released
+     */
+    public synchronized int retainInFlight(
+            final Collection<Integer> stillInFlight, final long checkpoint) {
+        int released = 0;
+        Iterator<Integer> it = outstanding.keySet().iterator();
+        while (it.hasNext()) {
+            Integer runID = it.next();
+            Long claimed = claimedAt.get(runID);
+            if (claimed != null && claimed <= checkpoint
+                    && !stillInFlight.contains(runID)) {
+                it.remove();
+                claimedAt.remove(runID);
+                released++;
+            }
+        }
+
+        return released;
+    }
+
+    /**
+     * Get the run IDs in flight.
+     *
+     * @return a copy of the run IDs
+     */
+    public synchronized List<Integer> getInFlight() {
+        return new ArrayList<Integer>(outstanding.keySet());
+    }
+
+    /**
+     * Get the number of run IDs in flight.
+     *
+     * @return the in-flight count
+     */
+    public synchronized int getInFlightCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * Get the last run ID handed out.
+     *
+     * @return the run ID
+     */
+    public synchronized int getLastRunID() {
+        return lastRunID;
+    }
+
+    /**
+     * Get the lowest run ID handed out.
+     *
+     * @return the run ID
+     */
+    public synchronized int getMinRunID() {
+        return minRunID;
+    }
+
+    /**
+     * Get the highest run ID handed out.
+     *
+     * @return the run ID
+     */
+    public synchronized int getMaxRunID() {
+        return maxRunID;
+    }
+
+    /**
+     * Get the number of times the range wrapped around.
+     *
+     * @return the wrap count
+     */
+    public synchronized long getWrapCount() {
+        return wrapCount;
+    }
+}
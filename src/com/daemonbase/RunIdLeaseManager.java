@@ -0,0 +1,492 @@
+package com.cellulant;
+
+import com.cellulant.db.ChunkedUpdater;
+import com.cellulant.db.DATABASE;
+import com.cellulant.utils.Logging;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+/**
+ * <p>Gives each of several daemon instances working on the same table its own
+ * range of run IDs, so that their buckets never collide.</p>
+ *
+ * <p>The run IDs between MIN_RUN_ID and MAX_RUN_ID are split into
+ * MAX_INSTANCES slots. An instance leases a free slot in the lease table and
+ * renews the lease with a heartbeat. If an instance dies its lease expires.
+ * The slot's buckets are then reset either by the next instance to lease it,
+ * or by the heartbeat of any live instance. So an instance only ever resets
+ * the buckets of its own range or of an expired lease, never those of a live
+ * instance. A reset of an expired slot stops as soon as another instance
+ * takes the slot over.</p>
+ *
+ * <p>The lease table is created if it does not exist:</p>
+ * <pre>
+ * CREATE TABLE daemonRunIDLeases (
+ *     daemonTable VARCHAR(64) NOT NULL,
+ *     slot INT NOT NULL,
+ *     instanceID VARCHAR(128) NOT NULL,
+ *     minRunID INT NOT NULL,
+ *     maxRunID INT NOT NULL,
+ *     leaseExpiry DATETIME NOT NULL,
+ *     PRIMARY KEY (daemonTable, slot)
+ * )
+ * </pre>
+ *
+ * <p>Lease times are taken from the daemon's clock, so the clocks of the
+ * instances sharing a table must agree to well within the lease time.</p>
+ */
+public class RunIdLeaseManager {
+    /**
+     * Name of the lease table.
+     */
+    public static final String LEASE_TABLE = "daemonRunIDLeases";
+    /**
+     * The database connection pool.
+     */
+    private final DATABASE database;
+    /**
+     * The main daemon table the run IDs are used on.
+     */
+    private final String daemonTable;
+    /**
+     * Identifies this instance in the lease table.
+     */
+    private final String instanceID;
+    /**
+     * Lowest run ID of the whole range.
+     */
+    private final int minRunID;
+    /**
+     * Number of run IDs per slot.
+     */
+    private final int slotSize;
+    /**
+     * Number of slots.
+     */
+    private final int slots;
+    /**
+     * How long a lease lasts without a heartbeat, in seconds.
+     */
+    private final int leaseSeconds;
+    /**
+     * Status of unprocessed records, used when resetting buckets.
+     */
+    private final int unprocessedStatus;
+    /**
+     * Runs the bucket resets in chunks.
+     */
+    private final ChunkedUpdater resetUpdater;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * The leased slot, -1 if none.
+     */
+    private volatile int slot = -1;
+    /**
+     * Renews the lease and reaps expired ones.
+     */
+    private Timer heartbeat;
+
+    /**
+     * Constructor.
+     *
+     * @param database the database connection pool
+     * @param daemonTable the main daemon table
+     * @param minRunID the lowest run ID
+     * @param maxRunID the highest run ID
+     * @param maxInstances the number of slots to split the run IDs into
+     * @param leaseSeconds how long a lease lasts without a heartbeat
+     * @param unprocessedStatus status of unprocessed records
+     * @param resetUpdater runs the bucket resets in chunks
+     * @param log the logging class
+     */
+    public RunIdLeaseManager(final DATABASE database, final String daemonTable,
+            final int minRunID, final int maxRunID, final int maxInstances,
+            final int leaseSeconds, final int unprocessedStatus,
+            final ChunkedUpdater resetUpdater, final Logging log) {
+        int range = maxRunID - minRunID + 1;
+        if (maxInstances < 1 || range < maxInstances) {
+            throw new IllegalArgumentException("Cannot split run IDs "
+                    + minRunID + " to " + maxRunID + " between "
+                    + maxInstances + " instances");
+        }
+
+        this.database = database;
+        this.daemonTable = daemonTable;
+        this.minRunID = minRunID;
+        this.slots = maxInstances;
+        this.slotSize = range / maxInstances;
+        this.leaseSeconds = leaseSeconds;
+        this.unprocessedStatus = unprocessedStatus;
+        this.resetUpdater = resetUpdater;
+        this.log = log;
+        this.instanceID = ManagementFactory.getRuntimeMXBean().getName()
+                + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * Leases a free or expired slot and starts the heartbeat. The caller is
+     * expected to reset the buckets left in the range by a previous owner,
+     * see {@link #getMinRunID()} and {@link #getMaxRunID()}.
+     *
+     * @return true if a slot was leased
+     */
+    public synchronized boolean acquire() {
+        if (slot >= 0) {
+            return true;
+        }
+
+        try {
+            createLeaseTable();
+
+            for (int i = 0; i < slots; i++) {
+                if (claimSlot(i)) {
+                    slot = i;
+                    log.info("RunIdLeaseManager | " + instanceID
+                            + " leased run IDs " + getMinRunID() + " to "
+                            + getMaxRunID() + " (slot " + i + ")");
+                    startHeartbeat();
+                    return true;
+                }
+            }
+        } catch (SQLException e) {
+            log.error("RunIdLeaseManager | Failed to lease a run ID range: "
+                    + e.getMessage(), e);
+            return false;
+        }
+
+        log.error("RunIdLeaseManager | All " + slots + " run ID ranges of "
+                + daemonTable + " are leased by live instances. Raise "
+                + "MAX_INSTANCES to run more instances.");
+        return false;
+    }
+
+    /**
+     * Stops the heartbeat and gives the slot up, for a clean shutdown.
+     */
+    public synchronized void release() {
+        stopHeartbeat();
+        if (slot < 0) {
+            return;
+        }
+
+        try {
+            executeUpdate("DELETE FROM " + LEASE_TABLE + " WHERE daemonTable "
+                    + "= ? AND slot = ? AND instanceID = ?", daemonTable, slot,
+                    instanceID);
+            log.info("RunIdLeaseManager | Released slot " + slot);
+        } catch (SQLException e) {
+            log.error("RunIdLeaseManager | Failed to release slot " + slot
+                    + ", it will expire in " + leaseSeconds + " seconds: "
+                    + e.getMessage(), e);
+        }
+
+        slot = -1;
+    }
+
+    /**
+     * Check whether this instance holds a lease.
+     *
+     * @return true if a slot is leased
+     */
+    public boolean isLeased() {
+        return slot >= 0;
+    }
+
+    /**
+     * Get the lowest run ID of the leased range.
+     *
+     * @return the lowest run ID
+     */
+    public int getMinRunID() {
+        return minRunID + slot * slotSize;
+    }
+
+    /**
+     * Get the highest run ID of the leased range.
+     *
+     * @return the highest run ID
+     */
+    public int getMaxRunID() {
+        return getMinRunID() + slotSize - 1;
+    }
+
+    /**
+     * Get the identifier of this instance in the lease table.
+     *
+     * @return the instance ID
+     */
+    public String getInstanceID() {
+        return instanceID;
+    }
+
+    /**
+     * Creates the lease table if it does not exist.
+     *
+     * @throws SQLException on error
+     */
+    private void createLeaseTable() throws SQLException {
+        executeUpdate("CREATE TABLE IF NOT EXISTS " + LEASE_TABLE + " ("
+                + "daemonTable VARCHAR(64) NOT NULL, "
+                + "slot INT NOT NULL, "
+                + "instanceID VARCHAR(128) NOT NULL, "
+                + "minRunID INT NOT NULL, "
+                + "maxRunID INT NOT NULL, "
+                + "leaseExpiry DATETIME NOT NULL, "
+                + "PRIMARY KEY (daemonTable, slot))");
+    }
+
+    /**
+     * Takes a slot that nobody holds, or whose lease has expired.
+     *
+     * @param candidate the slot
+     * @return true if the slot is now leased to this instance
+     *
+     * @throws SQLException on error
+     */
+    private boolean claimSlot(final int candidate) throws SQLException {
+        int low = minRunID + candidate * slotSize;
+        int taken = executeUpdate("UPDATE " + LEASE_TABLE + " SET instanceID "
+                + "= ?, leaseExpiry = ? WHERE daemonTable = ? AND slot = ? "
+                + "AND leaseExpiry < ?", instanceID, newExpiry(), daemonTable,
+                candidate, now());
+        if (taken > 0) {
+            return true;
+        }
+
+        try {
+            return executeUpdate("INSERT INTO " + LEASE_TABLE + " "
+                    + "(daemonTable, slot, instanceID, minRunID, maxRunID, "
+                    + "leaseExpiry) VALUES (?, ?, ?, ?, ?, ?)", daemonTable,
+                    candidate, instanceID, low, low + slotSize - 1,
+                    newExpiry()) > 0;
+        } catch (SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                // Duplicate key, a live instance holds the slot
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Resets the unprocessed records allocated to the run IDs of a slot this
+     * instance has taken over. Each chunk checks that the slot is still
+     * leased to this instance, so the reset stops rather than resetting the
+     * buckets of another instance that took the slot over once this lease
+     * expired.
+     *
+     * @param target the slot
+     *
+     * @throws SQLException on error
+     */
+    private void resetRange(final int target) throws SQLException {
+        int low = minRunID + target * slotSize;
+        int reset = resetUpdater.update("Reaping slot " + target, daemonTable,
+                "bucketID = 0", "bucketID BETWEEN ? AND ? AND (processed = ? "
+                + "OR processed IS NULL) AND EXISTS (SELECT 1 FROM "
+                + LEASE_TABLE + " WHERE daemonTable = ? AND slot = ? AND "
+                + "instanceID = ?)", low, low + slotSize - 1,
+                unprocessedStatus, daemonTable, target, instanceID);
+        if (reset > 0) {
+            log.info("RunIdLeaseManager | Reset " + reset + " partially "
+                    + "processed records of run IDs " + low + " to "
+                    + (low + slotSize - 1));
+        }
+    }
+
+    /**
+     * Starts renewing the lease at a third of its length.
+     */
+    private void startHeartbeat() {
+        stopHeartbeat();
+        long period = Math.max(1000, leaseSeconds * 1000L / 3);
+        heartbeat = new Timer("RunIdLease-" + daemonTable, true);
+        heartbeat.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    renew();
+                    reapExpired();
+                } catch (RuntimeException ex) {
+                    log.error("RunIdLeaseManager | Heartbeat failed: "
+                            + ex.getMessage(), ex);
+                }
+            }
+        }, period, period);
+    }
+
+    /**
+     * Stops the heartbeat.
+     */
+    private void stopHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.cancel();
+            heartbeat = null;
+        }
+    }
+
+    /**
+     * Extends the lease. If another instance has taken the slot over, the
+     * lease is dropped and a new one is leased on the next
+     * {@link #acquire()}.
+     */
+    private synchronized void renew() {
+        if (slot < 0) {
+            return;
+        }
+
+        try {
+            int renewed = executeUpdate("UPDATE " + LEASE_TABLE + " SET "
+                    + "leaseExpiry = ? WHERE daemonTable = ? AND slot = ? AND "
+                    + "instanceID = ?", newExpiry(), daemonTable, slot,
+                    instanceID);
+            if (renewed == 0) {
+                log.fatal("RunIdLeaseManager | Lost the lease on slot " + slot
+                        + ", it expired and was taken over");
+                slot = -1;
+                stopHeartbeat();
+            }
+        } catch (SQLException e) {
+            log.error("RunIdLeaseManager | Failed to renew the lease on slot "
+                    + slot + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Resets the buckets of leases whose owners stopped renewing them, and
+     * drops those leases.
+     */
+    private void reapExpired() {
+        List<Integer> expired = new ArrayList<Integer>();
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = database.getConnection();
+            stmt = conn.prepareStatement("SELECT slot FROM " + LEASE_TABLE
+                    + " WHERE daemonTable = ? AND leaseExpiry < ?");
+            stmt.setString(1, daemonTable);
+            stmt.setTimestamp(2, now());
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                expired.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            log.error("RunIdLeaseManager | Failed to look for expired "
+                    + "leases: " + e.getMessage(), e);
+            return;
+        } finally {
+            close(rs, stmt, conn);
+        }
+
+        for (int target : expired) {
+            try {
+                // Take the lease over first so only one instance reaps it
+                if (executeUpdate("UPDATE " + LEASE_TABLE + " SET instanceID "
+                        + "= ?, leaseExpiry = ? WHERE daemonTable = ? AND slot "
+                        + "= ? AND leaseExpiry < ?", instanceID, newExpiry(),
+                        daemonTable, target, now()) == 0) {
+                    continue;
+                }
+
+                log.info("RunIdLeaseManager | Reaping the expired lease on "
+                        + "slot " + target);
+                resetRange(target);
+                executeUpdate("DELETE FROM " + LEASE_TABLE + " WHERE "
+                        + "daemonTable = ? AND slot = ? AND instanceID = ?",
+                        daemonTable, target, instanceID);
+            } catch (SQLException e) {
+                log.error("RunIdLeaseManager | Failed to reap slot " + target
+                        + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Get the current time, to compare lease expiries with.
+     *
+     * @return the current time
+     */
+    private static Timestamp now() {
+        return new Timestamp(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the lease expiry to stamp on a lease taken or renewed now.
+     *
+     * @return the lease expiry
+     */
+    private Timestamp newExpiry() {
+        return new Timestamp(System.currentTimeMillis()
+                + leaseSeconds * 1000L);
+    }
+
+    /**
+     * Runs an update statement.
+     *
+     * @param query the query
+     * @param params the parameters
+     * @return the number of rows affected
+     *
+     * @throws SQLException on error
+     */
+    private int executeUpdate(final String query, final Object... params)
+            throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = database.getConnection();
+            stmt = conn.prepareStatement(query);
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+
+            return stmt.executeUpdate();
+        } finally {
+            close(null, stmt, conn);
+        }
+    }
+
+    /**
+     * Closes JDBC resources, logging any errors.
+     *
+     * @param rs the result set, may be null
+     * @param stmt the statement, may be null
+     * @param conn the connection, may be null
+     */
+    private void close(final ResultSet rs, final PreparedStatement stmt,
+            final Connection conn) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+            if (stmt != null) {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            log.error("RunIdLeaseManager | Failed to close statement: "
+                    + e.getMessage());
+        }
+
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                log.error("RunIdLeaseManager | Failed to close connection: "
+                        + e.getMessage());
+            }
+        }
+    }
+}
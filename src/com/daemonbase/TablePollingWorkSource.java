@@ -0,0 +1,299 @@
+package com.cellulant;
+
+import com.cellulant.db.DATABASE;
+import com.cellulant.utils.AbstractProps;
+import com.cellulant.utils.Logging;
+import com.cellulant.utils.SettableFuture;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>Claims work from the main daemon table the way the daemon always has: a
+ * bucket of unprocessed rows is allocated to the next run ID with
+ * {@link AbstractDaemon#allocateBucket(int, boolean)}, and then read back.
+ * Each item is a row, with its primary key as the ID and its columns as a Map
+ * payload.</p>
+ *
+ * <p>Acknowledging a row sets it to PROCESSED_STATUS. Rejecting it returns it
+ * to the pool with one more send counted, or sets it to FAILED_STATUS once
+ * MAX_NUMBER_OF_SENDS is reached. Releasing it returns it to the pool as it
+ * was. The updates go through {@link AbstractDaemon#queueUpdate}, so they are
+ * batched when UPDATE_BATCH_SIZE is set. Once its update has been written,
+ * or has failed, the row is completed with
+ * {@link AbstractDaemon#completeRecord(int)}, so the run ID of its bucket is
+ * only reused once every row of the bucket is written. Closing the source
+ * releases the rows still claimed.</p>
+ */
+public class TablePollingWorkSource implements WorkSource {
+    /**
+     * The daemon that allocates the buckets.
+     */
+    private final AbstractDaemon daemon;
+    /**
+     * The database connection pool.
+     */
+    private final DATABASE database;
+    /**
+     * The main daemon table.
+     */
+    private final String table;
+    /**
+     * The primary key column of the table.
+     */
+    private final String primaryKey;
+    /**
+     * System properties class instance.
+     */
+    private final AbstractProps props;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * The run ID each claimed item was allocated under, by item ID, until
+     * the item is handed back.
+     */
+    private final Map<Object, Integer> runIDs = new HashMap<Object, Integer>();
+
+    /**
+     * Constructor.
+     *
+     * @param daemon the daemon that allocates the buckets
+     * @param database the database connection pool
+     * @param table the main daemon table
+     * @param props the loaded system properties
+     * @param log the logging class
+     */
+    public TablePollingWorkSource(final AbstractDaemon daemon,
+            final DATABASE database, final String table,
+            final AbstractProps props, final Logging log) {
+        this.daemon = daemon;
+        this.database = database;
+        this.table = table;
+        this.primaryKey = props.getMainTablePrimaryKey();
+        this.props = props;
+        this.log = log;
+    }
+
+    @Override
+    public List<WorkItem> claim(final int maxItems) {
+        int runID = daemon.getCurrentRun();
+        if (daemon.allocateBucket(runID, false, maxItems) <= 0) {
+            return Collections.emptyList();
+        }
+
+        String selectQuery = "SELECT * FROM " + table + " WHERE bucketID = ? "
+                + "AND processed = ?";
+        List<WorkItem> items = new ArrayList<WorkItem>();
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = database.getConnection();
+            stmt = conn.prepareStatement(selectQuery);
+            stmt.setInt(1, runID);
+            stmt.setInt(2, props.getUnprocessedStatus());
+            rs = stmt.executeQuery();
+
+            ResultSetMetaData meta = rs.getMetaData();
+            while (rs.next()) {
+                Map<String, Object> row = new LinkedHashMap<String, Object>();
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    row.put(meta.getColumnLabel(i), rs.getObject(i));
+                }
+
+                items.add(new WorkItem(rs.getObject(primaryKey), row,
+                        rs.getInt("numberOfSends") + 1));
+            }
+
+            synchronized (runIDs) {
+                for (WorkItem item : items) {
+                    runIDs.put(item.getId(), runID);
+                }
+            }
+        } catch (SQLException e) {
+            log.error(daemon.getLogPreString() + "TablePollingWorkSource --- "
+                    + "Failed to read bucket " + runID + ", resetting it: "
+                    + e.getMessage(), e);
+            daemon.resetBucket(runID);
+            return Collections.emptyList();
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException e) {
+                    log.error(daemon.getLogPreString() + e.getMessage());
+                }
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    log.error(daemon.getLogPreString() + e.getMessage());
+                }
+            }
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    log.error(daemon.getLogPreString() + e.getMessage());
+                }
+            }
+        }
+
+        return items;
+    }
+
+    @Override
+    public boolean ack(final WorkItem item) {
+        return update("UPDATE " + table + " SET processed = ? WHERE "
+                + primaryKey + " = ?", Arrays.<Object>asList(
+                        props.getProcessedStatus(), getKey(item.getId())),
+                handBack(item));
+    }
+
+    @Override
+    public boolean nack(final WorkItem item) {
+        // processed is set first, while numberOfSends still has its old value
+        return update("UPDATE " + table + " SET processed = CASE WHEN "
+                + "numberOfSends + 1 >= ? THEN ? ELSE processed END, "
+                + "bucketID = 0, numberOfSends = numberOfSends + 1 WHERE "
+                + primaryKey + " = ?", Arrays.<Object>asList(
+                        props.getMaxSendRetries(), props.getFailedStatus(),
+                        getKey(item.getId())), handBack(item));
+    }
+
+    @Override
+    public boolean release(final WorkItem item) {
+        return release(item.getId(), handBack(item));
+    }
+
+    /**
+     * Releases the rows claimed and not yet handed back, so they can be
+     * claimed again without waiting for
+     * {@link AbstractDaemon#resetPartiallyProcessedRecords()} on the next
+     * start.
+     */
+    @Override
+    public void close() {
+        Map<Object, Integer> held;
+        synchronized (runIDs) {
+            held = new HashMap<Object, Integer>(runIDs);
+            runIDs.clear();
+        }
+
+        int released = 0;
+        for (Map.Entry<Object, Integer> entry : held.entrySet()) {
+            if (release(entry.getKey(), entry.getValue())) {
+                released++;
+            }
+        }
+        if (!held.isEmpty()) {
+            log.info(daemon.getLogPreString() + "TablePollingWorkSource --- "
+                    + "Released " + released + " of " + held.size()
+                    + " rows still claimed on close");
+        }
+    }
+
+    /**
+     * Returns a row to the pool as it was.
+     *
+     * @param id the primary key of the row
+     * @param runID the run ID the row was claimed under, null if unknown
+     * @return false if the update failed, or updated nothing
+     */
+    private boolean release(final Object id, final Integer runID) {
+        return update("UPDATE " + table + " SET bucketID = 0 WHERE "
+                + primaryKey + " = ? AND processed = ?", Arrays.<Object>asList(
+                        getKey(id), props.getUnprocessedStatus()), runID);
+    }
+
+    /**
+     * Stops tracking a claimed item, as it is handed back.
+     *
+     * @param item the item
+     * @return the run ID it was claimed under, null if it was not tracked
+     */
+    private Integer handBack(final WorkItem item) {
+        synchronized (runIDs) {
+            return runIDs.remove(item.getId());
+        }
+    }
+
+    /**
+     * Tells the daemon that a claimed row is done with.
+     *
+     * @param runID the run ID it was claimed under, null if unknown
+     */
+    private void complete(final Integer runID) {
+        if (runID != null) {
+            daemon.completeRecord(runID);
+        }
+    }
+
+    /**
+     * Queues an update of one row, and completes the row once the update is
+     * written or has failed.
+     *
+     * @param query the update query
+     * @param params the parameter array
+     * @param runID the run ID the row was claimed under, null if unknown
+     * @return false if the update failed, or updated nothing
+     */
+    private boolean update(final String query, final List<Object> params,
+            final Integer runID) {
+        SettableFuture<Integer> result;
+        try {
+            result = daemon.queueUpdate(query, params);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            complete(runID);
+            return false;
+        } catch (RuntimeException ex) {
+            complete(runID);
+            throw ex;
+        }
+
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                complete(runID);
+            }
+        });
+        try {
+            return !result.isDone() || result.get() > 0;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the primary key of a row in a form the parameter binding takes.
+     *
+     * @param id the item ID
+     * @return the key as an Integer, Long or String
+     */
+    private static Object getKey(final Object id) {
+        if (id instanceof Integer || id instanceof Long) {
+            return id;
+        }
+        if (id instanceof Number) {
+            return ((Number) id).longValue();
+        }
+        return String.valueOf(id);
+    }
+}
@@ -0,0 +1,105 @@
+package com.cellulant;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the tasks queued by the daemon. {@link ThreadPool} is the default
+ * implementation.
+ */
+public interface TaskExecutor {
+
+    /**
+     * Requests a new task to run, waiting for capacity if necessary.
+     *
+     * @param task the task to run (if null, no action is taken)
+     *
+     * @throws IllegalStateException if the executor is already closed
+     */
+    void runTask(Runnable task);
+
+    /**
+     * Requests a batch of tasks to run, waiting for capacity if necessary.
+     * Null tasks are skipped.
+     *
+     * @param tasks the tasks to run
+     *
+     * @throws IllegalStateException if the executor is already closed
+     */
+    void runTasks(Collection<? extends Runnable> tasks);
+
+    /**
+     * Requests a new task to run, waiting up to the specified time for
+     * capacity.
+     *
+     * @param task the task to run (if null, no action is taken)
+     * @param timeout how long to wait for capacity
+     * @param unit the unit of the timeout
+     * @return true if the task was accepted, false if the timeout elapsed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the executor is already closed
+     */
+    boolean runTask(Runnable task, long timeout, TimeUnit unit)
+            throws InterruptedException;
+
+    /**
+     * Requests a new task to run only if there is capacity for it right away.
+     *
+     * @param task the task to run (if null, no action is taken)
+     * @return true if the task was accepted
+     *
+     * @throws IllegalStateException if the executor is already closed
+     */
+    boolean tryRunTask(Runnable task);
+
+    /**
+     * Get the number of tasks waiting to start.
+     *
+     * @return the number of waiting tasks
+     */
+    int getListSize();
+
+    /**
+     * Get the number of tasks that have finished running, successfully or
+     * not.
+     *
+     * @return the number of finished tasks
+     */
+    long getCompletedTaskCount();
+
+    /**
+     * Check whether the executor limits the work it accepts, in which case
+     * runTask() applies backpressure to the callers.
+     *
+     * @return true if the executor is bounded
+     */
+    boolean isBounded();
+
+    /**
+     * Get the task counters and the queue wait and service time percentiles.
+     *
+     * @return a snapshot of the executor statistics
+     */
+    ThreadPoolStatistics getStatistics();
+
+    /**
+     * Clears the latency histograms and counters.
+     */
+    void resetStatistics();
+
+    /**
+     * Removes all the tasks waiting to start.
+     */
+    void clearQueue();
+
+    /**
+     * Stops accepting tasks and waits for the running ones to finish.
+     */
+    void join();
+
+    /**
+     * Stops accepting tasks and interrupts the running ones.
+     */
+    void close();
+}
@@ -0,0 +1,109 @@
+package com.cellulant;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue a {@link ThreadPool} takes its tasks from. Implementations must be
+ * safe for any number of concurrent producers and consumers.
+ *
+ * <p>Once a queue is closed no more tasks can be added, but the tasks already
+ * in it can still be taken. {@link #take()} returns null once the queue is
+ * both closed and empty.</p>
+ */
+public interface TaskQueue {
+
+    /**
+     * Adds a task if there is space for it, returning immediately.
+     *
+     * @param task the task to add
+     * @return true if the task was added, false if the queue is full
+     *
+     * @throws IllegalStateException if the queue is closed
+     */
+    boolean offer(Runnable task);
+
+    /**
+     * Adds a task, waiting up to the specified time for space to become
+     * available.
+     *
+     * @param task the task to add
+     * @param timeout how long to wait before giving up
+     * @param unit the unit of the timeout
+     * @return true if the task was added, false if the timeout elapsed first
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the queue is closed
+     */
+    boolean offer(Runnable task, long timeout, TimeUnit unit)
+            throws InterruptedException;
+
+    /**
+     * Adds a task, waiting for space to become available if necessary.
+     *
+     * @param task the task to add
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the queue is closed
+     */
+    void put(Runnable task) throws InterruptedException;
+
+    /**
+     * Adds a batch of tasks in one go, waiting for space if necessary, and
+     * wakes up only as many waiting consumers as there are new tasks.
+     *
+     * @param tasks the tasks to add
+     *
+     * @throws InterruptedException if interrupted while waiting, in which case
+     *                              only some of the tasks may have been added
+     * @throws IllegalStateException if the queue is closed
+     */
+    void putAll(Collection<? extends Runnable> tasks)
+            throws InterruptedException;
+
+    /**
+     * Removes the next task, waiting for one to be added if necessary.
+     *
+     * @return the next task, or null if the queue is closed and empty
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Runnable take() throws InterruptedException;
+
+    /**
+     * Removes the next task, waiting up to the specified time for one to be
+     * added.
+     *
+     * @param timeout how long to wait before giving up
+     * @param unit the unit of the timeout
+     * @return the next task, or null if the timeout elapsed or the queue is
+     *         closed and empty
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Runnable poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Get the number of tasks waiting in the queue.
+     *
+     * @return the number of waiting tasks
+     */
+    int size();
+
+    /**
+     * Get the number of tasks that can be added without waiting.
+     *
+     * @return the remaining capacity, Integer.MAX_VALUE if unbounded
+     */
+    int remainingCapacity();
+
+    /**
+     * Removes all the waiting tasks.
+     */
+    void clear();
+
+    /**
+     * Stops the queue from accepting tasks and wakes up all waiting threads.
+     */
+    void close();
+}
@@ -0,0 +1,17 @@
+package com.cellulant;
+
+/**
+ * A task that runs a sequence of other tasks, such as the tasks of one key
+ * in a {@link PartitionedExecutor}. A {@link ThreadPool} runs each task of
+ * the sequence as a task of its own, with its own deadline and its own
+ * latency sample, rather than the whole sequence as one.
+ */
+public interface TaskSequence extends Runnable {
+
+    /**
+     * Get the next task to run in this turn of the sequence.
+     *
+     * @return the task, or null once the turn is over
+     */
+    Runnable nextTask();
+}
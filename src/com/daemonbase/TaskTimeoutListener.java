@@ -0,0 +1,19 @@
+package com.cellulant;
+
+/**
+ * Receives the tasks a {@link ThreadPool} gave up on because they ran past
+ * their deadline.
+ */
+public interface TaskTimeoutListener {
+
+    /**
+     * Called on the pool's timer thread once a task has overrun. By then the
+     * worker running it has been interrupted and replaced. Implementations
+     * must return quickly.
+     *
+     * @param task the task that overran
+     * @param worker the thread still running the task
+     * @param elapsedMillis how long the task had been running
+     */
+    void onTaskTimeout(Runnable task, Thread worker, long elapsedMillis);
+}
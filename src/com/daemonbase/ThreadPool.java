@@ -1,27 +1,52 @@
 package com.cellulant;
 
+import com.cellulant.utils.LatencyHistogram;
 import com.cellulant.utils.Logging;
+import com.cellulant.utils.TimerWheel;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
- * A ThreadPool is a group of a limited number of threads that are used to
- * execute tasks.
+ * <p>A ThreadPool is a group of a limited number of threads that are used to
+ * execute tasks.</p>
+ *
+ * <p>The pool can optionally resize itself between a minimum and a maximum
+ * number of workers. See {@link #enableAdaptiveSizing}.</p>
+ *
+ * <p>Every task is timestamped when it is queued, and again when it starts
+ * and finishes running. The pool keeps histograms of the queue wait and
+ * service time, together with completed, failed and rejected counters. See
+ * {@link #getStatistics()}.</p>
+ *
+ * <p>Tasks can be given an execution deadline, either a default for the whole
+ * pool or per task. A task that overruns it is interrupted, counted and
+ * reported to the {@link TaskTimeoutListener}, and its worker is replaced so
+ * that a hung task does not cost the pool a thread. See
+ * {@link #setDefaultTaskTimeout}.</p>
  *
  *  Cellulant Ltd
  * @author <a href="kim.kiogora@cellulant.com">Kim Kiogora</a>
  * @author <a href="brian.ngure@cellulant.com">Brian Ngure</a>
  * @version Version 3.0
  */
-public class ThreadPool extends ThreadGroup {
+public class ThreadPool extends ThreadGroup implements TaskExecutor {
     /**
      * Flag to check if the pool is active and can accept new tasks.
      */
-    private boolean isAlive;
+    private volatile boolean isAlive;
     /**
-     * The list of tasks to perform.
+     * The queue of tasks to perform.
      */
-    private LinkedList<Runnable> taskQueue;
+    private final TaskQueue taskQueue;
     /**
      * Identifier for the worker thread. Incremented for each worker thread.
      */
@@ -34,77 +59,643 @@ public class ThreadPool extends ThreadGroup {
      * Logging class instance.
      */
     private Logging log;
+    /**
+     * How long an idle worker waits for a task before checking whether it
+     * should retire, in milliseconds.
+     */
+    private static final long IDLE_POLL_MILLIS = 1000;
+    /**
+     * Fraction of the workers the sizing aims to keep busy.
+     */
+    private static final double TARGET_UTILISATION = 0.8;
+    /**
+     * Number of resize decisions kept for inspection.
+     */
+    private static final int RESIZE_HISTORY_SIZE = 50;
+    /**
+     * Precision of the task deadlines, in milliseconds.
+     */
+    private static final long TIMEOUT_TICK_MILLIS = 100;
+    /**
+     * Number of slots in the deadline timer wheel.
+     */
+    private static final int TIMEOUT_WHEEL_SLOTS = 512;
+    /**
+     * Number of live worker threads.
+     */
+    private final AtomicInteger workerCount = new AtomicInteger();
+    /**
+     * Number of workers currently running a task.
+     */
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+    /**
+     * Number of idle workers that should exit to shrink the pool.
+     */
+    private final AtomicInteger pendingRetirements = new AtomicInteger();
+    /**
+     * Tasks completed since the last sizing check.
+     */
+    private final AtomicLong windowCompleted = new AtomicLong();
+    /**
+     * Total queue wait of the tasks completed since the last sizing check.
+     */
+    private final AtomicLong windowWaitNanos = new AtomicLong();
+    /**
+     * Total service time of the tasks completed since the last sizing check.
+     */
+    private final AtomicLong windowServiceNanos = new AtomicLong();
+    /**
+     * Time tasks waited in the queue.
+     */
+    private final LatencyHistogram queueWaitHistogram = new LatencyHistogram();
+    /**
+     * Time tasks took to run.
+     */
+    private final LatencyHistogram serviceTimeHistogram =
+            new LatencyHistogram();
+    /**
+     * Number of tasks that ran to completion.
+     */
+    private final AtomicLong completedTasks = new AtomicLong();
+    /**
+     * Number of tasks that threw an exception.
+     */
+    private final AtomicLong failedTasks = new AtomicLong();
+    /**
+     * Number of tasks that were not accepted.
+     */
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    /**
+     * Number of tasks that ran past their deadline.
+     */
+    private final AtomicLong timedOutTasks = new AtomicLong();
+    /**
+     * Number of replaced workers still stuck in an overrunning task.
+     */
+    private final AtomicInteger hungWorkers = new AtomicInteger();
+    /**
+     * Deadline for tasks without one of their own, in milliseconds, 0 for
+     * none.
+     */
+    private volatile long defaultTaskTimeoutMillis;
+    /**
+     * Enforces the task deadlines, created when first needed. Written under
+     * the pool's monitor.
+     */
+    private volatile TimerWheel timeoutWheel;
+    /**
+     * Notified of the tasks that overrun, may be null.
+     */
+    private volatile TaskTimeoutListener timeoutListener;
+    /**
+     * Whether the pool resizes itself.
+     */
+    private volatile boolean adaptive;
+    /**
+     * Minimum number of workers when resizing.
+     */
+    private volatile int minThreads;
+    /**
+     * Maximum number of workers when resizing.
+     */
+    private volatile int maxThreads;
+    /**
+     * Queue wait above which the pool grows, in nanoseconds.
+     */
+    private long targetQueueWaitNanos;
+    /**
+     * Smoothed task service time, in nanoseconds.
+     */
+    private double smoothedServiceNanos;
+    /**
+     * When the last sizing check ran.
+     */
+    private long lastSizingCheck;
+    /**
+     * Runs the periodic sizing check.
+     */
+    private Timer sizingTimer;
+    /**
+     * The most recent resize decisions, oldest first.
+     */
+    private final LinkedList<PoolResizeDecision> resizeHistory =
+            new LinkedList<PoolResizeDecision>();
+
+    /**
+     * Creates a new ThreadPool backed by an unbounded task queue.
+     *
+     * @param numThreads the number of threads in the pool
+     * @param log the logging class for the thread pool
+     */
+    public ThreadPool(final int numThreads, final Logging log) {
+        this(numThreads, new LinkedTaskQueue(), log);
+    }
 
     /**
      * Creates a new ThreadPool.
      *
      * @param numThreads the number of threads in the pool
+     * @param taskQueue the queue the worker threads take their tasks from
      * @param log the logging class for the thread pool
      */
     @SuppressWarnings({
         "ValueOfIncrementOrDecrementUsed",
         "CallToThreadStartDuringObjectConstruction"
     })
-    public ThreadPool(final int numThreads, final Logging log) {
+    public ThreadPool(final int numThreads, final TaskQueue taskQueue,
+            final Logging log) {
         super("ThreadPool-" + threadPoolID++);
         this.log = log;
         setDaemon(true);
         isAlive = true;
-        taskQueue = new LinkedList<Runnable>();
+        this.taskQueue = taskQueue;
 
+        minThreads = numThreads;
+        maxThreads = numThreads;
         for (int i = 0; i < numThreads; i++) {
-            new WorkerThread().start();
+            startWorker();
+        }
+    }
+
+    /**
+     * Starts a new worker thread.
+     */
+    private void startWorker() {
+        workerCount.incrementAndGet();
+        new WorkerThread().start();
+    }
+
+    /**
+     * <p>Lets the pool grow and shrink between a minimum and a maximum number
+     * of workers. Every interval the pool compares the average time tasks
+     * waited in the queue with the target wait, and estimates how many
+     * workers the measured service time and throughput call for.</p>
+     *
+     * <p>The pool grows when tasks are queued and waiting longer than the
+     * target, and shrinks gradually when the queue is empty and the workers
+     * are mostly idle. Each decision is logged and kept in
+     * {@link #getResizeDecisions()}.</p>
+     *
+     * @param minimum the minimum number of workers
+     * @param maximum the maximum number of workers
+     * @param intervalMillis how often to check the pool size
+     * @param targetQueueWaitMillis the queue wait above which the pool grows
+     */
+    public synchronized void enableAdaptiveSizing(final int minimum,
+            final int maximum, final long intervalMillis,
+            final long targetQueueWaitMillis) {
+        if (minimum < 1 || maximum < minimum || intervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid pool bounds: min "
+                    + minimum + ", max " + maximum + ", interval "
+                    + intervalMillis);
+        }
+
+        minThreads = minimum;
+        maxThreads = maximum;
+        targetQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(
+                targetQueueWaitMillis);
+        lastSizingCheck = System.nanoTime();
+        adaptive = true;
+
+        // Bring the pool within the new bounds straight away
+        int workers = getPoolSize();
+        if (workers < minimum || workers > maximum) {
+            resize(workers, Math.max(minimum, Math.min(maximum, workers)), 0, 0,
+                    0, 0, "outside configured bounds");
+        }
+
+        if (sizingTimer != null) {
+            sizingTimer.cancel();
+        }
+
+        sizingTimer = new Timer(getName() + "-Sizer", true);
+        sizingTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    adjustPoolSize();
+                } catch (RuntimeException ex) {
+                    log.error("ThreadPool | Pool sizing check failed: "
+                            + ex.getMessage(), ex);
+                }
+            }
+        }, intervalMillis, intervalMillis);
+
+        log.info("ThreadPool | " + getName() + " will resize between "
+                + minimum + " and " + maximum + " workers, target queue wait "
+                + targetQueueWaitMillis + " ms");
+    }
+
+    /**
+     * Sets the deadline for tasks that do not have one of their own. A task
+     * still running when its deadline passes is interrupted and its worker
+     * replaced.
+     *
+     * @param timeoutMillis the deadline in milliseconds, 0 for none
+     */
+    public void setDefaultTaskTimeout(final long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Invalid task timeout: "
+                    + timeoutMillis);
+        }
+
+        defaultTaskTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Get the deadline for tasks that do not have one of their own.
+     *
+     * @return the deadline in milliseconds, 0 for none
+     */
+    public long getDefaultTaskTimeout() {
+        return defaultTaskTimeoutMillis;
+    }
+
+    /**
+     * Sets the listener notified of the tasks that overrun their deadline.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setTaskTimeoutListener(final TaskTimeoutListener listener) {
+        this.timeoutListener = listener;
+    }
+
+    /**
+     * Gives a task its own deadline, overriding the pool default.
+     *
+     * @param task the task
+     * @param timeout how long the task may run, 0 for no limit
+     * @param unit the unit of the timeout
+     * @return the task with the deadline attached
+     */
+    public static TimedTask withTimeout(final Runnable task,
+            final long timeout, final TimeUnit unit) {
+        final long timeoutMillis = unit.toMillis(timeout);
+        return new TimedTask() {
+            @Override
+            public long getTimeoutMillis() {
+                return timeoutMillis;
+            }
+
+            @Override
+            public void run() {
+                task.run();
+            }
+
+            @Override
+            public String toString() {
+                return task.toString();
+            }
+        };
+    }
+
+    /**
+     * Starts enforcing the deadline of a task that is about to run.
+     *
+     * @param execution the task run
+     * @return the timeout, null if the task has no deadline
+     */
+    private TimerWheel.Timeout scheduleTimeout(final Execution execution) {
+        long timeoutMillis = defaultTaskTimeoutMillis;
+        if (execution.task instanceof TimedTask) {
+            timeoutMillis = ((TimedTask) execution.task).getTimeoutMillis();
+        }
+
+        if (timeoutMillis <= 0) {
+            return null;
+        }
+
+        // Only the first deadline takes the pool's monitor
+        TimerWheel wheel = timeoutWheel;
+        if (wheel == null) {
+            synchronized (this) {
+                if (timeoutWheel == null) {
+                    timeoutWheel = new TimerWheel(getName() + "-Timeouts",
+                            TIMEOUT_TICK_MILLIS, TIMEOUT_WHEEL_SLOTS, log);
+                }
+                wheel = timeoutWheel;
+            }
+        }
+
+        try {
+            return wheel.schedule(execution, timeoutMillis,
+                    TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException ex) {
+            // The pool is closing
+            return null;
+        }
+    }
+
+    /**
+     * Gives up on a task that overran its deadline. The worker is interrupted
+     * and a new one started in its place. The old worker exits once the task
+     * returns.
+     *
+     * @param execution the task run
+     */
+    private void timeOut(final Execution execution) {
+        if (!execution.settle()) {
+            // The task finished in the meantime
+            return;
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                - execution.startNanos);
+        timedOutTasks.incrementAndGet();
+        hungWorkers.incrementAndGet();
+        busyWorkers.decrementAndGet();
+        workerCount.decrementAndGet();
+
+        execution.worker.interrupt();
+        if (isAlive) {
+            startWorker();
+        }
+
+        log.error("ThreadPool | " + execution.worker.getName()
+                + " timed out after " + elapsedMillis + " ms running "
+                + execution.task + ", replaced it with a new worker");
+
+        TaskTimeoutListener listener = timeoutListener;
+        if (listener != null) {
+            try {
+                listener.onTaskTimeout(execution.task, execution.worker,
+                        elapsedMillis);
+            } catch (RuntimeException ex) {
+                log.error("ThreadPool | Task timeout listener failed: "
+                        + ex.getMessage(), ex);
+            }
         }
     }
 
     /**
-     * <p>Requests a new task to run. This method returns immediately, and the
-     * task executes on the next available idle thread in this ThreadPool.</p>
+     * Decides whether the pool should grow or shrink, based on what it
+     * measured since the last check.
+     */
+    private synchronized void adjustPoolSize() {
+        if (!isAlive || !adaptive) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - lastSizingCheck);
+        lastSizingCheck = now;
+
+        long completed = windowCompleted.getAndSet(0);
+        long waitNanos = windowWaitNanos.getAndSet(0);
+        long serviceNanos = windowServiceNanos.getAndSet(0);
+
+        int workers = getPoolSize();
+        int depth = taskQueue.size();
+
+        double avgWait;
+        if (completed > 0) {
+            avgWait = (double) waitNanos / completed;
+            double avgService = (double) serviceNanos / completed;
+            smoothedServiceNanos = smoothedServiceNanos == 0 ? avgService
+                    : 0.7 * smoothedServiceNanos + 0.3 * avgService;
+        } else {
+            // Nothing finished, so anything queued has waited all interval
+            avgWait = depth > 0 ? elapsed : 0;
+        }
+
+        double throughput = completed * 1e9 / elapsed;
+
+        /*
+         * Demand in workers: the average number kept busy over the interval,
+         * plus the number needed to clear the current backlog within one
+         * interval.
+         */
+        double busy = Math.max((double) serviceNanos / elapsed,
+                busyWorkers.get());
+        double backlog = depth * smoothedServiceNanos / elapsed;
+        int desired = (int) Math.ceil((busy + backlog) / TARGET_UTILISATION);
+
+        int target = workers;
+        String reason = null;
+        if (depth > 0 && avgWait > targetQueueWaitNanos) {
+            target = Math.max(workers + 1, desired);
+            reason = "queue wait above target";
+        } else if (depth == 0 && avgWait < targetQueueWaitNanos / 2.0
+                && desired < workers) {
+            // Shrink by half the surplus at a time to avoid oscillating
+            target = workers - Math.max(1, (workers - desired) / 2);
+            reason = "workers idle";
+        }
+
+        target = Math.max(minThreads, Math.min(maxThreads, target));
+        if (reason != null && target != workers) {
+            resize(workers, target, depth, avgWait / 1e6,
+                    smoothedServiceNanos / 1e6, throughput, reason);
+        }
+    }
+
+    /**
+     * Changes the number of workers and records the decision.
+     */
+    private void resize(final int workers, final int target, final int depth,
+            final double avgWaitMillis, final double avgServiceMillis,
+            final double throughput, final String reason) {
+        if (target > workers) {
+            int toStart = target - workers;
+            // Cancel pending retirements before starting new threads
+            while (toStart > 0) {
+                int pending = pendingRetirements.get();
+                if (pending <= 0) {
+                    break;
+                }
+
+                if (pendingRetirements.compareAndSet(pending, pending - 1)) {
+                    toStart--;
+                }
+            }
+
+            for (int i = 0; i < toStart; i++) {
+                startWorker();
+            }
+        } else {
+            pendingRetirements.addAndGet(workers - target);
+        }
+
+        PoolResizeDecision decision = new PoolResizeDecision(workers, target,
+                depth, avgWaitMillis, avgServiceMillis, throughput, reason);
+        synchronized (resizeHistory) {
+            resizeHistory.addLast(decision);
+            if (resizeHistory.size() > RESIZE_HISTORY_SIZE) {
+                resizeHistory.removeFirst();
+            }
+        }
+
+        log.info("ThreadPool | " + getName() + " " + decision);
+    }
+
+    /**
+     * Lets an idle worker exit if the pool is shrinking.
+     *
+     * @return true if the calling worker should exit
+     */
+    private boolean retire() {
+        while (true) {
+            int pending = pendingRetirements.get();
+            if (pending <= 0) {
+                return false;
+            }
+
+            if (pendingRetirements.compareAndSet(pending, pending - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * <p>Requests a new task to run. The task executes on the next available
+     * idle thread in this ThreadPool. If the task queue is bounded and full,
+     * this method waits until there is space for the task.</p>
      * <p>Tasks start execution in the order they are received.</p>
      *
      * @param task the task to run (if null, no action is taken)
      *
+     * @throws IllegalStateException if this ThreadPool is already closed, or
+     *                               the calling thread is interrupted while
+     *                               waiting for space in the queue
+     */
+    public void runTask(final Runnable task) {
+        checkAlive();
+
+        if (task != null) {
+            try {
+                taskQueue.put(new QueuedTask(task));
+            } catch (IllegalStateException ex) {
+                rejectedTasks.incrementAndGet();
+                throw ex;
+            } catch (InterruptedException ex) {
+                rejectedTasks.incrementAndGet();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting "
+                        + "for space in the task queue", ex);
+            }
+        }
+    }
+
+    /**
+     * <p>Requests a batch of tasks to run, for example a whole bucket. The
+     * batch is published to the task queue in one go and only as many idle
+     * workers are woken up as there are tasks. If the task queue is bounded,
+     * this method waits for space as needed.</p>
+     *
+     * @param tasks the tasks to run (null tasks are skipped)
+     *
+     * @throws IllegalStateException if this ThreadPool is already closed, or
+     *                               the calling thread is interrupted while
+     *                               waiting for space in the queue
+     */
+    public void runTasks(final Collection<? extends Runnable> tasks) {
+        checkAlive();
+
+        long queuedAt = System.nanoTime();
+        List<Runnable> batch = new ArrayList<Runnable>(tasks.size());
+        for (Runnable task : tasks) {
+            if (task != null) {
+                batch.add(new QueuedTask(task, queuedAt));
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            taskQueue.putAll(batch);
+        } catch (IllegalStateException ex) {
+            rejectedTasks.incrementAndGet();
+            throw ex;
+        } catch (InterruptedException ex) {
+            rejectedTasks.incrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting "
+                    + "for space in the task queue", ex);
+        }
+    }
+
+    /**
+     * Requests a new task to run, waiting up to the specified time for space
+     * in the task queue.
+     *
+     * @param task the task to run (if null, no action is taken)
+     * @param timeout how long to wait for space in the queue
+     * @param unit the unit of the timeout
+     * @return true if the task was queued, false if the timeout elapsed first
+     *
+     * @throws InterruptedException if interrupted while waiting
      * @throws IllegalStateException if this ThreadPool is already closed
      */
-    public synchronized void runTask(final Runnable task) {
-        if (!isAlive) {
-            throw new IllegalStateException();
+    public boolean runTask(final Runnable task, final long timeout,
+            final TimeUnit unit) throws InterruptedException {
+        checkAlive();
+
+        if (task == null) {
+            return true;
         }
 
-        if (task != null) {
-            taskQueue.add(task);
-            /*
-                * Use notify() here NOT notifyAll() because all the waiting
-                * threads are interchangeable (the order they wake up doesn't
-                * matter). When a task is added, only one of the threads should
-                * be notified to wake up, execute the task and the go back to
-                * sleep.
-                */
-            notify();
+        return countRejection(taskQueue.offer(new QueuedTask(task), timeout,
+                unit));
+    }
+
+    /**
+     * Requests a new task to run, rejecting it straight away if the task queue
+     * is full.
+     *
+     * @param task the task to run (if null, no action is taken)
+     * @return true if the task was queued, false if the queue is full
+     *
+     * @throws IllegalStateException if this ThreadPool is already closed
+     */
+    public boolean tryRunTask(final Runnable task) {
+        checkAlive();
+
+        if (task == null) {
+            return true;
+        }
+
+        return countRejection(taskQueue.offer(new QueuedTask(task)));
+    }
+
+    /**
+     * Counts a task that the queue did not accept.
+     *
+     * @param accepted whether the queue accepted the task
+     * @return accepted
+     */
+    private boolean countRejection(final boolean accepted) {
+        if (!accepted) {
+            rejectedTasks.incrementAndGet();
         }
 
+        return accepted;
+    }
+
+    /**
+     * Throws if this ThreadPool can no longer accept tasks.
+     */
+    private void checkAlive() {
+        if (!isAlive) {
+            rejectedTasks.incrementAndGet();
+            throw new IllegalStateException();
+        }
     }
 
     /**
      * Get a Runnable task from the task queue.
      *
-     * @return the Runnable task
+     * @return the Runnable task, or null if the pool is closed and there are no
+     *         tasks left
      *
      * @throws InterruptedException thrown when if the thread is waiting,
      *                              sleeping, or otherwise occupied, and the
      *                              thread is interrupted, either before or
      *                              during the activity
      */
-    private synchronized Runnable getTask() throws InterruptedException {
-        while (taskQueue.isEmpty()) {
-            if (!isAlive) {
-                return null;
-            }
-
-            wait();
-        }
-
-        return taskQueue.removeFirst();
+    private Runnable getTask() throws InterruptedException {
+        return taskQueue.take();
     }
 
     /**
@@ -115,9 +706,12 @@ public class ThreadPool extends ThreadGroup {
      * waiting tasks.</p>
      */
     public synchronized void close() {
+        stopSizing();
+        stopTimeouts();
         if (isAlive) {
             isAlive = false;
             taskQueue.clear();
+            taskQueue.close();
             interrupt();
         }
     }
@@ -129,8 +723,9 @@ public class ThreadPool extends ThreadGroup {
     public void join() {
         // Notify all waiting threads that this ThreadPool is no longer alive
         synchronized (this) {
+            stopSizing();
             isAlive = false;
-            notifyAll();
+            taskQueue.close();
         }
 
         // Wait for all threads to finish
@@ -144,6 +739,116 @@ public class ThreadPool extends ThreadGroup {
                         + ex.getMessage());
             }
         }
+
+        synchronized (this) {
+            stopTimeouts();
+        }
+    }
+
+    /**
+     * Stops the periodic sizing check.
+     */
+    private void stopSizing() {
+        adaptive = false;
+        if (sizingTimer != null) {
+            sizingTimer.cancel();
+            sizingTimer = null;
+        }
+    }
+
+    /**
+     * Stops enforcing task deadlines. Must hold the pool's monitor.
+     */
+    private void stopTimeouts() {
+        if (timeoutWheel != null) {
+            timeoutWheel.stop();
+            timeoutWheel = null;
+        }
+    }
+
+    /**
+     * Get the number of worker threads, excluding those about to retire.
+     *
+     * @return the number of workers
+     */
+    public int getPoolSize() {
+        return workerCount.get() - pendingRetirements.get();
+    }
+
+    /**
+     * Get the number of workers currently running a task.
+     *
+     * @return the number of busy workers
+     */
+    public int getActiveCount() {
+        return busyWorkers.get();
+    }
+
+    /**
+     * Get the number of replaced workers still stuck in a task that overran
+     * its deadline.
+     *
+     * @return the number of hung workers
+     */
+    public int getHungWorkerCount() {
+        return hungWorkers.get();
+    }
+
+    /**
+     * Get the number of tasks that have finished running, including those
+     * that failed or timed out.
+     *
+     * @return the number of finished tasks
+     */
+    public long getCompletedTaskCount() {
+        return completedTasks.get() + failedTasks.get() + timedOutTasks.get();
+    }
+
+    /**
+     * Get the minimum number of workers.
+     *
+     * @return the minimum pool size
+     */
+    public int getMinPoolSize() {
+        return minThreads;
+    }
+
+    /**
+     * Get the maximum number of workers.
+     *
+     * @return the maximum pool size
+     */
+    public int getMaxPoolSize() {
+        return maxThreads;
+    }
+
+    @Override
+    public ThreadPoolStatistics getStatistics() {
+        return new ThreadPoolStatistics(taskQueue.size(), getPoolSize(),
+                busyWorkers.get(), completedTasks.get(), failedTasks.get(),
+                rejectedTasks.get(), timedOutTasks.get(), hungWorkers.get(),
+                queueWaitHistogram, serviceTimeHistogram);
+    }
+
+    @Override
+    public void resetStatistics() {
+        queueWaitHistogram.reset();
+        serviceTimeHistogram.reset();
+        completedTasks.set(0);
+        failedTasks.set(0);
+        rejectedTasks.set(0);
+        timedOutTasks.set(0);
+    }
+
+    /**
+     * Get the most recent resize decisions, oldest first.
+     *
+     * @return a copy of the resize history
+     */
+    public List<PoolResizeDecision> getResizeDecisions() {
+        synchronized (resizeHistory) {
+            return new ArrayList<PoolResizeDecision>(resizeHistory);
+        }
     }
 
     /**
@@ -151,10 +856,30 @@ public class ThreadPool extends ThreadGroup {
      *
      * @return the size of the task queue
      */
-    public synchronized int getListSize() {
+    public int getListSize() {
         return this.taskQueue.size();
     }
 
+    /**
+     * Get the number of tasks that can be queued without waiting.
+     *
+     * @return the remaining capacity, Integer.MAX_VALUE if the queue is
+     *         unbounded
+     */
+    public int getRemainingCapacity() {
+        return this.taskQueue.remainingCapacity();
+    }
+
+    /**
+     * Check whether the task queue has a fixed capacity, in which case
+     * runTask() applies backpressure to the callers.
+     *
+     * @return true if the task queue is bounded
+     */
+    public boolean isBounded() {
+        return this.taskQueue.remainingCapacity() != Integer.MAX_VALUE;
+    }
+
     /**
      * Method <i>clearQueue</i> clears all the records in the queue.
      */
@@ -162,11 +887,106 @@ public class ThreadPool extends ThreadGroup {
         this.taskQueue.clear();
     }
 
+    /**
+     * A queued task together with the time it was queued.
+     */
+    private static final class QueuedTask implements Runnable {
+        /**
+         * The task to run.
+         */
+        private final Runnable task;
+        /**
+         * When the task was queued, from System.nanoTime().
+         */
+        private final long queuedAt;
+
+        /**
+         * Constructor.
+         *
+         * @param task the task to run
+         */
+        QueuedTask(final Runnable task) {
+            this(task, System.nanoTime());
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param task the task to run
+         * @param queuedAt when the task was queued, from System.nanoTime()
+         */
+        QueuedTask(final Runnable task, final long queuedAt) {
+            this.task = task;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * One run of a task by a worker. Also the action that fires when the task
+     * overruns its deadline.
+     */
+    private final class Execution implements Runnable {
+        /**
+         * The worker running the task.
+         */
+        private final Thread worker;
+        /**
+         * The task.
+         */
+        private final Runnable task;
+        /**
+         * When the task started, from System.nanoTime().
+         */
+        private final long startNanos;
+        /**
+         * Set by whichever comes first, the task finishing or timing out.
+         */
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        /**
+         * Constructor.
+         *
+         * @param worker the worker running the task
+         * @param task the task
+         * @param startNanos when the task started
+         */
+        Execution(final Thread worker, final Runnable task,
+                final long startNanos) {
+            this.worker = worker;
+            this.task = task;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Claims the outcome of the run.
+         *
+         * @return true if the caller got there first
+         */
+        boolean settle() {
+            return settled.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            timeOut(this);
+        }
+    }
+
     /**
      * A WorkerThread is a Thread in a ThreadPool group, designed to run tasks
      * (Runnables).
      */
     private class WorkerThread extends Thread {
+        /**
+         * Set once the pool gave up on this worker's task and replaced it.
+         */
+        private boolean abandoned;
+
         /**
          * Constructor.
          */
@@ -180,30 +1000,159 @@ public class ThreadPool extends ThreadGroup {
          */
         @Override
         public void run() {
-            while (!isInterrupted()) {
-                // Get a task to run
-                Runnable task = null;
-                try {
-                    task = getTask();
-                } catch (InterruptedException ex) {
-                    log.error(ex.getMessage());
+            try {
+                while (!isInterrupted()) {
+                    // Get a task to run
+                    Runnable task = null;
+                    boolean interrupted = false;
+                    try {
+                        if (adaptive) {
+                            task = taskQueue.poll(IDLE_POLL_MILLIS,
+                                    TimeUnit.MILLISECONDS);
+                        } else {
+                            task = getTask();
+                        }
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                        log.error(ex.getMessage());
+                    }
+
+                    if (task == null) {
+                        // An idle poll timed out, see if the pool is shrinking
+                        if (adaptive && isAlive && !interrupted) {
+                            if (retire()) {
+                                return;
+                            }
+                            continue;
+                        }
+
+                        /*
+                         * If getTask() returned null or was interrupted, close
+                         * this thread by returning.
+                         */
+                        return;
+                    }
+
+                    runQueuedTask(task);
+                    if (abandoned) {
+                        // The task overran and a new worker took our place
+                        return;
+                    }
+                }
+            } finally {
+                if (!abandoned) {
+                    workerCount.decrementAndGet();
                 }
+            }
+        }
 
-                /*
-                 * If getTask() returned null or was interrupted, close this
-                 * thread by returning.
-                 */
-                if (task == null) {
+        /**
+         * Runs a queued task, or each task of a {@link TaskSequence} in
+         * turn.
+         *
+         * @param task the task to run
+         */
+        private void runQueuedTask(final Runnable task) {
+            long start = System.nanoTime();
+            long waitNanos = 0;
+            Runnable runnable = task;
+            if (task instanceof QueuedTask) {
+                waitNanos = start - ((QueuedTask) task).queuedAt;
+                runnable = ((QueuedTask) task).task;
+            }
+
+            if (!(runnable instanceof TaskSequence)) {
+                runTimedTask(runnable, waitNanos, start);
+                return;
+            }
+
+            TaskSequence sequence = (TaskSequence) runnable;
+            Runnable next;
+            while ((next = sequence.nextTask()) != null) {
+                // Only the first task of the turn waited in the queue
+                runTimedTask(next, waitNanos, start);
+                waitNanos = 0;
+                start = System.nanoTime();
+                if (abandoned) {
+                    handOver(sequence);
                     return;
                 }
+            }
+        }
 
-                // Run the task, and eat any exceptions it throws
-                try {
-                    task.run();
-                } catch (Throwable t) {
-                    uncaughtException(this, t);
+        /**
+         * Hands the rest of a sequence to another worker after this one was
+         * given up on. If the queue has no room, the rest of the turn runs
+         * here, without deadlines.
+         *
+         * @param sequence the sequence
+         */
+        private void handOver(final TaskSequence sequence) {
+            Thread.interrupted();
+            if (isAlive && taskQueue.offer(new QueuedTask(sequence))) {
+                return;
+            }
+
+            log.error("ThreadPool | " + getName() + " could not hand over "
+                    + sequence + " after a timeout, finishing it on the "
+                    + "abandoned worker");
+            sequence.run();
+        }
+
+        /**
+         * Runs a task under its deadline, and eats any exceptions it throws.
+         *
+         * @param runnable the task to run
+         * @param waitNanos how long the task waited in the queue
+         * @param start when the task started, from System.nanoTime()
+         */
+        private void runTimedTask(final Runnable runnable,
+                final long waitNanos, final long start) {
+            Execution execution = new Execution(this, runnable, start);
+            busyWorkers.incrementAndGet();
+            TimerWheel.Timeout timeout = scheduleTimeout(execution);
+            boolean failed = false;
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                failed = true;
+                uncaughtException(this, t);
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+
+                if (execution.settle()) {
+                    busyWorkers.decrementAndGet();
+                    recordRun(waitNanos, System.nanoTime() - start, failed);
+                } else {
+                    // Already counted as timed out
+                    abandoned = true;
+                    hungWorkers.decrementAndGet();
                 }
             }
         }
+
+        /**
+         * Records a finished task in the counters and histograms.
+         *
+         * @param waitNanos how long the task waited in the queue
+         * @param serviceNanos how long the task ran
+         * @param failed whether the task threw an exception
+         */
+        private void recordRun(final long waitNanos, final long serviceNanos,
+                final boolean failed) {
+            windowWaitNanos.addAndGet(waitNanos);
+            windowServiceNanos.addAndGet(serviceNanos);
+            windowCompleted.incrementAndGet();
+
+            queueWaitHistogram.record(waitNanos / 1000);
+            serviceTimeHistogram.record(serviceNanos / 1000);
+            if (failed) {
+                failedTasks.incrementAndGet();
+            } else {
+                completedTasks.incrementAndGet();
+            }
+        }
     }
 }
@@ -0,0 +1,168 @@
+package com.cellulant;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the statistics of a daemon's {@link TaskExecutor}, its
+ * {@link ThreadPool} or {@link VirtualThreadExecutor}, over JMX. The executor
+ * can be swapped when the daemon rebuilds it without re-registering the bean.
+ */
+public class ThreadPoolMetrics implements ThreadPoolMetricsMBean {
+    /**
+     * The executor whose statistics are published.
+     */
+    private volatile TaskExecutor executor;
+    /**
+     * The name the bean is registered under, null if not registered.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Constructor.
+     *
+     * @param executor the executor whose statistics are published
+     */
+    public ThreadPoolMetrics(final TaskExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Publishes the statistics of another executor.
+     *
+     * @param executor the new executor
+     */
+    public void setExecutor(final TaskExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Registers the bean with the platform MBean server as
+     * com.cellulant:type=ThreadPool,name=daemonName.
+     *
+     * @param daemonName the name of the daemon
+     *
+     * @throws JMException if the bean cannot be registered
+     */
+    public synchronized void register(final String daemonName)
+            throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.cellulant:type=ThreadPool,name="
+                + ObjectName.quote(daemonName));
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+
+        server.registerMBean(this, name);
+        objectName = name;
+    }
+
+    /**
+     * Removes the bean from the platform MBean server.
+     *
+     * @throws JMException if the bean cannot be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Get the current statistics of the executor.
+     *
+     * @return the statistics snapshot
+     */
+    public ThreadPoolStatistics getStatistics() {
+        return executor.getStatistics();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getListSize();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return getStatistics().getPoolSize();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return getStatistics().getActiveCount();
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        return getStatistics().getCompletedTasks();
+    }
+
+    @Override
+    public long getFailedTasks() {
+        return getStatistics().getFailedTasks();
+    }
+
+    @Override
+    public long getRejectedTasks() {
+        return getStatistics().getRejectedTasks();
+    }
+
+    @Override
+    public long getTimedOutTasks() {
+        return getStatistics().getTimedOutTasks();
+    }
+
+    @Override
+    public int getHungWorkers() {
+        return getStatistics().getHungWorkers();
+    }
+
+    @Override
+    public long getQueueWaitP50() {
+        return getStatistics().getQueueWaitP50();
+    }
+
+    @Override
+    public long getQueueWaitP90() {
+        return getStatistics().getQueueWaitP90();
+    }
+
+    @Override
+    public long getQueueWaitP99() {
+        return getStatistics().getQueueWaitP99();
+    }
+
+    @Override
+    public long getQueueWaitMax() {
+        return getStatistics().getQueueWaitMax();
+    }
+
+    @Override
+    public long getServiceTimeP50() {
+        return getStatistics().getServiceTimeP50();
+    }
+
+    @Override
+    public long getServiceTimeP90() {
+        return getStatistics().getServiceTimeP90();
+    }
+
+    @Override
+    public long getServiceTimeP99() {
+        return getStatistics().getServiceTimeP99();
+    }
+
+    @Override
+    public long getServiceTimeMax() {
+        return getStatistics().getServiceTimeMax();
+    }
+
+    @Override
+    public void resetStatistics() {
+        executor.resetStatistics();
+    }
+}
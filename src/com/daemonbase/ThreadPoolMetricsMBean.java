@@ -0,0 +1,45 @@
+package com.cellulant;
+
+/**
+ * JMX view of the {@link TaskExecutor} statistics, so that external tooling
+ * such as jconsole can read them. Latencies are in microseconds.
+ */
+public interface ThreadPoolMetricsMBean {
+
+    int getQueueDepth();
+
+    int getPoolSize();
+
+    int getActiveCount();
+
+    long getCompletedTasks();
+
+    long getFailedTasks();
+
+    long getRejectedTasks();
+
+    long getTimedOutTasks();
+
+    int getHungWorkers();
+
+    long getQueueWaitP50();
+
+    long getQueueWaitP90();
+
+    long getQueueWaitP99();
+
+    long getQueueWaitMax();
+
+    long getServiceTimeP50();
+
+    long getServiceTimeP90();
+
+    long getServiceTimeP99();
+
+    long getServiceTimeMax();
+
+    /**
+     * Clears the latency histograms and counters.
+     */
+    void resetStatistics();
+}
@@ -0,0 +1,143 @@
+package com.cellulant;
+
+import com.cellulant.utils.LatencyHistogram;
+
+/**
+ * A point in time view of the counters and latency percentiles kept by a
+ * {@link TaskExecutor}. Latencies are in microseconds. For a
+ * {@link VirtualThreadExecutor}, the pool size is the number of virtual
+ * threads running, and the queue wait is the time spent waiting for a
+ * permit.
+ */
+public final class ThreadPoolStatistics {
+    private final int queueDepth;
+    private final int poolSize;
+    private final int activeCount;
+    private final long completedTasks;
+    private final long failedTasks;
+    private final long rejectedTasks;
+    private final long timedOutTasks;
+    private final int hungWorkers;
+    private final long queueWaitP50;
+    private final long queueWaitP90;
+    private final long queueWaitP99;
+    private final long queueWaitMax;
+    private final long serviceTimeP50;
+    private final long serviceTimeP90;
+    private final long serviceTimeP99;
+    private final long serviceTimeMax;
+
+    /**
+     * Constructor.
+     *
+     * @param queueDepth number of tasks waiting in the queue
+     * @param poolSize number of workers
+     * @param activeCount number of workers running a task
+     * @param completedTasks number of tasks that ran to completion
+     * @param failedTasks number of tasks that threw an exception
+     * @param rejectedTasks number of tasks the pool did not accept
+     * @param timedOutTasks number of tasks that ran past their deadline
+     * @param hungWorkers number of replaced workers still stuck in a task
+     * @param queueWait histogram of the time tasks waited in the queue
+     * @param serviceTime histogram of the time tasks took to run
+     */
+    ThreadPoolStatistics(final int queueDepth, final int poolSize,
+            final int activeCount, final long completedTasks,
+            final long failedTasks, final long rejectedTasks,
+            final long timedOutTasks, final int hungWorkers,
+            final LatencyHistogram queueWait,
+            final LatencyHistogram serviceTime) {
+        this.queueDepth = queueDepth;
+        this.poolSize = poolSize;
+        this.activeCount = activeCount;
+        this.completedTasks = completedTasks;
+        this.failedTasks = failedTasks;
+        this.rejectedTasks = rejectedTasks;
+        this.timedOutTasks = timedOutTasks;
+        this.hungWorkers = hungWorkers;
+        this.queueWaitP50 = queueWait.getPercentile(50);
+        this.queueWaitP90 = queueWait.getPercentile(90);
+        this.queueWaitP99 = queueWait.getPercentile(99);
+        this.queueWaitMax = queueWait.getMax();
+        this.serviceTimeP50 = serviceTime.getPercentile(50);
+        this.serviceTimeP90 = serviceTime.getPercentile(90);
+        this.serviceTimeP99 = serviceTime.getPercentile(99);
+        this.serviceTimeMax = serviceTime.getMax();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    public long getFailedTasks() {
+        return failedTasks;
+    }
+
+    public long getRejectedTasks() {
+        return rejectedTasks;
+    }
+
+    public long getTimedOutTasks() {
+        return timedOutTasks;
+    }
+
+    public int getHungWorkers() {
+        return hungWorkers;
+    }
+
+    public long getQueueWaitP50() {
+        return queueWaitP50;
+    }
+
+    public long getQueueWaitP90() {
+        return queueWaitP90;
+    }
+
+    public long getQueueWaitP99() {
+        return queueWaitP99;
+    }
+
+    public long getQueueWaitMax() {
+        return queueWaitMax;
+    }
+
+    public long getServiceTimeP50() {
+        return serviceTimeP50;
+    }
+
+    public long getServiceTimeP90() {
+        return serviceTimeP90;
+    }
+
+    public long getServiceTimeP99() {
+        return serviceTimeP99;
+    }
+
+    public long getServiceTimeMax() {
+        return serviceTimeMax;
+    }
+
+    @Override
+    public String toString() {
+        return "queue=" + queueDepth + " workers=" + poolSize
+                + " active=" + activeCount + " completed=" + completedTasks
+                + " failed=" + failedTasks + " rejected=" + rejectedTasks
+                + " timedOut=" + timedOutTasks + " hung=" + hungWorkers
+                + " wait(us) p50/p90/p99/max=" + queueWaitP50 + "/"
+                + queueWaitP90 + "/" + queueWaitP99 + "/" + queueWaitMax
+                + " service(us) p50/p90/p99/max=" + serviceTimeP50 + "/"
+                + serviceTimeP90 + "/" + serviceTimeP99 + "/" + serviceTimeMax;
+    }
+}
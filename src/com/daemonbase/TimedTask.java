@@ -0,0 +1,17 @@
+package com.cellulant;
+
+/**
+ * A task with its own execution deadline. When a {@link ThreadPool} runs a
+ * TimedTask, the task's timeout replaces the pool's default task timeout.
+ *
+ * @see ThreadPool#withTimeout
+ */
+public interface TimedTask extends Runnable {
+
+    /**
+     * Get how long the task may run before it is interrupted.
+     *
+     * @return the timeout in milliseconds, 0 for no timeout
+     */
+    long getTimeoutMillis();
+}
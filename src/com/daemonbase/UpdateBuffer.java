@@ -0,0 +1,555 @@
+package com.cellulant;
+
+import com.cellulant.db.DATABASE;
+import com.cellulant.utils.Logging;
+import com.cellulant.utils.SettableFuture;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Collects the status updates of the workers and writes them behind, as
+ * JDBC batches on one connection, instead of borrowing a connection and
+ * running an autocommitted UPDATE for every record.</p>
+ *
+ * <p>A flusher thread writes the queued updates once UPDATE_BATCH_SIZE of
+ * them are waiting, or UPDATE_FLUSH_INTERVAL milliseconds after the oldest
+ * was queued. Consecutive updates with the same SQL go in one batch and one
+ * transaction, so the updates of a record are still applied in the order
+ * they were queued. If a batch fails it is rolled back and its updates are
+ * retried one at a time, so that one bad update does not fail the others.
+ * An update that still fails goes to the failed queries file, like a failed
+ * {@link AbstractDaemon#updateRecord(String, List)}.</p>
+ *
+ * <p>Each caller gets a future with its own outcome: the number of rows
+ * updated, or the exception it failed with, such as an SQLException or a
+ * parameter that cannot be bound. Callers block while four batches are
+ * waiting, so a slow database holds up the workers instead of filling the
+ * heap.</p>
+ */
+public class UpdateBuffer {
+    /**
+     * Number of batches that may wait before callers block.
+     */
+    private static final int MAX_PENDING_BATCHES = 4;
+    /**
+     * The daemon whose updates are buffered.
+     */
+    private final AbstractDaemon daemon;
+    /**
+     * The database connection pool.
+     */
+    private final DATABASE database;
+    /**
+     * Number of updates that triggers a flush.
+     */
+    private final int batchSize;
+    /**
+     * Longest an update waits before it is flushed, in milliseconds.
+     */
+    private final long flushInterval;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * Guards the pending updates.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when the flusher has work.
+     */
+    private final Condition flushNeeded = lock.newCondition();
+    /**
+     * Signalled when the flusher has taken the pending updates.
+     */
+    private final Condition notFull = lock.newCondition();
+    /**
+     * The updates waiting to be flushed, oldest first.
+     */
+    private List<PendingUpdate> pending = new ArrayList<PendingUpdate>();
+    /**
+     * When the oldest pending update was queued, from System.nanoTime().
+     */
+    private long oldestQueued;
+    /**
+     * Set to make the flusher write the pending updates now.
+     */
+    private boolean flushRequested;
+    /**
+     * The flusher thread, null until started.
+     */
+    private Thread flusher;
+    /**
+     * Whether the buffer has been stopped.
+     */
+    private volatile boolean stopped;
+    /**
+     * Number of batches written.
+     */
+    private volatile long flushCount;
+    /**
+     * Number of updates written.
+     */
+    private volatile long updateCount;
+    /**
+     * Number of updates that failed and went to the failsafe.
+     */
+    private volatile long failedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param daemon the daemon whose updates are buffered
+     * @param database the database connection pool
+     * @param batchSize the number of updates that triggers a flush
+     * @param flushInterval the longest an update waits before it is flushed,
+     *                      in milliseconds
+     * @param log the logging class
+     */
+    public UpdateBuffer(final AbstractDaemon daemon, final DATABASE database,
+            final int batchSize, final long flushInterval, final Logging log) {
+        if (batchSize < 1 || flushInterval < 1) {
+            throw new IllegalArgumentException("Invalid update buffer: batch "
+                    + "size " + batchSize + ", flush interval "
+                    + flushInterval);
+        }
+
+        this.daemon = daemon;
+        this.database = database;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.log = log;
+    }
+
+    /**
+     * Starts the flusher thread.
+     */
+    public synchronized void start() {
+        if (flusher != null || stopped) {
+            return;
+        }
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runFlusher();
+            }
+        }, daemon.getClass().getSimpleName() + "-UpdateFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        log.info(daemon.getLogPreString() + "Writing updates behind in "
+                + "batches of " + batchSize + ", at least every "
+                + flushInterval + " ms");
+    }
+
+    /**
+     * Queues an update.
+     *
+     * @param query the update query
+     * @param params the query parameters
+     * @return the number of rows updated, once written
+     *
+     * @throws InterruptedException if interrupted while the buffer is full
+     */
+    public SettableFuture<Integer> add(final String query,
+            final List<Object> params) throws InterruptedException {
+        PendingUpdate update = new PendingUpdate(query, params);
+        lock.lockInterruptibly();
+        try {
+            while (!stopped
+                    && pending.size() >= batchSize * MAX_PENDING_BATCHES) {
+                notFull.await();
+            }
+            if (stopped) {
+                throw new IllegalStateException("The update buffer is stopped");
+            }
+
+            if (pending.isEmpty()) {
+                oldestQueued = System.nanoTime();
+                flushNeeded.signal();
+            }
+            pending.add(update);
+            if (pending.size() >= batchSize) {
+                flushNeeded.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return update.result;
+    }
+
+    /**
+     * Asks the flusher to write the pending updates now.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            flushRequested = true;
+            flushNeeded.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting updates, writes the pending ones and stops the flusher.
+     */
+    public void stop() {
+        Thread thread;
+        lock.lock();
+        try {
+            stopped = true;
+            flushNeeded.signal();
+            notFull.signalAll();
+            thread = flusher;
+        } finally {
+            lock.unlock();
+        }
+
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Not started, or interrupted: write what is left on this thread
+        write(takePending());
+    }
+
+    /**
+     * Get the number of updates waiting to be written.
+     *
+     * @return the pending update count
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of batches written.
+     *
+     * @return the flush count
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Get the number of updates written.
+     *
+     * @return the update count
+     */
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * Get the number of updates that failed and went to the failed queries
+     * file.
+     *
+     * @return the failed update count
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Writes the pending updates whenever a batch is full or the oldest has
+     * waited the flush interval, until stopped.
+     */
+    private void runFlusher() {
+        while (true) {
+            List<PendingUpdate> batch;
+            lock.lock();
+            try {
+                while (!stopped && !isFlushDue()) {
+                    if (pending.isEmpty()) {
+                        flushNeeded.await();
+                    } else {
+                        long waited = System.nanoTime() - oldestQueued;
+                        flushNeeded.awaitNanos(TimeUnit.MILLISECONDS
+                                .toNanos(flushInterval) - waited);
+                    }
+                }
+                if (stopped && pending.isEmpty()) {
+                    return;
+                }
+                batch = takePendingLocked();
+            } catch (InterruptedException ex) {
+                if (!stopped) {
+                    log.error(daemon.getLogPreString() + "Update flusher "
+                            + "interrupted: " + ex.getMessage());
+                }
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                write(batch);
+            } catch (RuntimeException ex) {
+                // Keep flushing, or callers would block on a full buffer
+                log.error(daemon.getLogPreString() + "Update flusher failed "
+                        + "to write a batch: " + ex.getMessage(), ex);
+                for (PendingUpdate update : batch) {
+                    if (!update.result.isDone()) {
+                        fail(update, ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the pending updates should be written now. Called with
+     * the lock held.
+     *
+     * @return true if a flush is due
+     */
+    private boolean isFlushDue() {
+        if (pending.isEmpty()) {
+            flushRequested = false;
+            return false;
+        }
+
+        return flushRequested || pending.size() >= batchSize
+                || System.nanoTime() - oldestQueued
+                >= TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    }
+
+    /**
+     * Takes the pending updates.
+     *
+     * @return the updates, oldest first
+     */
+    private List<PendingUpdate> takePending() {
+        lock.lock();
+        try {
+            return takePendingLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the pending updates. Called with the lock held.
+     *
+     * @return the updates, oldest first
+     */
+    private List<PendingUpdate> takePendingLocked() {
+        List<PendingUpdate> taken = pending;
+        pending = new ArrayList<PendingUpdate>();
+        flushRequested = false;
+        notFull.signalAll();
+        return taken;
+    }
+
+    /**
+     * Writes updates in runs of the same query, one batch per run.
+     *
+     * @param updates the updates, oldest first
+     */
+    private void write(final List<PendingUpdate> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            int start = 0;
+            while (start < updates.size()) {
+                String query = updates.get(start).query;
+                int end = start + 1;
+                while (end < updates.size()
+                        && updates.get(end).query.equals(query)) {
+                    end++;
+                }
+
+                writeRun(conn, updates.subList(start, end));
+                start = end;
+            }
+        } catch (SQLException ex) {
+            log.error(daemon.getLogPreString() + "Update flusher failed to "
+                    + "get a connection: " + ex.getMessage(), ex);
+            for (PendingUpdate update : updates) {
+                if (!update.result.isDone()) {
+                    fail(update, ex);
+                }
+            }
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    log.error(daemon.getLogPreString() + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes updates with the same query as one batch in one transaction. If
+     * the batch fails, it is rolled back and the updates are run one at a
+     * time.
+     *
+     * @param conn the connection
+     * @param run the updates
+     *
+     * @throws SQLException if the connection cannot be used at all
+     */
+    private void writeRun(final Connection conn,
+            final List<PendingUpdate> run) throws SQLException {
+        String query = run.get(0).query;
+        boolean autoCommit = conn.getAutoCommit();
+        PreparedStatement stmt = null;
+        boolean written = false;
+        try {
+            conn.setAutoCommit(false);
+            stmt = conn.prepareStatement(query);
+            for (PendingUpdate update : run) {
+                daemon.setParameters(stmt, update.params, false);
+                stmt.addBatch();
+            }
+
+            int[] counts = stmt.executeBatch();
+            conn.commit();
+            written = true;
+
+            flushCount++;
+            updateCount += run.size();
+            for (int i = 0; i < run.size(); i++) {
+                run.get(i).result.set(i < counts.length ? counts[i] : 0);
+            }
+        } catch (SQLException ex) {
+            rollback(conn, run, ex);
+        } catch (RuntimeException ex) {
+            // An update whose parameters cannot be bound
+            rollback(conn, run, ex);
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    log.error(daemon.getLogPreString() + e.getMessage());
+                }
+            }
+            conn.setAutoCommit(autoCommit);
+        }
+
+        if (written) {
+            return;
+        }
+
+        for (PendingUpdate update : run) {
+            writeOne(conn, update);
+        }
+    }
+
+    /**
+     * Rolls back a failed batch before its updates are run one at a time.
+     *
+     * @param conn the connection
+     * @param run the updates
+     * @param cause the failure
+     */
+    private void rollback(final Connection conn, final List<PendingUpdate> run,
+            final Exception cause) {
+        log.error(daemon.getLogPreString() + "Batch of " + run.size()
+                + " updates failed, retrying them one at a time: "
+                + cause.getMessage());
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            log.error(daemon.getLogPreString() + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs one update on its own.
+     *
+     * @param conn the connection, in autocommit mode
+     * @param update the update
+     */
+    private void writeOne(final Connection conn, final PendingUpdate update) {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement(update.query);
+            daemon.setParameters(stmt, update.params, false);
+            update.result.set(stmt.executeUpdate());
+            updateCount++;
+        } catch (SQLException ex) {
+            fail(update, ex);
+        } catch (RuntimeException ex) {
+            fail(update, ex);
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    log.error(daemon.getLogPreString() + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a failed update to the failed queries file and fails its future.
+     *
+     * @param update the update
+     * @param cause the failure
+     */
+    private void fail(final PendingUpdate update, final Exception cause) {
+        failedCount++;
+        log.error(daemon.getLogPreString() + "Buffered update failed: "
+                + cause.getMessage());
+        log.info(daemon.getLogPreString() + "Invoking failsafe => updateFile()");
+        daemon.logFailedUpdate(update.query, update.params);
+        update.result.setException(cause);
+    }
+
+    /**
+     * An update waiting to be written.
+     */
+    private static final class PendingUpdate {
+        /**
+         * The update query.
+         */
+        private final String query;
+        /**
+         * The query parameters.
+         */
+        private final List<Object> params;
+        /**
+         * Completed once the update is written.
+         */
+        private final SettableFuture<Integer> result =
+                new SettableFuture<Integer>();
+
+        /**
+         * Constructor.
+         *
+         * @param query the update query
+         * @param params the query parameters
+         */
+        PendingUpdate(final String query, final List<Object> params) {
+            this.query = query;
+            this.params = params;
+        }
+    }
+}
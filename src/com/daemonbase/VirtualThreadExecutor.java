@@ -0,0 +1,323 @@
+package com.cellulant;
+
+import com.cellulant.utils.LatencyHistogram;
+import com.cellulant.utils.Logging;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Runs every task on its own virtual thread. Instead of a fixed number of
+ * worker threads, a semaphore caps the number of tasks in flight, and callers
+ * wait for a permit when the cap is reached. The time spent waiting for a
+ * permit is recorded as the queue wait, alongside the service time.</p>
+ *
+ * <p>Virtual threads need Java 21 or later. They are looked up reflectively,
+ * so use {@link #isSupported()} to decide whether to fall back to a
+ * {@link ThreadPool}.</p>
+ */
+public class VirtualThreadExecutor implements TaskExecutor {
+    /**
+     * Factory for virtual threads, null if the runtime has none.
+     */
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY =
+            lookupVirtualThreadFactory();
+    /**
+     * Limits the number of tasks in flight.
+     */
+    private final Semaphore permits;
+    /**
+     * The maximum number of tasks in flight.
+     */
+    private final int maxConcurrency;
+    /**
+     * The threads currently running tasks.
+     */
+    private final Set<Thread> running = Collections.newSetFromMap(
+            new ConcurrentHashMap<Thread, Boolean>());
+    /**
+     * Histogram of the time tasks waited for a permit, in microseconds.
+     */
+    private final LatencyHistogram queueWaitHistogram = new LatencyHistogram();
+    /**
+     * Histogram of the time tasks took to run, in microseconds.
+     */
+    private final LatencyHistogram serviceTimeHistogram =
+            new LatencyHistogram();
+    /**
+     * Number of tasks that ran to completion.
+     */
+    private final AtomicLong completedTasks = new AtomicLong();
+    /**
+     * Number of tasks that threw an exception.
+     */
+    private final AtomicLong failedTasks = new AtomicLong();
+    /**
+     * Number of tasks not accepted within their timeout.
+     */
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    /**
+     * Flag to check if the executor can accept new tasks.
+     */
+    private volatile boolean isAlive = true;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+
+    /**
+     * Constructor.
+     *
+     * @param maxConcurrency the maximum number of tasks in flight
+     * @param log the logging class for the executor
+     *
+     * @throws UnsupportedOperationException if the runtime has no virtual
+     *                                       threads
+     */
+    public VirtualThreadExecutor(final int maxConcurrency, final Logging log) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not supported by this runtime");
+        }
+
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.permits = new Semaphore(this.maxConcurrency);
+        this.log = log;
+    }
+
+    /**
+     * Check whether the runtime supports virtual threads.
+     *
+     * @return true if virtual threads are available
+     */
+    public static boolean isSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Looks up Thread.ofVirtual().name("VirtualWorker-", 0).factory().
+     *
+     * @return the factory, or null if the runtime has no virtual threads
+     */
+    private static ThreadFactory lookupVirtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class,
+                    long.class);
+            Method factory = builderClass.getMethod("factory");
+
+            Object builder = ofVirtual.invoke(null);
+            builder = name.invoke(builder, "VirtualWorker-", 0L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void runTask(final Runnable task) {
+        checkAlive();
+
+        if (task != null) {
+            long queued = System.nanoTime();
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting "
+                        + "for a free task slot", ex);
+            }
+
+            start(task, queued);
+        }
+    }
+
+    @Override
+    public void runTasks(final Collection<? extends Runnable> tasks) {
+        for (Runnable task : tasks) {
+            runTask(task);
+        }
+    }
+
+    @Override
+    public boolean runTask(final Runnable task, final long timeout,
+            final TimeUnit unit) throws InterruptedException {
+        checkAlive();
+
+        if (task == null) {
+            return true;
+        }
+
+        long queued = System.nanoTime();
+        if (!permits.tryAcquire(timeout, unit)) {
+            rejectedTasks.incrementAndGet();
+            return false;
+        }
+
+        start(task, queued);
+        return true;
+    }
+
+    @Override
+    public boolean tryRunTask(final Runnable task) {
+        checkAlive();
+
+        if (task == null) {
+            return true;
+        }
+
+        if (!permits.tryAcquire()) {
+            rejectedTasks.incrementAndGet();
+            return false;
+        }
+
+        start(task, System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Starts a virtual thread for a task that already holds a permit.
+     *
+     * @param task the task to run
+     * @param queued when the task was handed over, from System.nanoTime()
+     */
+    private void start(final Runnable task, final long queued) {
+        Thread thread;
+        try {
+            thread = VIRTUAL_THREAD_FACTORY.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    Thread current = Thread.currentThread();
+                    long started = System.nanoTime();
+                    boolean failed = false;
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        failed = true;
+                        log.error("VirtualThreadExecutor | Task failed: "
+                                + t.getMessage(), t);
+                    } finally {
+                        queueWaitHistogram.record((started - queued) / 1000);
+                        serviceTimeHistogram.record(
+                                (System.nanoTime() - started) / 1000);
+                        if (failed) {
+                            failedTasks.incrementAndGet();
+                        } else {
+                            completedTasks.incrementAndGet();
+                        }
+                        running.remove(current);
+                        permits.release();
+                    }
+                }
+            });
+            running.add(thread);
+            thread.start();
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Throws if this executor can no longer accept tasks.
+     */
+    private void checkAlive() {
+        if (!isAlive) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Tasks never wait in a queue here, callers wait for a permit instead.
+     *
+     * @return the number of callers waiting for a permit
+     */
+    @Override
+    public int getListSize() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Get the number of tasks currently running.
+     *
+     * @return the number of tasks in flight
+     */
+    public int getActiveCount() {
+        return maxConcurrency - permits.availablePermits();
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        return completedTasks.get() + failedTasks.get();
+    }
+
+    /**
+     * Get the maximum number of tasks in flight.
+     *
+     * @return the concurrency limit
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public boolean isBounded() {
+        return true;
+    }
+
+    @Override
+    public ThreadPoolStatistics getStatistics() {
+        return new ThreadPoolStatistics(getListSize(), running.size(),
+                getActiveCount(), completedTasks.get(), failedTasks.get(),
+                rejectedTasks.get(), 0, 0, queueWaitHistogram,
+                serviceTimeHistogram);
+    }
+
+    @Override
+    public void resetStatistics() {
+        queueWaitHistogram.reset();
+        serviceTimeHistogram.reset();
+        completedTasks.set(0);
+        failedTasks.set(0);
+        rejectedTasks.set(0);
+    }
+
+    @Override
+    public void clearQueue() {
+        // Nothing is queued
+    }
+
+    @Override
+    public void join() {
+        isAlive = false;
+
+        try {
+            if (permits.tryAcquire(maxConcurrency, 2000 + running.size() * 10L,
+                    TimeUnit.MILLISECONDS)) {
+                permits.release(maxConcurrency);
+            } else {
+                log.info("VirtualThreadExecutor | " + getActiveCount()
+                        + " task(s) still running after the join timeout");
+            }
+        } catch (InterruptedException ex) {
+            log.info("VirtualThreadExecutor | Failed to finish all tasks: "
+                    + ex.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        isAlive = false;
+
+        for (Thread thread : running) {
+            thread.interrupt();
+        }
+    }
+}
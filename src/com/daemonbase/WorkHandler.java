@@ -0,0 +1,18 @@
+package com.cellulant;
+
+/**
+ * Processes the items that {@link AbstractDaemon#fetchWork(WorkHandler)}
+ * claims from the daemon's {@link WorkSource}.
+ */
+public interface WorkHandler {
+    /**
+     * Processes an item on a worker thread. The item is acknowledged if this
+     * returns true, and rejected if it returns false or throws.
+     *
+     * @param item the claimed item
+     * @return true if the item was processed
+     *
+     * @throws Exception if processing failed
+     */
+    boolean handle(WorkItem item) throws Exception;
+}
@@ -0,0 +1,70 @@
+package com.cellulant;
+
+/**
+ * A unit of work claimed from a {@link WorkSource}. It is handed back to the
+ * same source to be acknowledged, rejected or released.
+ */
+public final class WorkItem {
+    /**
+     * Identifies the item within its source.
+     */
+    private final Object id;
+    /**
+     * The work itself.
+     */
+    private final Object payload;
+    /**
+     * How many times the item has been claimed, including this time.
+     */
+    private final int deliveryCount;
+
+    /**
+     * Constructor.
+     *
+     * @param id identifies the item within its source
+     * @param payload the work itself
+     * @param deliveryCount how many times the item has been claimed,
+     *                      including this time
+     */
+    public WorkItem(final Object id, final Object payload,
+            final int deliveryCount) {
+        this.id = id;
+        this.payload = payload;
+        this.deliveryCount = deliveryCount;
+    }
+
+    /**
+     * Get the ID of the item within its source: the primary key of a table
+     * row, or the name of a queue entry.
+     *
+     * @return the item ID
+     */
+    public Object getId() {
+        return id;
+    }
+
+    /**
+     * Get the work itself. What it is depends on the source: the columns of
+     * a table row as a Map, or the object or text that was queued.
+     *
+     * @return the payload
+     */
+    public Object getPayload() {
+        return payload;
+    }
+
+    /**
+     * Get how many times the item has been claimed, including this time. It
+     * is 1 unless the item was rejected before, or the source cannot tell.
+     *
+     * @return the delivery count
+     */
+    public int getDeliveryCount() {
+        return deliveryCount;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkItem[id=" + id + ", deliveries=" + deliveryCount + "]";
+    }
+}
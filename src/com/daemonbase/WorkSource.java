@@ -0,0 +1,61 @@
+package com.cellulant;
+
+import java.util.List;
+
+/**
+ * <p>Where the daemon gets its work from. A source hands out items with
+ * {@link #claim(int)}, and each claimed item must be handed back exactly once:
+ * acknowledged when processed, rejected when it failed and should be tried
+ * again, or released when it was never started.</p>
+ *
+ * <p>{@link TablePollingWorkSource} claims buckets from the main daemon
+ * table, which is the default. {@link InMemoryWorkSource} and
+ * {@link FileQueueWorkSource} let the processing run without a database, or
+ * let latency-critical flows push work instead of waiting for a poll. Set the
+ * source with {@link AbstractDaemon#setWorkSource(WorkSource)} and dispatch
+ * its items with {@link AbstractDaemon#fetchWork(WorkHandler)}.</p>
+ *
+ * <p>Implementations must be safe to call from the worker threads.</p>
+ */
+public interface WorkSource {
+    /**
+     * Claims up to a number of items. Claimed items are not handed out again
+     * until they are rejected or released.
+     *
+     * @param maxItems the most items to claim
+     * @return the claimed items, empty if there is no work or the source is
+     *         unavailable
+     */
+    List<WorkItem> claim(int maxItems);
+
+    /**
+     * Marks an item as processed.
+     *
+     * @param item a claimed item
+     * @return true if the source recorded it
+     */
+    boolean ack(WorkItem item);
+
+    /**
+     * Marks an item as failed. The source hands it out again later, unless
+     * it has run out of retries.
+     *
+     * @param item a claimed item
+     * @return true if the source recorded it
+     */
+    boolean nack(WorkItem item);
+
+    /**
+     * Hands an item back unprocessed, without counting it as a failure.
+     *
+     * @param item a claimed item
+     * @return true if the source took it back
+     */
+    boolean release(WorkItem item);
+
+    /**
+     * Releases anything the source still holds. Items claimed and not yet
+     * handed back are released.
+     */
+    void close();
+}
@@ -0,0 +1,442 @@
+package com.cellulant;
+
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A task queue made up of one deque per worker thread. Each worker takes
+ * tasks from its own deque and, once that is empty, steals from the deques of
+ * the other workers. Threads that are not workers spread their tasks across
+ * the deques in turn, while tasks queued from inside a running task go to the
+ * deque of the worker that queued them.</p>
+ *
+ * <p>Workers therefore contend on a deque only while stealing, instead of all
+ * of them sharing one monitor. Tasks still start in roughly the order they are
+ * received, but strict FIFO ordering across the whole pool is not
+ * guaranteed.</p>
+ */
+public class WorkStealingTaskQueue implements TaskQueue {
+    /**
+     * One deque per worker.
+     */
+    private final LinkedBlockingDeque<Runnable>[] deques;
+    /**
+     * The maximum number of tasks across all the deques.
+     */
+    private final int capacity;
+    /**
+     * Number of tasks across all the deques.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+    /**
+     * Round robin cursor for tasks queued by threads that are not workers.
+     */
+    private final AtomicInteger nextDeque = new AtomicInteger();
+    /**
+     * Slot handed to the next worker that takes a task.
+     */
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    /**
+     * The deque owned by the current worker thread, if any.
+     */
+    private final ThreadLocal<Integer> ownSlot = new ThreadLocal<Integer>();
+    /**
+     * Lock used only to park and wake up waiting threads.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a task is added.
+     */
+    private final Condition notEmpty = lock.newCondition();
+    /**
+     * Signalled when a task is removed.
+     */
+    private final Condition notFull = lock.newCondition();
+    /**
+     * Number of consumers sleeping on notEmpty.
+     */
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    /**
+     * Number of producers sleeping on notFull.
+     */
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    /**
+     * Flag to check if the queue can accept new tasks.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Creates an unbounded work stealing queue.
+     *
+     * @param parallelism the number of worker deques
+     */
+    public WorkStealingTaskQueue(final int parallelism) {
+        this(parallelism, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param parallelism the number of worker deques
+     * @param capacity the maximum number of queued tasks, 0 for unbounded
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public WorkStealingTaskQueue(final int parallelism, final int capacity) {
+        int size = Math.max(1, parallelism);
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+        deques = new LinkedBlockingDeque[size];
+        for (int i = 0; i < size; i++) {
+            deques[i] = new LinkedBlockingDeque<Runnable>();
+        }
+    }
+
+    @Override
+    public boolean offer(final Runnable task) {
+        checkOpen();
+
+        if (!reserve()) {
+            return false;
+        }
+
+        push(task);
+        return true;
+    }
+
+    @Override
+    public boolean offer(final Runnable task, final long timeout,
+            final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        while (true) {
+            if (offer(task)) {
+                return true;
+            }
+
+            if (nanos <= 0) {
+                return false;
+            }
+
+            lock.lockInterruptibly();
+            try {
+                waitingProducers.incrementAndGet();
+                try {
+                    if (!closed && count.get() >= capacity) {
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } finally {
+                    waitingProducers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void put(final Runnable task) throws InterruptedException {
+        while (!offer(task)) {
+            lock.lockInterruptibly();
+            try {
+                waitingProducers.incrementAndGet();
+                try {
+                    if (!closed && count.get() >= capacity) {
+                        notFull.await();
+                    }
+                } finally {
+                    waitingProducers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void putAll(final Collection<? extends Runnable> tasks)
+            throws InterruptedException {
+        checkOpen();
+
+        int added = 0;
+        for (Runnable task : tasks) {
+            if (!reserve()) {
+                // Full: wake the consumers for what is in, then wait for space
+                signalNotEmpty(added);
+                added = 0;
+                put(task);
+                continue;
+            }
+
+            if (task == null) {
+                count.decrementAndGet();
+                throw new NullPointerException("task");
+            }
+
+            // Spread the batch over the deques so every worker gets a share
+            deques[nextIndex()].offerLast(task);
+            added++;
+        }
+
+        signalNotEmpty(added);
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        int slot = getOwnSlot();
+
+        while (true) {
+            Runnable task = poll(slot);
+            if (task != null) {
+                return task;
+            }
+
+            if (closed && count.get() == 0) {
+                return null;
+            }
+
+            if (count.get() > 0) {
+                // A task is being pushed or stolen right now, try again
+                Thread.yield();
+                continue;
+            }
+
+            lock.lockInterruptibly();
+            try {
+                waitingConsumers.incrementAndGet();
+                try {
+                    if (!closed && count.get() == 0) {
+                        notEmpty.await();
+                    }
+                } finally {
+                    waitingConsumers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        int slot = getOwnSlot();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (true) {
+            Runnable task = poll(slot);
+            if (task != null) {
+                return task;
+            }
+
+            long nanos = deadline - System.nanoTime();
+            if ((closed && count.get() == 0) || nanos <= 0) {
+                return null;
+            }
+
+            if (count.get() > 0) {
+                Thread.yield();
+                continue;
+            }
+
+            lock.lockInterruptibly();
+            try {
+                waitingConsumers.incrementAndGet();
+                try {
+                    if (!closed && count.get() == 0) {
+                        notEmpty.awaitNanos(nanos);
+                    }
+                } finally {
+                    waitingConsumers.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        if (capacity == Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        }
+
+        return Math.max(0, capacity - count.get());
+    }
+
+    @Override
+    public void clear() {
+        for (LinkedBlockingDeque<Runnable> deque : deques) {
+            while (deque.pollFirst() != null) {
+                count.decrementAndGet();
+                signalNotFull();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves room for one task.
+     *
+     * @return false if the queue is full
+     */
+    private boolean reserve() {
+        while (true) {
+            int current = count.get();
+            if (current >= capacity) {
+                return false;
+            }
+
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Pushes a task for which room has already been reserved.
+     *
+     * @param task the task to push
+     */
+    private void push(final Runnable task) {
+        if (task == null) {
+            count.decrementAndGet();
+            throw new NullPointerException("task");
+        }
+
+        Integer slot = ownSlot.get();
+        int index = slot != null ? slot : nextIndex();
+
+        deques[index].offerLast(task);
+        signalNotEmpty();
+    }
+
+    /**
+     * Get the next deque in round robin order.
+     *
+     * @return the deque index
+     */
+    private int nextIndex() {
+        return (nextDeque.getAndIncrement() & Integer.MAX_VALUE)
+                % deques.length;
+    }
+
+    /**
+     * Takes a task from the worker's own deque, or steals one from another.
+     *
+     * @param slot the worker's own deque
+     * @return a task, or null if none was found
+     */
+    private Runnable poll(final int slot) {
+        Runnable task = deques[slot].pollFirst();
+        if (task == null) {
+            /*
+             * Steal the oldest task of the next busy worker so that tasks
+             * keep starting in roughly the order they were received.
+             */
+            for (int i = 1; i < deques.length && task == null; i++) {
+                task = deques[(slot + i) % deques.length].pollFirst();
+            }
+        }
+
+        if (task != null) {
+            count.decrementAndGet();
+            signalNotFull();
+        }
+
+        return task;
+    }
+
+    /**
+     * Get the deque owned by the calling worker thread, assigning one on its
+     * first call.
+     *
+     * @return the index of the worker's deque
+     */
+    private int getOwnSlot() {
+        Integer slot = ownSlot.get();
+        if (slot == null) {
+            slot = (nextSlot.getAndIncrement() & Integer.MAX_VALUE)
+                    % deques.length;
+            ownSlot.set(slot);
+        }
+
+        return slot;
+    }
+
+    /**
+     * Wakes up one sleeping consumer, if there is one.
+     */
+    private void signalNotEmpty() {
+        if (waitingConsumers.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wakes up to the specified number of sleeping consumers with a single
+     * lock acquisition.
+     *
+     * @param added the number of tasks just added
+     */
+    private void signalNotEmpty(final int added) {
+        int toWake = Math.min(added, waitingConsumers.get());
+        if (toWake > 0) {
+            lock.lock();
+            try {
+                for (int i = 0; i < toWake; i++) {
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wakes up one sleeping producer, if there is one.
+     */
+    private void signalNotFull() {
+        if (waitingProducers.get() > 0) {
+            lock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Throws if the queue no longer accepts tasks.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Task queue is closed");
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.cellulant.db;
+
+import com.cellulant.utils.Logging;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Runs a large UPDATE as a series of small ones, so that no statement
+ * holds its locks for long or leaves a large transaction for the replicas to
+ * catch up on.</p>
+ *
+ * <p>The matching rows are walked in primary key order: each chunk selects
+ * the keys of the next RESET_CHUNK_SIZE matching rows after the last key
+ * seen, then updates those rows, checking the condition again. Each
+ * statement commits on its own, and the walk pauses RESET_CHUNK_PAUSE
+ * milliseconds between chunks. The same SQL works on every database, as no
+ * UPDATE ... LIMIT is needed.</p>
+ *
+ * <p>A chunk that fails is tried again, up to MAX_CHUNK_ATTEMPTS times with
+ * a doubling pause in between. If it still fails, for example because
+ * MAIN_TABLE_PRIMARY_KEY is wrong, or if the walk is interrupted, the walk
+ * stops and throws an SQLException saying how many rows were updated, so
+ * the caller knows the update is incomplete. With a chunk size of 0 the
+ * update runs as one statement.</p>
+ */
+public final class ChunkedUpdater {
+    /**
+     * Most attempts at a chunk before the walk stops.
+     */
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    /**
+     * Pause before the first retry of a chunk, in milliseconds.
+     */
+    private static final long MIN_RETRY_PAUSE = 100;
+    /**
+     * The database connection pool.
+     */
+    private final DATABASE database;
+    /**
+     * The primary key column of the tables updated.
+     */
+    private final String primaryKey;
+    /**
+     * Most rows per statement, 0 for a single statement.
+     */
+    private final int chunkSize;
+    /**
+     * Pause between chunks, in milliseconds.
+     */
+    private final long pauseMillis;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+
+    /**
+     * Constructor.
+     *
+     * @param database the database connection pool
+     * @param primaryKey the primary key column of the tables updated
+     * @param chunkSize the most rows per statement, 0 for a single statement
+     * @param pauseMillis the pause between chunks, in milliseconds
+     * @param log the logging class
+     */
+    public ChunkedUpdater(final DATABASE database, final String primaryKey,
+            final int chunkSize, final long pauseMillis, final Logging log) {
+        this.database = database;
+        this.primaryKey = primaryKey;
+        this.chunkSize = chunkSize;
+        this.pauseMillis = pauseMillis;
+        this.log = log;
+    }
+
+    /**
+     * Updates the matching rows of a table in chunks.
+     *
+     * @param description what the update does, for the progress log
+     * @param table the table
+     * @param assignments the SET clause, without parameters
+     * @param condition the WHERE clause
+     * @param params the parameters of the WHERE clause
+     * @return the number of rows updated
+     *
+     * @throws SQLException if the update fails or is interrupted before all
+     *                      the matching rows are updated
+     */
+    public int update(final String description, final String table,
+            final String assignments, final String condition,
+            final Object... params) throws SQLException {
+        if (chunkSize <= 0) {
+            return executeUpdate("UPDATE " + table + " SET " + assignments
+                    + " WHERE " + condition, Arrays.asList(params));
+        }
+
+        return updateInChunks(description, table, assignments, condition,
+                params);
+    }
+
+    /**
+     * Walks the matching rows in primary key order, a chunk at a time.
+     *
+     * @param description what the update does, for the progress log
+     * @param table the table
+     * @param assignments the SET clause, without parameters
+     * @param condition the WHERE clause
+     * @param params the parameters of the WHERE clause
+     * @return the number of rows updated
+     *
+     * @throws SQLException if a chunk keeps failing, or the walk is
+     *                      interrupted
+     */
+    private int updateInChunks(final String description, final String table,
+            final String assignments, final String condition,
+            final Object[] params) throws SQLException {
+        long start = System.currentTimeMillis();
+        int total = 0;
+        int chunks = 0;
+        Object lastKey = null;
+        while (true) {
+            List<Object> keys = null;
+            int attempt = 1;
+            long retryPause = Math.max(MIN_RETRY_PAUSE, pauseMillis);
+            while (keys == null) {
+                try {
+                    keys = selectKeys(table, condition, params, lastKey);
+                    if (!keys.isEmpty()) {
+                        total += updateChunk(table, assignments, condition,
+                                params, keys);
+                    }
+                } catch (SQLException e) {
+                    keys = null;
+                    if (attempt >= MAX_CHUNK_ATTEMPTS) {
+                        throw new SQLException(description + " of " + table
+                                + " stopped after " + total + " rows, a chunk "
+                                + "failed " + attempt + " times: "
+                                + e.getMessage(), e.getSQLState(), e);
+                    }
+
+                    log.error("ChunkedUpdater | " + description + ": a chunk "
+                            + "of " + table + " failed, trying again in "
+                            + retryPause + " ms: " + e.getMessage());
+                    attempt++;
+                    pause(description, table, total, retryPause);
+                    retryPause *= 2;
+                }
+            }
+
+            if (keys.isEmpty()) {
+                break;
+            }
+            chunks++;
+            lastKey = keys.get(keys.size() - 1);
+
+            if (keys.size() < chunkSize) {
+                break;
+            }
+
+            log.info("ChunkedUpdater | " + description + ": " + total
+                    + " rows of " + table + " so far, up to " + primaryKey
+                    + " " + lastKey);
+            if (pauseMillis > 0) {
+                pause(description, table, total, pauseMillis);
+            }
+        }
+
+        if (total > 0) {
+            log.info("ChunkedUpdater | " + description + ": " + total
+                    + " rows of " + table + " in " + chunks + " chunks, "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        return total;
+    }
+
+    /**
+     * Updates the rows of a chunk, checking the condition again.
+     *
+     * @param table the table
+     * @param assignments the SET clause, without parameters
+     * @param condition the WHERE clause
+     * @param params the parameters of the WHERE clause
+     * @param keys the keys of the chunk
+     * @return the number of rows updated
+     *
+     * @throws SQLException on error
+     */
+    private int updateChunk(final String table, final String assignments,
+            final String condition, final Object[] params,
+            final List<Object> keys) throws SQLException {
+        StringBuilder query = new StringBuilder("UPDATE ").append(table)
+                .append(" SET ").append(assignments).append(" WHERE ")
+                .append(primaryKey).append(" IN (");
+        for (int i = 0; i < keys.size(); i++) {
+            query.append(i == 0 ? "?" : ", ?");
+        }
+        query.append(") AND (").append(condition).append(")");
+
+        List<Object> updateParams = new ArrayList<Object>(keys);
+        updateParams.addAll(Arrays.asList(params));
+        return executeUpdate(query.toString(), updateParams);
+    }
+
+    /**
+     * Pauses the walk.
+     *
+     * @param description what the update does, for the error
+     * @param table the table
+     * @param total the number of rows updated so far
+     * @param millis how long to pause
+     *
+     * @throws SQLException if interrupted, which stops the walk
+     */
+    private void pause(final String description, final String table,
+            final int total, final long millis) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(description + " of " + table + " was "
+                    + "interrupted after " + total + " rows", ex);
+        }
+    }
+
+    /**
+     * Selects the keys of the next chunk of matching rows.
+     *
+     * @param table the table
+     * @param condition the WHERE clause
+     * @param params the parameters of the WHERE clause
+     * @param lastKey the last key seen, null to start from the beginning
+     * @return the keys, in order
+     *
+     * @throws SQLException on error
+     */
+    private List<Object> selectKeys(final String table,
+            final String condition, final Object[] params,
+            final Object lastKey) throws SQLException {
+        String query = "SELECT " + primaryKey + " FROM " + table + " WHERE ("
+                + condition + ")" + (lastKey != null ? " AND " + primaryKey
+                + " > ?" : "") + " ORDER BY " + primaryKey + " LIMIT ?";
+
+        List<Object> keys = new ArrayList<Object>();
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = database.getConnection();
+            stmt = conn.prepareStatement(query);
+            int index = 1;
+            for (Object param : params) {
+                stmt.setObject(index++, param);
+            }
+            if (lastKey != null) {
+                stmt.setObject(index++, lastKey);
+            }
+            stmt.setInt(index, chunkSize);
+
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                keys.add(rs.getObject(1));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (SQLException e) {
+                    log.error("ChunkedUpdater | " + e.getMessage());
+                }
+            }
+            close(stmt, conn);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Runs an update statement.
+     *
+     * @param query the query
+     * @param params the parameters
+     * @return the number of rows affected
+     *
+     * @throws SQLException on error
+     */
+    private int executeUpdate(final String query, final List<Object> params)
+            throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = database.getConnection();
+            stmt = conn.prepareStatement(query);
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+
+            return stmt.executeUpdate();
+        } finally {
+            close(stmt, conn);
+        }
+    }
+
+    /**
+     * Closes a statement and its connection, logging any errors.
+     *
+     * @param stmt the statement, may be null
+     * @param conn the connection, may be null
+     */
+    private void close(final PreparedStatement stmt, final Connection conn) {
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                log.error("ChunkedUpdater | Failed to close statement: "
+                        + e.getMessage());
+            }
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                log.error("ChunkedUpdater | Failed to close connection: "
+                        + e.getMessage());
+            }
+        }
+    }
+}
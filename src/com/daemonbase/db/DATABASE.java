@@ -1,6 +1,7 @@
 package com.cellulant.db;
 
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import org.apache.commons.dbcp.ConnectionFactory;
@@ -30,6 +31,10 @@ public final class DATABASE {
      */
     private String poolName;
     private int poolSize;
+    /**
+     * The URL the pooled connections are opened with.
+     */
+    private String connectionURL;
 
     public enum DATABASETYPE {
 
@@ -65,6 +70,7 @@ public final class DATABASE {
         Class.forName(databaseDriver).newInstance();
         this.poolName = poolName;
         this.poolSize = poolSize;
+        this.connectionURL = databasePreconnectionURL;
 
         setupDriver(databasePreconnectionURL);
     }
@@ -92,6 +98,7 @@ public final class DATABASE {
         Class.forName(databaseDriver).newInstance();
         this.poolName = poolName;
         this.poolSize = poolSize;
+        this.connectionURL = databasePreconnectionURL;
 
         setupDriver(databasePreconnectionURL);
     }
@@ -146,6 +153,33 @@ public final class DATABASE {
         }
     }
 
+    /**
+     * Builds an SQL expression for the database's current time less a number
+     * of minutes, hours or days, bound as its one parameter. The database
+     * clock is used, so it agrees with the times the database stamps.
+     *
+     * @param dbType the type of database
+     * @param unit MINUTE, HOUR or DAY
+     *
+     * @return the SQL expression
+     */
+    public static String getTimeAgo(DATABASETYPE dbType, String unit) {
+
+        if (null == dbType || dbType.equals(DATABASETYPE.MYSQL)) {
+            return "DATE_SUB(NOW(), INTERVAL ? " + unit + ")";
+        } else if (dbType.equals(DATABASETYPE.ORACLE)) {
+            return "(SYSTIMESTAMP - NUMTODSINTERVAL(?, '" + unit + "'))";
+        } else if (dbType.equals(DATABASETYPE.DB2)) {
+            return "(CURRENT TIMESTAMP - ? " + unit + "S)";
+        } else if (dbType.equals(DATABASETYPE.POSTGRESS)) {
+            return "(NOW() - ? * INTERVAL '1 " + unit + "')";
+        } else if (dbType.equals(DATABASETYPE.SYBASE)) {
+            return "DATEADD(" + unit + ", -?, GETDATE())";
+        } else {
+            return "DATETIME('now', '-' || ? || ' " + unit + "S')";
+        }
+    }
+
     /**
      * Sets up the connection pool driver.
      *
@@ -245,6 +279,33 @@ public final class DATABASE {
         driver.closePool(poolName);
     }
 
+    /**
+     * Checks whether the database behind a connection supports
+     * SELECT ... LIMIT ? FOR UPDATE SKIP LOCKED, which MySQL has from 8.0 and
+     * PostgreSQL from 9.5.
+     *
+     * @param conn an open connection
+     *
+     * @return true if SKIP LOCKED can be used
+     *
+     * @throws SQLException if the database metadata cannot be read
+     */
+    public static boolean supportsSkipLocked(final Connection conn)
+            throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        String product = meta.getDatabaseProductName();
+        int major = meta.getDatabaseMajorVersion();
+        int minor = meta.getDatabaseMinorVersion();
+
+        if ("MySQL".equalsIgnoreCase(product)) {
+            return major >= 8;
+        } else if ("PostgreSQL".equalsIgnoreCase(product)) {
+            return major > 9 || (major == 9 && minor >= 5);
+        }
+
+        return false;
+    }
+
     /**
      * <p> Gets a DATABASE database connection. Will throw an SQLException if
      * there is an error. The connection uses UTF-8 character encoding. </p>
@@ -263,4 +324,18 @@ public final class DATABASE {
 
         return conn;
     }
+
+    /**
+     * Opens a connection of its own, outside the connection pool. It is for
+     * connections held open for a long time, such as one that listens for
+     * notifications, which would otherwise take a pooled connection away from
+     * the workers. The caller must close it.
+     *
+     * @return a new DATABASE connection
+     *
+     * @throws SQLException if the connection cannot be opened
+     */
+    public Connection getDirectConnection() throws SQLException {
+        return DriverManager.getConnection(connectionURL);
+    }
 }
@@ -0,0 +1,252 @@
+package com.cellulant.db;
+
+import com.cellulant.utils.Logging;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks at startup that the main daemon table has the indexes the daemon's
+ * queries need, such as the one the bucket allocation query uses. Without it
+ * every allocation scans all the unprocessed rows. A missing index is
+ * reported together with the DDL to create it, and can optionally be
+ * created.
+ */
+public final class IndexAdvisor {
+    /**
+     * The columns of the index the allocation query needs, in order.
+     */
+    public static final List<String> ALLOCATION_INDEX_COLUMNS =
+            Arrays.asList("bucketID", "processed", "nextSend", "dateCreated");
+    /**
+     * The database connection pool.
+     */
+    private final DATABASE database;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+
+    /**
+     * Constructor.
+     *
+     * @param database the database connection pool
+     * @param log the logging class
+     */
+    public IndexAdvisor(final DATABASE database, final Logging log) {
+        this.database = database;
+        this.log = log;
+    }
+
+    /**
+     * Checks that a table has an index starting with the allocation columns,
+     * and logs the DDL for one if it does not.
+     *
+     * @param table the main daemon table
+     * @param create whether to create a missing index
+     * @return true if a suitable index exists or was created
+     */
+    public boolean checkAllocationIndex(final String table,
+            final boolean create) {
+        return checkIndex(table, "allocation", ALLOCATION_INDEX_COLUMNS,
+                create);
+    }
+
+    /**
+     * Checks that a table has an index starting with some columns, and logs
+     * the DDL for one if it does not.
+     *
+     * @param table the table
+     * @param purpose what the index is for, used in its name
+     * @param wanted the leading columns of the index
+     * @param create whether to create a missing index
+     * @return true if a suitable index exists or was created
+     */
+    public boolean checkIndex(final String table, final String purpose,
+            final List<String> wanted, final boolean create) {
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            Map<String, List<String>> indexes = getIndexes(conn, table);
+            for (Map.Entry<String, List<String>> index : indexes.entrySet()) {
+                if (startsWith(index.getValue(), wanted)) {
+                    log.info("IndexAdvisor | " + table + " " + purpose
+                            + " queries use index " + index.getKey() + " "
+                            + index.getValue());
+                    return true;
+                }
+            }
+
+            String ddl = getIndexDdl(table, purpose, wanted);
+            if (!create) {
+                log.error("IndexAdvisor | " + table + " has no index on "
+                        + wanted + ", so every " + purpose + " query scans "
+                        + "the table. Existing indexes: " + indexes
+                        + ". Suggested DDL: " + ddl);
+                return false;
+            }
+
+            log.info("IndexAdvisor | Creating the " + purpose + " index: "
+                    + ddl);
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.executeUpdate(ddl);
+            } finally {
+                stmt.close();
+            }
+
+            return true;
+        } catch (SQLException e) {
+            log.error("IndexAdvisor | Failed to check the indexes of " + table
+                    + ": " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    log.error("IndexAdvisor | Failed to close connection: "
+                            + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the DDL that creates the allocation index.
+     *
+     * @param table the main daemon table
+     * @return the CREATE INDEX statement
+     */
+    public static String getAllocationIndexDdl(final String table) {
+        return getIndexDdl(table, "allocation", ALLOCATION_INDEX_COLUMNS);
+    }
+
+    /**
+     * Get the DDL that creates an index.
+     *
+     * @param table the table
+     * @param purpose what the index is for, used in its name
+     * @param columns the index columns
+     * @return the CREATE INDEX statement
+     */
+    public static String getIndexDdl(final String table, final String purpose,
+            final List<String> columns) {
+        StringBuilder ddl = new StringBuilder("CREATE INDEX idx_")
+                .append(table).append("_").append(purpose).append(" ON ")
+                .append(table).append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            ddl.append(i == 0 ? "" : ", ").append(columns.get(i));
+        }
+
+        return ddl.append(")").toString();
+    }
+
+    /**
+     * Check whether a table has a column.
+     *
+     * @param table the table
+     * @param column the column
+     * @return true if the column exists
+     *
+     * @throws SQLException if the metadata cannot be read
+     */
+    public boolean hasColumn(final String table, final String column)
+            throws SQLException {
+        Connection conn = null;
+        ResultSet rs = null;
+        try {
+            conn = database.getConnection();
+            rs = conn.getMetaData().getColumns(conn.getCatalog(), null, table,
+                    null);
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+            } finally {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the columns of each index on a table, in index order.
+     *
+     * @param conn an open connection
+     * @param table the table
+     * @return the columns of each index, by index name
+     *
+     * @throws SQLException on error
+     */
+    private Map<String, List<String>> getIndexes(final Connection conn,
+            final String table) throws SQLException {
+        Map<String, List<String>> indexes =
+                new LinkedHashMap<String, List<String>>();
+        DatabaseMetaData meta = conn.getMetaData();
+        ResultSet rs = meta.getIndexInfo(conn.getCatalog(), null, table,
+                false, true);
+        try {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                String column = rs.getString("COLUMN_NAME");
+                if (name == null || column == null) {
+                    continue;
+                }
+
+                int position = rs.getInt("ORDINAL_POSITION");
+                List<String> columns = indexes.get(name);
+                if (columns == null) {
+                    columns = new ArrayList<String>();
+                    indexes.put(name, columns);
+                }
+
+                while (columns.size() < position) {
+                    columns.add(null);
+                }
+                columns.set(position - 1, column);
+            }
+        } finally {
+            rs.close();
+        }
+
+        return indexes;
+    }
+
+    /**
+     * Check whether an index's leading columns are the wanted ones.
+     *
+     * @param columns the index columns
+     * @param wanted the wanted leading columns
+     * @return true if the index starts with the wanted columns
+     */
+    private static boolean startsWith(final List<String> columns,
+            final List<String> wanted) {
+        if (columns.size() < wanted.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < wanted.size(); i++) {
+            if (!wanted.get(i).equalsIgnoreCase(columns.get(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
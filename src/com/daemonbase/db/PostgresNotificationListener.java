@@ -0,0 +1,281 @@
+package com.cellulant.db;
+
+import com.cellulant.utils.Logging;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * <p>LISTENs on a PostgreSQL channel and runs a callback whenever a NOTIFY
+ * arrives on it, typically from a trigger on the table being polled. The
+ * listener holds a connection of its own, outside the pool, on a thread of
+ * its own.</p>
+ *
+ * <p>The PostgreSQL driver is reached through reflection, so the daemon
+ * neither compiles against it nor needs it for other databases. Drivers that
+ * can wait for notifications (42.x) are waited on directly. Older ones are
+ * polled with a trivial query, which is how they receive notifications.</p>
+ *
+ * <p>If the connection is lost the listener reconnects, and runs the
+ * callback once on reconnecting, since notifications sent in between are
+ * lost.</p>
+ */
+public final class PostgresNotificationListener {
+    /**
+     * Longest wait for a notification before checking for a stop, in
+     * milliseconds.
+     */
+    private static final int POLL_MILLIS = 500;
+    /**
+     * Wait before reconnecting after an error, in milliseconds.
+     */
+    private static final long RECONNECT_MILLIS = 5000;
+    /**
+     * The driver's connection interface.
+     */
+    private static final String PG_CONNECTION_CLASS =
+            "org.postgresql.PGConnection";
+    /**
+     * The database connection pool, used for its direct connections.
+     */
+    private final DATABASE database;
+    /**
+     * The channel to listen on.
+     */
+    private final String channel;
+    /**
+     * Run on every batch of notifications.
+     */
+    private final Runnable callback;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * The listener thread, null until started.
+     */
+    private Thread thread;
+    /**
+     * Whether the listener should exit.
+     */
+    private volatile boolean stopped;
+    /**
+     * Whether the listener currently has a LISTEN in place.
+     */
+    private volatile boolean listening;
+    /**
+     * Number of notifications received.
+     */
+    private volatile long notificationCount;
+
+    /**
+     * Constructor.
+     *
+     * @param database the database connection pool
+     * @param channel the channel to listen on, a plain SQL identifier
+     * @param callback run on every batch of notifications
+     * @param log the logging class
+     */
+    public PostgresNotificationListener(final DATABASE database,
+            final String channel, final Runnable callback, final Logging log) {
+        if (channel == null || !channel.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid channel: " + channel);
+        }
+
+        this.database = database;
+        this.channel = channel;
+        this.callback = callback;
+        this.log = log;
+    }
+
+    /**
+     * Starts the listener thread.
+     */
+    public synchronized void start() {
+        if (thread != null || stopped) {
+            return;
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        }, "PostgresNotificationListener-" + channel);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the listener and closes its connection.
+     */
+    public void stop() {
+        Thread listener;
+        synchronized (this) {
+            stopped = true;
+            listener = thread;
+        }
+
+        if (listener != null) {
+            listener.interrupt();
+            try {
+                listener.join(POLL_MILLIS * 4L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Check whether a LISTEN is in place.
+     *
+     * @return true if listening
+     */
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * Get the number of notifications received.
+     *
+     * @return the notification count
+     */
+    public long getNotificationCount() {
+        return notificationCount;
+    }
+
+    /**
+     * Connects and listens until stopped, reconnecting after errors.
+     */
+    private void listen() {
+        boolean reconnecting = false;
+        while (!stopped) {
+            Connection conn = null;
+            try {
+                conn = database.getDirectConnection();
+                Statement stmt = conn.createStatement();
+                try {
+                    stmt.execute("LISTEN " + channel);
+                } finally {
+                    stmt.close();
+                }
+
+                listening = true;
+                log.info("PostgresNotificationListener | Listening on "
+                        + channel);
+                if (reconnecting) {
+                    // Notifications may have been missed while disconnected
+                    runCallback();
+                }
+
+                receive(conn);
+            } catch (SQLException ex) {
+                if (!stopped) {
+                    log.error("PostgresNotificationListener | Lost the "
+                            + "connection listening on " + channel + ": "
+                            + ex.getMessage());
+                }
+            } catch (Exception ex) {
+                // Retrying will not help, the daemon falls back to polling
+                log.error("PostgresNotificationListener | Cannot use the "
+                        + "PostgreSQL driver to listen on " + channel
+                        + ", giving up: " + ex, ex);
+                stopped = true;
+            } finally {
+                listening = false;
+                if (conn != null) {
+                    try {
+                        conn.close();
+                    } catch (SQLException e) {
+                        log.error("PostgresNotificationListener | Failed to "
+                                + "close connection: " + e.getMessage());
+                    }
+                }
+            }
+
+            reconnecting = true;
+            if (!stopped) {
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException ex) {
+                    // Stopping
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the callback. A failing callback is logged and the listener keeps
+     * listening, as the next notification may well succeed.
+     */
+    private void runCallback() {
+        try {
+            callback.run();
+        } catch (RuntimeException ex) {
+            log.error("PostgresNotificationListener | The callback for "
+                    + channel + " failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Receives notifications on a listening connection until stopped.
+     *
+     * @param conn the connection
+     *
+     * @throws SQLException if the connection fails
+     * @throws ClassNotFoundException if the driver is not PostgreSQL's
+     * @throws NoSuchMethodException if the driver cannot be used
+     * @throws IllegalAccessException if the driver cannot be used
+     * @throws InvocationTargetException if the driver fails
+     */
+    private void receive(final Connection conn) throws SQLException,
+            ClassNotFoundException, NoSuchMethodException,
+            IllegalAccessException, InvocationTargetException {
+        Class<?> pgClass = Class.forName(PG_CONNECTION_CLASS, true,
+                conn.getClass().getClassLoader());
+        Object pgConn = pgClass.isInstance(conn) ? conn : conn.unwrap(pgClass);
+        Method timedWait = null;
+        try {
+            timedWait = pgClass.getMethod("getNotifications", int.class);
+        } catch (NoSuchMethodException ex) {
+            // Older driver, poll below
+        }
+        Method poll = pgClass.getMethod("getNotifications");
+
+        while (!stopped) {
+            Object[] notifications;
+            try {
+                if (timedWait != null) {
+                    notifications = (Object[]) timedWait.invoke(pgConn,
+                            POLL_MILLIS);
+                } else {
+                    Statement stmt = conn.createStatement();
+                    try {
+                        stmt.execute("SELECT 1");
+                    } finally {
+                        stmt.close();
+                    }
+                    notifications = (Object[]) poll.invoke(pgConn);
+                }
+            } catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof SQLException) {
+                    throw (SQLException) ex.getCause();
+                }
+                throw ex;
+            }
+
+            if (notifications != null && notifications.length > 0) {
+                notificationCount += notifications.length;
+                runCallback();
+            } else if (timedWait == null) {
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -48,19 +48,120 @@ public abstract class AbstractProps {
      * run.
      */
     private int bucketSize;
+    /**
+     * Smallest bucket when sizing buckets adaptively.
+     */
+    private int minBucketSize;
+    /**
+     * Largest bucket when sizing buckets adaptively.
+     */
+    private int maxBucketSize;
+    /**
+     * Number of buckets the allocator may fetch ahead of the workers, 0 to
+     * fetch on the main loop.
+     */
+    private int pipelineDepth;
+    /**
+     * Number of allocator threads fetching buckets concurrently.
+     */
+    private int allocatorThreads;
+    /**
+     * Number of status updates written in one batch, 0 to write each update
+     * at once.
+     */
+    private int updateBatchSize;
+    /**
+     * Directory of the failed query journal, empty for FAILED_QUERIES.TXT.
+     */
+    private String failedQueriesJournal;
+    /**
+     * Size at which journal segments are rotated, in bytes.
+     */
+    private int journalSegmentSize;
+    /**
+     * How often journal appends are forced to disk, in milliseconds.
+     */
+    private int journalSyncInterval;
+    /**
+     * Most failed updates waiting for the failsafe writer.
+     */
+    private int failsafeQueueCapacity;
+    /**
+     * Number of threads replaying the failed query journal.
+     */
+    private int replayThreads;
+    /**
+     * Most failed updates replayed per statement batch.
+     */
+    private int replayBatchSize;
+    /**
+     * Most failed updates replayed per second, 0 for no limit.
+     */
+    private int replayRateLimit;
+    /**
+     * Longest a buffered status update waits before it is written, in
+     * milliseconds.
+     */
+    private int updateFlushInterval;
     /**
      * Sleep time in seconds.
      */
     private int sleepTime;
+    /**
+     * Shortest wait between polling cycles, in milliseconds.
+     */
+    private int minPollInterval;
+    /**
+     * Longest wait between polling cycles, in milliseconds.
+     */
+    private int maxPollInterval;
     /**
      * No of threads that will be created in the thread pool to process
      * payments.
      */
     private int numOfChildren;
+    /**
+     * Minimum number of threads when the thread pool resizes itself.
+     */
+    private int minNumOfChildren;
+    /**
+     * Maximum number of threads when the thread pool resizes itself.
+     */
+    private int maxNumOfChildren;
+    /**
+     * How often the thread pool checks its size, in milliseconds.
+     */
+    private int poolResizeInterval;
+    /**
+     * Queue wait above which the thread pool grows, in milliseconds.
+     */
+    private int targetQueueWait;
     /**
      * ??????.
      */
     private int maxMemCapacity;
+    /**
+     * Capacity of the thread pool task queue. 0 means unbounded.
+     */
+    private int taskQueueCapacity;
+    /**
+     * Whether the thread pool workers steal tasks from each other's queues
+     * instead of sharing a single FIFO queue.
+     */
+    private boolean workStealingEnabled;
+    /**
+     * Whether tasks run on virtual threads instead of the thread pool.
+     */
+    private boolean virtualThreadsEnabled;
+    /**
+     * Maximum number of tasks in flight when running on virtual threads.
+     */
+    private int maxConcurrentTasks;
+    /**
+     * How long a task may run before it is interrupted, in milliseconds. 0
+     * means no limit.
+     */
+    private int taskTimeout;
     /**
      * Maximum number of times to retry sending a payment.
      */
@@ -121,6 +222,56 @@ public abstract class AbstractProps {
      * Type of database.
      */
     private DATABASE.DATABASETYPE dbType;
+    /**
+     * Whether buckets are claimed with SELECT ... FOR UPDATE SKIP LOCKED
+     * instead of a single UPDATE ... LIMIT.
+     */
+    private boolean skipLockedAllocation;
+    /**
+     * Primary key column of the main daemon table.
+     */
+    private String mainTablePrimaryKey;
+    /**
+     * Whether to create the allocation index on the main table at startup if
+     * it is missing.
+     */
+    private boolean createAllocationIndex;
+    /**
+     * PostgreSQL channel to LISTEN on for new work, empty to only poll.
+     */
+    private String notifyChannel;
+    /**
+     * How long a claimed row is leased without a heartbeat, in seconds, 0 to
+     * reset buckets at startup instead.
+     */
+    private int claimLeaseTime;
+    /**
+     * Most records reset per statement, 0 for a single statement.
+     */
+    private int resetChunkSize;
+    /**
+     * Pause between reset chunks, in milliseconds.
+     */
+    private int resetChunkPause;
+    /**
+     * Longest wait between polls while listening for notifications, in
+     * milliseconds.
+     */
+    private int notifyFallbackInterval;
+    /**
+     * DaemonConstants.SINGLE_INSTANCE, or MULTI_INSTANCE if several instances
+     * of the daemon share the main table.
+     */
+    private int instanceMode = DaemonConstants.SINGLE_INSTANCE;
+    /**
+     * Number of run ID ranges to split MIN_RUN_ID to MAX_RUN_ID into, one per
+     * instance.
+     */
+    private int maxInstances;
+    /**
+     * How long a run ID range lease lasts without a heartbeat, in seconds.
+     */
+    private int runIdLeaseTime;
     /**
      * Type of database.
      */
@@ -201,14 +352,92 @@ public abstract class AbstractProps {
 
             sleepTime = readIntegerProp("SLEEP_TIME");
 
+
+            //Adaptive polling, disabled unless the bounds differ
+            minPollInterval = readOptionalIntegerProp("MIN_POLL_INTERVAL", sleepTime);
+            maxPollInterval = readOptionalIntegerProp("MAX_POLL_INTERVAL", sleepTime);
+
+            if (minPollInterval < 0 || maxPollInterval < minPollInterval) {
+                loadErrors.add("ERROR ON : MIN_POLL_INTERVAL/MAX_POLL_INTERVAL   "
+                        + "Minimum must not be negative or above the maximum. ");
+            }
+
             //Bucket Size
             bucketSize = readIntegerProp("BUCKET_SIZE");
 
 
+            //Adaptive bucket sizing, disabled unless the bounds differ
+            minBucketSize = readOptionalIntegerProp("MIN_BUCKET_SIZE", bucketSize);
+            maxBucketSize = readOptionalIntegerProp("MAX_BUCKET_SIZE", bucketSize);
+
+            //Bucket prefetching, disabled by default
+            pipelineDepth = readOptionalIntegerProp("PIPELINE_DEPTH", 0);
+            allocatorThreads = readOptionalIntegerProp("ALLOCATOR_THREADS", 1);
+
+            if (allocatorThreads < 1) {
+                loadErrors.add("ERROR ON : ALLOCATOR_THREADS   Value must be at least 1. ");
+            }
+
+            //Write-behind status updates, disabled by default
+            updateBatchSize = readOptionalIntegerProp("UPDATE_BATCH_SIZE", 0);
+            updateFlushInterval = readOptionalIntegerProp("UPDATE_FLUSH_INTERVAL", 100);
+
+            if (updateBatchSize > 0 && updateFlushInterval < 1) {
+                loadErrors.add("ERROR ON : UPDATE_FLUSH_INTERVAL   Value must be at least 1. ");
+            }
+
+            //Failed query journal, FAILED_QUERIES.TXT if the directory is empty
+            failedQueriesJournal = readOptionalStringProp("FAILED_QUERIES_JOURNAL", "failed-queries").trim();
+            journalSegmentSize = readOptionalIntegerProp("JOURNAL_SEGMENT_SIZE", 64 * 1024 * 1024);
+            journalSyncInterval = readOptionalIntegerProp("JOURNAL_SYNC_INTERVAL", 100);
+            failsafeQueueCapacity = readOptionalIntegerProp("FAILSAFE_QUEUE_CAPACITY", 10000);
+
+            if (journalSegmentSize < 1024) {
+                loadErrors.add("ERROR ON : JOURNAL_SEGMENT_SIZE   Value must be at least 1024. ");
+            }
+            if (journalSyncInterval < 0) {
+                loadErrors.add("ERROR ON : JOURNAL_SYNC_INTERVAL   Value must not be negative. ");
+            }
+            if (failsafeQueueCapacity < 1) {
+                loadErrors.add("ERROR ON : FAILSAFE_QUEUE_CAPACITY   Value must be at least 1. ");
+            }
+
+            replayThreads = readOptionalIntegerProp("REPLAY_THREADS", 1);
+            replayBatchSize = readOptionalIntegerProp("REPLAY_BATCH_SIZE", 500);
+            replayRateLimit = readOptionalIntegerProp("REPLAY_RATE_LIMIT", 0);
+
+            if (replayThreads < 1) {
+                loadErrors.add("ERROR ON : REPLAY_THREADS   Value must be at least 1. ");
+            }
+            if (replayBatchSize < 1) {
+                loadErrors.add("ERROR ON : REPLAY_BATCH_SIZE   Value must be at least 1. ");
+            }
+            if (replayRateLimit < 0) {
+                loadErrors.add("ERROR ON : REPLAY_RATE_LIMIT   Value must not be negative. ");
+            }
+
+            if (minBucketSize < 1 || maxBucketSize < minBucketSize) {
+                loadErrors.add("ERROR ON : MIN_BUCKET_SIZE/MAX_BUCKET_SIZE   "
+                        + "Minimum must be at least 1 and not above the maximum. ");
+            }
+
+
             //Number of children
             numOfChildren = readIntegerProp("NUM_OF_CHILDREN");
 
 
+            //Thread pool resizing, disabled unless the bounds differ
+            minNumOfChildren = readOptionalIntegerProp("MIN_NUM_OF_CHILDREN", numOfChildren);
+            maxNumOfChildren = readOptionalIntegerProp("MAX_NUM_OF_CHILDREN", numOfChildren);
+            poolResizeInterval = readOptionalIntegerProp("POOL_RESIZE_INTERVAL", 5000);
+            targetQueueWait = readOptionalIntegerProp("TARGET_QUEUE_WAIT", 1000);
+
+            if (minNumOfChildren < 1 || maxNumOfChildren < minNumOfChildren) {
+                loadErrors.add("ERROR ON : MIN_NUM_OF_CHILDREN/MAX_NUM_OF_CHILDREN   "
+                        + "Minimum must be at least 1 and not above the maximum. ");
+            }
+
+
             //Current run at startup
             startupRunID = readIntegerProp("CURRENT_RUN_AT_STARTUP");
 
@@ -241,6 +470,40 @@ public abstract class AbstractProps {
             maxSendRetries = readIntegerProp("MAX_NUMBER_OF_SENDS");
 
 
+            //Task queue capacity, unbounded by default
+            taskQueueCapacity = readOptionalIntegerProp("TASK_QUEUE_CAPACITY", 0);
+
+
+            //Thread pool mode, FIFO or WORK_STEALING
+            String threadPoolMode = readOptionalStringProp("THREAD_POOL_MODE", "FIFO").trim();
+
+            if (threadPoolMode.equalsIgnoreCase("WORK_STEALING")) {
+                workStealingEnabled = true;
+            } else if (!threadPoolMode.equalsIgnoreCase("FIFO") && !threadPoolMode.isEmpty()) {
+                loadErrors.add("ERROR ON : THREAD_POOL_MODE   Value must be FIFO or WORK_STEALING. ");
+            }
+
+
+            //Execution mode, THREAD_POOL or VIRTUAL_THREADS
+            String executionMode = readOptionalStringProp("EXECUTION_MODE", "THREAD_POOL").trim();
+
+            if (executionMode.equalsIgnoreCase("VIRTUAL_THREADS")) {
+                virtualThreadsEnabled = true;
+            } else if (!executionMode.equalsIgnoreCase("THREAD_POOL") && !executionMode.isEmpty()) {
+                loadErrors.add("ERROR ON : EXECUTION_MODE   Value must be THREAD_POOL or VIRTUAL_THREADS. ");
+            }
+
+            maxConcurrentTasks = readOptionalIntegerProp("MAX_CONCURRENT_TASKS", 1000);
+
+
+            //Task execution timeout, disabled by default
+            taskTimeout = readOptionalIntegerProp("TASK_TIMEOUT", 0);
+
+            if (taskTimeout < 0) {
+                loadErrors.add("ERROR ON : TASK_TIMEOUT   Value must not be negative. ");
+            }
+
+
 
             nextEarliestTimeToResend = readStringProp("NEXT_EARLIEST_TIME_TO_RESEND");
 
@@ -338,6 +601,62 @@ public abstract class AbstractProps {
             }
 
 
+            //Bucket allocation strategy, UPDATE_LIMIT or SKIP_LOCKED
+            String allocationStrategy = readOptionalStringProp("ALLOCATION_STRATEGY", "UPDATE_LIMIT").trim();
+
+            if (allocationStrategy.equalsIgnoreCase("SKIP_LOCKED")) {
+                skipLockedAllocation = true;
+            } else if (!allocationStrategy.equalsIgnoreCase("UPDATE_LIMIT") && !allocationStrategy.isEmpty()) {
+                loadErrors.add("ERROR ON : ALLOCATION_STRATEGY   Value must be UPDATE_LIMIT or SKIP_LOCKED. ");
+            }
+
+            mainTablePrimaryKey = readOptionalStringProp("MAIN_TABLE_PRIMARY_KEY", "id").trim();
+
+            //Allocation index, only reported if missing unless enabled
+            String createIndex = readOptionalStringProp("CREATE_ALLOCATION_INDEX", "false").trim();
+            createAllocationIndex = "ON".equalsIgnoreCase(createIndex)
+                    || "1".equalsIgnoreCase(createIndex)
+                    || "TRUE".equalsIgnoreCase(createIndex);
+
+
+            //Claim leases, disabled by default
+            claimLeaseTime = readOptionalIntegerProp("CLAIM_LEASE_TIME", 0);
+
+            //Chunked resets of partially processed records
+            resetChunkSize = readOptionalIntegerProp("RESET_CHUNK_SIZE", 1000);
+            resetChunkPause = readOptionalIntegerProp("RESET_CHUNK_PAUSE", 10);
+
+            //Notification wake-ups, PostgreSQL only
+            notifyChannel = readOptionalStringProp("NOTIFY_CHANNEL", "").trim();
+            notifyFallbackInterval = readOptionalIntegerProp("NOTIFY_FALLBACK_INTERVAL", 30000);
+
+            if (!notifyChannel.isEmpty()) {
+                if (dbType != DATABASE.DATABASETYPE.POSTGRESS) {
+                    loadErrors.add("ERROR ON : NOTIFY_CHANNEL   Notifications need DB_TYPE postgresql. ");
+                } else if (!notifyChannel.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                    loadErrors.add("ERROR ON : NOTIFY_CHANNEL   Value must be a plain SQL identifier. ");
+                }
+            }
+
+
+            //Instance mode, SINGLE_INSTANCE or MULTI_INSTANCE
+            String instanceModeString = readOptionalStringProp("INSTANCE_MODE", "SINGLE_INSTANCE").trim();
+
+            if (instanceModeString.equalsIgnoreCase("MULTI_INSTANCE")) {
+                instanceMode = DaemonConstants.MULTI_INSTANCE;
+            } else if (!instanceModeString.equalsIgnoreCase("SINGLE_INSTANCE") && !instanceModeString.isEmpty()) {
+                loadErrors.add("ERROR ON : INSTANCE_MODE   Value must be SINGLE_INSTANCE or MULTI_INSTANCE. ");
+            }
+
+            maxInstances = readOptionalIntegerProp("MAX_INSTANCES", 4);
+            runIdLeaseTime = readOptionalIntegerProp("RUN_ID_LEASE_TIME", 60);
+
+            if (maxInstances < 1 || runIdLeaseTime < 3) {
+                loadErrors.add("ERROR ON : MAX_INSTANCES/RUN_ID_LEASE_TIME   "
+                        + "Need at least 1 instance and a lease of at least 3 seconds. ");
+            }
+
+
             resultsApiSqliteDB = readOptionalStringProp("RESULTS_API_SQLITE_DB_LOCATION","/tmp/sqlite/"+profile+"/resultsApi.db");
              
             expirtyTimeUnit = readStringProp("EXPIRY_TIME_UNIT");
@@ -391,6 +710,20 @@ public abstract class AbstractProps {
         return propValue;
     }
 
+    public int readOptionalIntegerProp(String key, int defaultValue) {
+        int propValue = defaultValue;
+        String tmpHolder = props.getProperty(key, "").trim();
+        if (!tmpHolder.isEmpty()) {
+            try {
+                propValue = Integer.parseInt(tmpHolder);
+            } catch (NumberFormatException ne) {
+                loadErrors.add("ERROR ON : " + key + "   Value is not an integer figure. " + ne.getMessage());
+            }
+        }
+
+        return propValue;
+    }
+
     public String readStringProp(String key) {
 
         String propValue = props.getProperty(key);
@@ -549,6 +882,34 @@ public abstract class AbstractProps {
         return sleepTime;
     }
 
+    /**
+     * Shortest wait between polling cycles, in milliseconds.
+     *
+     * @return the minimum poll interval
+     */
+    public int getMinPollInterval() {
+        return minPollInterval;
+    }
+
+    /**
+     * Longest wait between polling cycles, in milliseconds.
+     *
+     * @return the maximum poll interval
+     */
+    public int getMaxPollInterval() {
+        return maxPollInterval;
+    }
+
+    /**
+     * Whether the wait between polling cycles adapts to the allocations,
+     * which is the case when MIN_POLL_INTERVAL and MAX_POLL_INTERVAL differ.
+     *
+     * @return true if adaptive polling is enabled
+     */
+    public boolean isAdaptivePollingEnabled() {
+        return minPollInterval < maxPollInterval;
+    }
+
     /**
      * No of threads that will be created in the thread pool to process
      * payments.
@@ -559,6 +920,212 @@ public abstract class AbstractProps {
         return numOfChildren;
     }
 
+    /**
+     * Minimum number of threads when the thread pool resizes itself. Defaults
+     * to NUM_OF_CHILDREN.
+     *
+     * @return the minimum number of children
+     */
+    public int getMinNumOfChildren() {
+        return minNumOfChildren;
+    }
+
+    /**
+     * Maximum number of threads when the thread pool resizes itself. Defaults
+     * to NUM_OF_CHILDREN.
+     *
+     * @return the maximum number of children
+     */
+    public int getMaxNumOfChildren() {
+        return maxNumOfChildren;
+    }
+
+    /**
+     * Smallest bucket when sizing buckets adaptively.
+     *
+     * @return the minimum bucket size
+     */
+    public int getMinBucketSize() {
+        return minBucketSize;
+    }
+
+    /**
+     * Largest bucket when sizing buckets adaptively.
+     *
+     * @return the maximum bucket size
+     */
+    public int getMaxBucketSize() {
+        return maxBucketSize;
+    }
+
+    /**
+     * Number of buckets the allocator stage may fetch ahead of the workers.
+     * 0 means buckets are fetched on the main loop, one cycle at a time.
+     *
+     * @return the pipeline depth
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Number of allocator threads fetching buckets concurrently, each under
+     * its own run ID. Above 1, buckets are prefetched even if PIPELINE_DEPTH
+     * is 0.
+     *
+     * @return the allocator thread count
+     */
+    public int getAllocatorThreads() {
+        return allocatorThreads;
+    }
+
+    /**
+     * Number of status updates queued with queueUpdate() that are written in
+     * one batch. 0 means each update is written at once.
+     *
+     * @return the update batch size
+     */
+    public int getUpdateBatchSize() {
+        return updateBatchSize;
+    }
+
+    /**
+     * Longest a queued status update waits before it is written, in
+     * milliseconds.
+     *
+     * @return the update flush interval
+     */
+    public int getUpdateFlushInterval() {
+        return updateFlushInterval;
+    }
+
+    /**
+     * Directory of the journal that failed updates are written to for
+     * replay. Empty means the legacy FAILED_QUERIES.TXT.
+     *
+     * @return the journal directory
+     */
+    public String getFailedQueriesJournal() {
+        return failedQueriesJournal;
+    }
+
+    /**
+     * Whether failed updates are written to the journal.
+     *
+     * @return true if FAILED_QUERIES_JOURNAL is set
+     */
+    public boolean isFailedQueriesJournalEnabled() {
+        return !failedQueriesJournal.isEmpty();
+    }
+
+    /**
+     * Size at which journal segments are rotated, in bytes.
+     *
+     * @return the segment size
+     */
+    public int getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    /**
+     * How long the failsafe writer gathers failed updates into one journal
+     * write before forcing it to disk, in milliseconds. 0 writes whatever is
+     * waiting at once.
+     *
+     * @return the journal sync interval
+     */
+    public int getJournalSyncInterval() {
+        return journalSyncInterval;
+    }
+
+    /**
+     * Most failed updates that may wait for the failsafe writer. Beyond
+     * this, a worker writes its failed update to the journal itself.
+     *
+     * @return the failsafe queue capacity
+     */
+    public int getFailsafeQueueCapacity() {
+        return failsafeQueueCapacity;
+    }
+
+    /**
+     * Number of threads replaying the failed query journal. Above 1, the
+     * updates of a template are spread across the threads by the parameters
+     * of their WHERE clause, so each row's updates still apply in order.
+     *
+     * @return the replay threads
+     */
+    public int getReplayThreads() {
+        return replayThreads;
+    }
+
+    /**
+     * Most failed updates replayed in one statement batch and transaction.
+     *
+     * @return the replay batch size
+     */
+    public int getReplayBatchSize() {
+        return replayBatchSize;
+    }
+
+    /**
+     * Most failed updates replayed per second, so that draining a backlog
+     * does not starve the workers of the database. 0 for no limit.
+     *
+     * @return the replay rate limit
+     */
+    public int getReplayRateLimit() {
+        return replayRateLimit;
+    }
+
+    /**
+     * Whether each bucket is sized from the observed drain rate, which is the
+     * case when MIN_BUCKET_SIZE and MAX_BUCKET_SIZE differ.
+     *
+     * @return true if adaptive bucket sizing is enabled
+     */
+    public boolean isAdaptiveBucketSizingEnabled() {
+        return minBucketSize < maxBucketSize;
+    }
+
+    /**
+     * Whether the thread pool resizes itself, which is the case when
+     * MIN_NUM_OF_CHILDREN and MAX_NUM_OF_CHILDREN differ.
+     *
+     * @return true if adaptive pool sizing is enabled
+     */
+    public boolean isAdaptivePoolSizingEnabled() {
+        return minNumOfChildren < maxNumOfChildren;
+    }
+
+    /**
+     * How often the thread pool checks its size, in milliseconds.
+     *
+     * @return the resize interval
+     */
+    public int getPoolResizeInterval() {
+        return poolResizeInterval;
+    }
+
+    /**
+     * Queue wait above which the thread pool grows, in milliseconds.
+     *
+     * @return the target queue wait
+     */
+    public int getTargetQueueWait() {
+        return targetQueueWait;
+    }
+
+    /**
+     * How long a task may run on the thread pool before it is interrupted and
+     * its worker replaced, in milliseconds.
+     *
+     * @return the task timeout, 0 for no limit
+     */
+    public int getTaskTimeout() {
+        return taskTimeout;
+    }
+
     /**
      * Gets the maximum memory capacity.
      *
@@ -568,6 +1135,48 @@ public abstract class AbstractProps {
         return maxMemCapacity;
     }
 
+    /**
+     * Capacity of the thread pool task queue. When set, the pool uses a bounded
+     * ring buffer and executeTask() waits for space instead of growing the
+     * queue.
+     *
+     * @return the task queue capacity, 0 if unbounded
+     */
+    public int getTaskQueueCapacity() {
+        return taskQueueCapacity;
+    }
+
+    /**
+     * Whether the thread pool workers each have their own task queue and steal
+     * from one another when idle. Set THREAD_POOL_MODE to WORK_STEALING to
+     * enable it.
+     *
+     * @return true if work stealing is enabled
+     */
+    public boolean isWorkStealingEnabled() {
+        return workStealingEnabled;
+    }
+
+    /**
+     * Whether each task runs on its own virtual thread, limited by
+     * MAX_CONCURRENT_TASKS, instead of on the thread pool. Set EXECUTION_MODE
+     * to VIRTUAL_THREADS to enable it.
+     *
+     * @return true if virtual threads were requested
+     */
+    public boolean isVirtualThreadsEnabled() {
+        return virtualThreadsEnabled;
+    }
+
+    /**
+     * Maximum number of tasks in flight when running on virtual threads.
+     *
+     * @return the concurrency limit
+     */
+    public int getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
     /**
      * Maximum number of times to retry sending a payment.
      *
@@ -700,6 +1309,127 @@ public abstract class AbstractProps {
         return dbType;
     }
 
+    /**
+     * Whether buckets are claimed by locking the candidate rows with
+     * SELECT ... FOR UPDATE SKIP LOCKED and then updating them by primary key,
+     * so that several daemons can drain one table without waiting on each
+     * other's locks.
+     *
+     * @return true if ALLOCATION_STRATEGY is SKIP_LOCKED
+     */
+    public boolean isSkipLockedAllocationEnabled() {
+        return skipLockedAllocation;
+    }
+
+    /**
+     * Whether several instances of the daemon share the main table.
+     *
+     * @return DaemonConstants.SINGLE_INSTANCE or MULTI_INSTANCE
+     */
+    public int getInstanceMode() {
+        return instanceMode;
+    }
+
+    /**
+     * Number of instances MIN_RUN_ID to MAX_RUN_ID is split between in
+     * MULTI_INSTANCE mode.
+     *
+     * @return the maximum number of instances
+     */
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    /**
+     * How long an instance keeps its run ID range without a heartbeat, in
+     * seconds.
+     *
+     * @return the lease time
+     */
+    public int getRunIdLeaseTime() {
+        return runIdLeaseTime;
+    }
+
+    /**
+     * How long the rows of a claimed bucket are leased to this instance
+     * without a heartbeat, in seconds. 0 means claims are not leased, and
+     * partially processed records are reset at startup.
+     *
+     * @return the claim lease time
+     */
+    public int getClaimLeaseTime() {
+        return claimLeaseTime;
+    }
+
+    /**
+     * Most records reset per statement when partially processed records are
+     * returned to the pool. 0 means a single statement.
+     *
+     * @return the reset chunk size
+     */
+    public int getResetChunkSize() {
+        return resetChunkSize;
+    }
+
+    /**
+     * Pause between the chunks of a reset, in milliseconds.
+     *
+     * @return the reset chunk pause
+     */
+    public int getResetChunkPause() {
+        return resetChunkPause;
+    }
+
+    /**
+     * PostgreSQL channel the daemon LISTENs on to wake up as soon as new work
+     * is NOTIFYed. Empty if notifications are not used.
+     *
+     * @return the notification channel
+     */
+    public String getNotifyChannel() {
+        return notifyChannel;
+    }
+
+    /**
+     * Whether the daemon wakes up on notifications, which is the case when
+     * NOTIFY_CHANNEL is set.
+     *
+     * @return true if notification wake-ups are enabled
+     */
+    public boolean isNotifyEnabled() {
+        return !notifyChannel.isEmpty();
+    }
+
+    /**
+     * Longest wait between the fallback polls that catch missed
+     * notifications, in milliseconds.
+     *
+     * @return the fallback poll interval
+     */
+    public int getNotifyFallbackInterval() {
+        return notifyFallbackInterval;
+    }
+
+    /**
+     * Primary key column of the main daemon table, used by the SKIP_LOCKED
+     * allocation strategy.
+     *
+     * @return the primary key column name
+     */
+    public String getMainTablePrimaryKey() {
+        return mainTablePrimaryKey;
+    }
+
+    /**
+     * Whether the allocation index is created at startup if the main table
+     * does not have one. Otherwise a missing index is only logged.
+     *
+     * @return true to create a missing allocation index
+     */
+    public boolean isCreateAllocationIndex() {
+        return createAllocationIndex;
+    }
+
     
     
     /**
@@ -0,0 +1,688 @@
+package com.cellulant.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only journal of the updates that failed and must be replayed,
+ * in place of FAILED_QUERIES.TXT. The journal is a directory of segment
+ * files, each holding records of the form:</p>
+ * <pre>
+ * int length | int CRC32 of the payload | payload
+ * </pre>
+ *
+ * <p>The active segment stays open, so appending is a single write, and it is
+ * rotated once it reaches JOURNAL_SEGMENT_SIZE bytes. Appends are forced to
+ * disk in groups, every JOURNAL_SYNC_INTERVAL milliseconds, or one at a time
+ * if that is 0.</p>
+ *
+ * <p>Replay starts with {@link #seal()}, which rotates the active segment so
+ * that records appended while replaying wait for the next replay. It reads
+ * the sealed records after the checkpoint with {@link #read(int)}, and moves
+ * the checkpoint past them with {@link #commit()} once they are done, so a
+ * crash during replay repeats a batch rather than losing it. Segments
+ * entirely behind the checkpoint are deleted.</p>
+ *
+ * <p>On opening, the active segment is truncated after its last whole
+ * record, which drops a record torn by a crash. A corrupt record in an older
+ * segment cannot be skipped over, so the rest of that segment is logged and
+ * skipped. Queries left in a legacy FAILED_QUERIES.TXT are moved into the
+ * journal.</p>
+ */
+public final class FailedQueryJournal {
+    /**
+     * Bytes in a record header: the length and the checksum.
+     */
+    private static final int HEADER_SIZE = 8;
+    /**
+     * Largest payload accepted, to tell a corrupt length from a real one.
+     */
+    private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+    /**
+     * File name prefix of the segments.
+     */
+    private static final String SEGMENT_PREFIX = "journal-";
+    /**
+     * File name suffix of the segments.
+     */
+    private static final String SEGMENT_SUFFIX = ".log";
+    /**
+     * File name of the checkpoint.
+     */
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    /**
+     * Encoding of the legacy queries file.
+     */
+    private static final String ENCODING = "UTF-8";
+    /**
+     * The journal directory.
+     */
+    private final File directory;
+    /**
+     * Size at which the active segment is rotated, in bytes.
+     */
+    private final long segmentSize;
+    /**
+     * How often appends are forced to disk, in milliseconds, 0 for every
+     * append.
+     */
+    private final long syncInterval;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * The active segment.
+     */
+    private FileChannel active;
+    /**
+     * Sequence number of the active segment.
+     */
+    private long activeSegment;
+    /**
+     * Whether appends have not yet been forced to disk.
+     */
+    private volatile boolean dirty;
+    /**
+     * Segment of the first record not yet replayed.
+     */
+    private long checkpointSegment;
+    /**
+     * Offset of the first record not yet replayed.
+     */
+    private long checkpointOffset;
+    /**
+     * Segment of the next record to read.
+     */
+    private long readSegment;
+    /**
+     * Offset of the next record to read.
+     */
+    private long readOffset;
+    /**
+     * Forces the appends to disk, null if each append is forced.
+     */
+    private Timer syncTimer;
+    /**
+     * Number of records appended since opening.
+     */
+    private volatile long appendCount;
+
+    /**
+     * Constructor. Opens the journal, recovering the active segment, and
+     * starts the group commit.
+     *
+     * @param directory the journal directory
+     * @param segmentSize size at which segments are rotated, in bytes
+     * @param syncInterval how often appends are forced to disk, in
+     *                     milliseconds, 0 for every append
+     * @param log the logging class
+     *
+     * @throws IOException if the journal cannot be opened
+     */
+    public FailedQueryJournal(final File directory, final long segmentSize,
+            final long syncInterval, final Logging log) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER_SIZE + 1, segmentSize);
+        this.syncInterval = Math.max(0, syncInterval);
+        this.log = log;
+
+        List<Long> segments = listSegments();
+        activeSegment = segments.isEmpty() ? 1
+                : segments.get(segments.size() - 1);
+        openActive(true);
+
+        readCheckpoint(segments.isEmpty() ? activeSegment : segments.get(0));
+        readSegment = checkpointSegment;
+        readOffset = checkpointOffset;
+
+        if (this.syncInterval > 0) {
+            syncTimer = new Timer("FailedQueryJournal-sync", true);
+            syncTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException ex) {
+                        log.error("FailedQueryJournal | Failed to sync: "
+                                + ex.getMessage(), ex);
+                    }
+                }
+            }, this.syncInterval, this.syncInterval);
+        }
+    }
+
+    /**
+     * Moves the queries of a legacy failed queries file into the journal,
+     * and renames the file so that they are not moved again.
+     *
+     * @param legacyFile the legacy file, one query per line
+     * @return the number of queries moved
+     *
+     * @throws IOException if the file cannot be read or renamed
+     */
+    public int migrate(final File legacyFile) throws IOException {
+        if (!legacyFile.isFile() || legacyFile.length() == 0) {
+            return 0;
+        }
+
+        List<byte[]> queries = new ArrayList<byte[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(legacyFile), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    queries.add(line.getBytes(ENCODING));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        append(queries);
+        sync();
+
+        File migrated = new File(legacyFile.getPath() + ".migrated");
+        if (migrated.exists()) {
+            migrated.delete();
+        }
+        if (!legacyFile.renameTo(migrated)) {
+            throw new IOException("Moved " + queries.size() + " queries from "
+                    + legacyFile + " into the journal, but failed to rename "
+                    + "it, so they would be moved again");
+        }
+
+        log.info("FailedQueryJournal | Moved " + queries.size() + " queries "
+                + "from " + legacyFile + " into " + directory);
+        return queries.size();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param payload the record
+     *
+     * @throws IOException if the record cannot be written
+     */
+    public void append(final byte[] payload) throws IOException {
+        append(Arrays.asList(payload));
+    }
+
+    /**
+     * Appends records in one write, rotating the segment first if it is
+     * full. Unless JOURNAL_SYNC_INTERVAL is set, they are forced to disk
+     * before returning.
+     *
+     * @param payloads the records
+     *
+     * @throws IOException if the records cannot be written
+     */
+    public void append(final List<byte[]> payloads) throws IOException {
+        if (payloads.isEmpty()) {
+            return;
+        }
+
+        int size = 0;
+        for (byte[] payload : payloads) {
+            if (payload.length > MAX_PAYLOAD) {
+                throw new IOException("Record of " + payload.length
+                        + " bytes is too large for the journal");
+            }
+            size += HEADER_SIZE + payload.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (byte[] payload : payloads) {
+            crc.reset();
+            crc.update(payload);
+            buffer.putInt(payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+        }
+        buffer.flip();
+
+        synchronized (this) {
+            ensureOpen();
+            if (active.position() > 0
+                    && active.position() + size > segmentSize) {
+                rotate();
+            }
+
+            while (buffer.hasRemaining()) {
+                active.write(buffer);
+            }
+            dirty = true;
+            appendCount += payloads.size();
+        }
+
+        if (syncInterval == 0) {
+            sync();
+        }
+    }
+
+    /**
+     * Forces the records appended so far to disk.
+     *
+     * @throws IOException if they cannot be forced
+     */
+    public void sync() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (!dirty || active == null) {
+                return;
+            }
+            dirty = false;
+            channel = active;
+        }
+
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException ex) {
+            // Rotated or closed, which forced it first
+        }
+    }
+
+    /**
+     * Rotates the active segment if it holds records, so that they can be
+     * read.
+     *
+     * @throws IOException if the next segment cannot be opened
+     */
+    public synchronized void seal() throws IOException {
+        ensureOpen();
+
+        if (active.position() > 0) {
+            rotate();
+        }
+    }
+
+    /**
+     * Reads the next sealed records to replay, after those already read. The
+     * checkpoint does not move until {@link #commit()}.
+     *
+     * @param maxRecords the most records to read
+     * @return the records, empty if there are none
+     *
+     * @throws IOException if the journal cannot be read
+     */
+    public synchronized List<byte[]> read(final int maxRecords)
+            throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        while (records.size() < maxRecords && readSegment < activeSegment) {
+            File segment = getSegmentFile(readSegment);
+            long end = segment.length();
+            if (readOffset >= end) {
+                readSegment++;
+                readOffset = 0;
+                continue;
+            }
+
+            RandomAccessFile file = new RandomAccessFile(segment, "r");
+            try {
+                file.seek(readOffset);
+                while (records.size() < maxRecords && readOffset < end) {
+                    byte[] payload = readRecord(file, end);
+                    if (payload == null) {
+                        log.error("FailedQueryJournal | Corrupt record in "
+                                + segment + " at offset " + readOffset
+                                + ", skipping the " + (end - readOffset)
+                                + " bytes after it");
+                        readOffset = end;
+                        break;
+                    }
+
+                    records.add(payload);
+                    readOffset += HEADER_SIZE + payload.length;
+                }
+            } finally {
+                file.close();
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Moves the checkpoint past the records read, and deletes the segments
+     * behind it.
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public synchronized void commit() throws IOException {
+        if (readSegment == checkpointSegment
+                && readOffset == checkpointOffset) {
+            return;
+        }
+
+        writeCheckpoint(readSegment, readOffset);
+        for (long segment = checkpointSegment; segment < readSegment;
+                segment++) {
+            File file = getSegmentFile(segment);
+            if (file.exists() && !file.delete()) {
+                log.error("FailedQueryJournal | Failed to delete replayed "
+                        + "segment " + file);
+            }
+        }
+
+        checkpointSegment = readSegment;
+        checkpointOffset = readOffset;
+    }
+
+    /**
+     * Goes back to reading from the checkpoint, for when the records read
+     * could not be replayed.
+     */
+    public synchronized void rewind() {
+        readSegment = checkpointSegment;
+        readOffset = checkpointOffset;
+    }
+
+    /**
+     * Check whether there are records after the checkpoint. Once the journal
+     * is closed, the active segment's file length is used instead of its
+     * write position.
+     *
+     * @return true if there are records to replay
+     */
+    public synchronized boolean hasPending() {
+        if (checkpointSegment < activeSegment) {
+            return true;
+        }
+        if (active == null) {
+            return checkpointOffset < getSegmentFile(activeSegment).length();
+        }
+
+        try {
+            return checkpointOffset < active.position();
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Get the number of bytes of records after the checkpoint.
+     *
+     * @return the pending bytes
+     */
+    public synchronized long getPendingBytes() {
+        long pending = -checkpointOffset;
+        for (long segment = checkpointSegment; segment <= activeSegment;
+                segment++) {
+            pending += getSegmentFile(segment).length();
+        }
+
+        return Math.max(0, pending);
+    }
+
+    /**
+     * Get the number of records appended since opening.
+     *
+     * @return the append count
+     */
+    public long getAppendCount() {
+        return appendCount;
+    }
+
+    /**
+     * Get the journal directory.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Forces the records to disk and closes the journal.
+     */
+    public void close() {
+        if (syncTimer != null) {
+            syncTimer.cancel();
+        }
+
+        synchronized (this) {
+            if (active == null) {
+                return;
+            }
+
+            try {
+                active.force(false);
+                active.close();
+            } catch (IOException ex) {
+                log.error("FailedQueryJournal | Failed to close "
+                        + getSegmentFile(activeSegment) + ": "
+                        + ex.getMessage());
+            }
+            active = null;
+        }
+    }
+
+    /**
+     * Reopens the active segment if an interrupted thread closed it while
+     * writing, which NIO channels do.
+     *
+     * @throws IOException if the journal is closed or cannot be reopened
+     */
+    private void ensureOpen() throws IOException {
+        if (active == null) {
+            throw new IOException("The journal is closed");
+        }
+
+        if (!active.isOpen()) {
+            log.error("FailedQueryJournal | " + getSegmentFile(activeSegment)
+                    + " was closed by an interrupted write, reopening it");
+            openActive(true);
+        }
+    }
+
+    /**
+     * Forces the active segment to disk, closes it, and opens the next.
+     *
+     * @throws IOException if the next segment cannot be opened
+     */
+    private void rotate() throws IOException {
+        active.force(false);
+        active.close();
+        activeSegment++;
+        openActive(false);
+    }
+
+    /**
+     * Opens the active segment for appending.
+     *
+     * @param recover whether to truncate it after its last whole record
+     *
+     * @throws IOException if it cannot be opened
+     */
+    @SuppressWarnings("resource")
+    private void openActive(final boolean recover) throws IOException {
+        File segment = getSegmentFile(activeSegment);
+        FileChannel channel = new RandomAccessFile(segment, "rw")
+                .getChannel();
+        long end = channel.size();
+        if (recover && end > 0) {
+            long valid = 0;
+            RandomAccessFile file = new RandomAccessFile(segment, "r");
+            try {
+                byte[] payload;
+                while (valid < end && (payload = readRecord(file, end))
+                        != null) {
+                    valid += HEADER_SIZE + payload.length;
+                }
+            } finally {
+                file.close();
+            }
+
+            if (valid < end) {
+                log.error("FailedQueryJournal | Dropping " + (end - valid)
+                        + " bytes of a torn record at the end of " + segment);
+                channel.truncate(valid);
+                channel.force(true);
+                end = valid;
+            }
+        }
+
+        channel.position(end);
+        active = channel;
+    }
+
+    /**
+     * Reads a record at the current position of a file.
+     *
+     * @param file the segment
+     * @param end the end of the valid data
+     * @return the payload, or null if the record is torn or corrupt
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private static byte[] readRecord(final RandomAccessFile file,
+            final long end) throws IOException {
+        long start = file.getFilePointer();
+        if (start + HEADER_SIZE > end) {
+            return null;
+        }
+
+        int length = file.readInt();
+        int checksum = file.readInt();
+        if (length < 0 || length > MAX_PAYLOAD
+                || start + HEADER_SIZE + length > end) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        file.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        return payload;
+    }
+
+    /**
+     * Reads the checkpoint, or starts at a segment if there is none.
+     *
+     * @param firstSegment the oldest segment
+     */
+    private void readCheckpoint(final long firstSegment) {
+        checkpointSegment = firstSegment;
+        checkpointOffset = 0;
+
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), ENCODING));
+            try {
+                String[] parts = reader.readLine().trim().split(" ");
+                long segment = Long.parseLong(parts[0]);
+                long offset = Long.parseLong(parts[1]);
+                if (segment >= firstSegment) {
+                    checkpointSegment = segment;
+                    checkpointOffset = offset;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception ex) {
+            // Replaying again is safer than skipping records
+            log.error("FailedQueryJournal | Unreadable checkpoint " + file
+                    + ", replaying from the oldest segment: " + ex);
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a new file and renames it into place, so it is
+     * never half written.
+     *
+     * @param segment segment of the first record not yet replayed
+     * @param offset offset of the first record not yet replayed
+     *
+     * @throws IOException if it cannot be written
+     */
+    private void writeCheckpoint(final long segment, final long offset)
+            throws IOException {
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write((segment + " " + offset + "\n").getBytes(ENCODING));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (!tmp.renameTo(file)) {
+            // Windows will not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to write " + file);
+            }
+        }
+    }
+
+    /**
+     * Lists the segment sequence numbers, oldest first.
+     *
+     * @return the sequence numbers
+     */
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names == null) {
+            return segments;
+        }
+
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX)
+                    && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    segments.add(Long.parseLong(name.substring(
+                            SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    log.error("FailedQueryJournal | Ignoring " + name);
+                }
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Get the file of a segment.
+     *
+     * @param segment the sequence number
+     * @return the file
+     */
+    private File getSegmentFile(final long segment) {
+        return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX,
+                segment, SEGMENT_SUFFIX));
+    }
+}
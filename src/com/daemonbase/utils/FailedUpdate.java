@@ -0,0 +1,297 @@
+package com.cellulant.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A failed update as the failsafe journal keeps it: the SQL template as it
+ * was prepared, and its parameters with their types. Replay binds the same
+ * parameters to the same template, so nothing has to be quoted into literal
+ * SQL, and updates with the same template can be replayed as one batch.</p>
+ *
+ * <p>The binary form is a zero byte, a format version, the template, the
+ * parameter count, and each parameter as a type tag and its value. SQL text
+ * never starts with a zero byte, so a record without one is a plain query
+ * journalled before this format, or moved in from FAILED_QUERIES.TXT, and
+ * decodes to a template with no parameters.</p>
+ */
+public final class FailedUpdate {
+    /**
+     * First byte of an encoded record.
+     */
+    private static final int MAGIC = 0;
+    /**
+     * The format version written.
+     */
+    private static final int VERSION = 1;
+    /**
+     * Encoding of the template and string parameters.
+     */
+    private static final Charset ENCODING = Charset.forName("UTF-8");
+    /**
+     * Type tags of the parameters.
+     */
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_INTEGER = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_STRING = 3;
+    private static final int TYPE_FLOAT = 4;
+    private static final int TYPE_DOUBLE = 5;
+    private static final int TYPE_BOOLEAN = 6;
+    private static final int TYPE_DATE = 7;
+    private static final int TYPE_TIMESTAMP = 8;
+    private static final int TYPE_DECIMAL = 9;
+    /**
+     * The SQL template.
+     */
+    private final String template;
+    /**
+     * The parameters of the template.
+     */
+    private final List<Object> params;
+
+    /**
+     * Constructor.
+     *
+     * @param template the SQL template
+     * @param params the parameters of the template, empty for a plain query
+     */
+    public FailedUpdate(final String template, final List<Object> params) {
+        this.template = template;
+        this.params = params == null ? Collections.<Object>emptyList()
+                : Collections.unmodifiableList(new ArrayList<Object>(params));
+    }
+
+    /**
+     * Get the SQL template.
+     *
+     * @return the template
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Get the parameters of the template.
+     *
+     * @return the parameters, empty for a plain query
+     */
+    public List<Object> getParams() {
+        return params;
+    }
+
+    /**
+     * Check whether this is a plain query with no parameters to bind.
+     *
+     * @return true if there are no parameters
+     */
+    public boolean isPlainQuery() {
+        return params.isEmpty();
+    }
+
+    /**
+     * Encodes the update. Parameters of other types are kept as their
+     * string form, which is how they are bound.
+     *
+     * @return the binary form
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                64 + template.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            writeString(out, template);
+            out.writeInt(params.size());
+            for (Object param : params) {
+                writeParam(out, param);
+            }
+            out.flush();
+        } catch (IOException ex) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes an update.
+     *
+     * @param record the binary form, or the UTF-8 text of a plain query
+     * @return the update
+     *
+     * @throws IOException if the record is not a valid update
+     */
+    public static FailedUpdate decode(final byte[] record) throws IOException {
+        if (record.length == 0 || record[0] != MAGIC) {
+            return new FailedUpdate(new String(record, ENCODING), null);
+        }
+
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(record));
+        in.readByte();
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown failed update format " + version);
+        }
+
+        String template = readString(in);
+        int count = in.readInt();
+        if (count < 0 || count > record.length) {
+            throw new IOException("Invalid parameter count " + count);
+        }
+
+        List<Object> params = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            params.add(readParam(in));
+        }
+
+        return new FailedUpdate(template, params);
+    }
+
+    /**
+     * The update with its parameters in place, for logging.
+     *
+     * @return the template and parameters
+     */
+    @Override
+    public String toString() {
+        return params.isEmpty() ? template : template + " " + params;
+    }
+
+    /**
+     * Writes a parameter with its type tag.
+     *
+     * @param out the output
+     * @param param the parameter
+     *
+     * @throws IOException on error
+     */
+    private static void writeParam(final DataOutputStream out,
+            final Object param) throws IOException {
+        if (param == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (param instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) param);
+        } else if (param instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) param);
+        } else if (param instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) param);
+        } else if (param instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) param);
+        } else if (param instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) param);
+        } else if (param instanceof Timestamp) {
+            out.writeByte(TYPE_TIMESTAMP);
+            out.writeLong(((Timestamp) param).getTime());
+            out.writeInt(((Timestamp) param).getNanos());
+        } else if (param instanceof java.sql.Date) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((java.sql.Date) param).getTime());
+        } else if (param instanceof java.util.Date) {
+            // Bound with its time of day, as a timestamp
+            Timestamp timestamp = new Timestamp(
+                    ((java.util.Date) param).getTime());
+            out.writeByte(TYPE_TIMESTAMP);
+            out.writeLong(timestamp.getTime());
+            out.writeInt(timestamp.getNanos());
+        } else if (param instanceof BigDecimal) {
+            out.writeByte(TYPE_DECIMAL);
+            writeString(out, param.toString());
+        } else {
+            out.writeByte(TYPE_STRING);
+            writeString(out, param.toString());
+        }
+    }
+
+    /**
+     * Reads a parameter written by {@link #writeParam}.
+     *
+     * @param in the input
+     * @return the parameter
+     *
+     * @throws IOException if the type is unknown
+     */
+    private static Object readParam(final DataInputStream in)
+            throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INTEGER:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_TIMESTAMP:
+                Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case TYPE_DATE:
+                return new java.sql.Date(in.readLong());
+            case TYPE_DECIMAL:
+                return new BigDecimal(readString(in));
+            case TYPE_STRING:
+                return readString(in);
+            default:
+                throw new IOException("Unknown parameter type " + type);
+        }
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string, which unlike writeUTF may be
+     * longer than 64KB.
+     *
+     * @param out the output
+     * @param value the string
+     *
+     * @throws IOException on error
+     */
+    private static void writeString(final DataOutputStream out,
+            final String value) throws IOException {
+        byte[] bytes = value.getBytes(ENCODING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     *
+     * @param in the input
+     * @return the string
+     *
+     * @throws IOException if the length is invalid
+     */
+    private static String readString(final DataInputStream in)
+            throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, ENCODING);
+    }
+}
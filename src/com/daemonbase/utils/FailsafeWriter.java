@@ -0,0 +1,353 @@
+package com.cellulant.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Writes the failed updates to the {@link FailedQueryJournal} on a thread
+ * of its own, so a worker whose update failed hands the record over and
+ * moves on instead of writing to disk inside the failing request.</p>
+ *
+ * <p>Records wait in a bounded queue. The writer takes whatever has
+ * gathered within JOURNAL_SYNC_INTERVAL milliseconds of the first, appends
+ * it in one write and forces it to disk once, then completes the future of
+ * each record. If the queue is full, the caller writes its record itself, so
+ * no record is ever dropped. If the journal cannot be written, the writer
+ * keeps the batch and tries again.</p>
+ */
+public final class FailsafeWriter {
+    /**
+     * Most records appended in one write.
+     */
+    private static final int MAX_BATCH = 1000;
+    /**
+     * Wait before writing again after the journal failed, in milliseconds.
+     */
+    private static final long RETRY_MILLIS = 1000;
+    /**
+     * How often an idle writer checks whether it was stopped, in
+     * milliseconds. The writer is never interrupted, as that would close the
+     * journal's channel.
+     */
+    private static final long IDLE_CHECK_MILLIS = 100;
+    /**
+     * The journal written to.
+     */
+    private final FailedQueryJournal journal;
+    /**
+     * Longest a record waits for others to share its write, in milliseconds.
+     */
+    private final long flushInterval;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+    /**
+     * The records waiting to be written.
+     */
+    private final BlockingQueue<PendingRecord> queue;
+    /**
+     * The writer thread, null until started.
+     */
+    private Thread writer;
+    /**
+     * Whether the writer should exit once the queue is empty.
+     */
+    private volatile boolean stopped;
+    /**
+     * Number of records made durable.
+     */
+    private final AtomicLong writtenCount = new AtomicLong();
+    /**
+     * Number of writes, each forced to disk once.
+     */
+    private volatile long batchCount;
+    /**
+     * Number of records written by their caller because the queue was full.
+     */
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param journal the journal written to
+     * @param capacity most records that may wait to be written
+     * @param flushInterval longest a record waits for others to share its
+     *                      write, in milliseconds
+     * @param log the logging class
+     */
+    public FailsafeWriter(final FailedQueryJournal journal, final int capacity,
+            final long flushInterval, final Logging log) {
+        this.journal = journal;
+        this.queue = new ArrayBlockingQueue<PendingRecord>(
+                Math.max(1, capacity));
+        this.flushInterval = Math.max(0, flushInterval);
+        this.log = log;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public synchronized void start() {
+        if (writer != null || stopped) {
+            return;
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "FailsafeWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Hands a record over to be written. If the queue is full, or the writer
+     * has stopped, the record is written before returning.
+     *
+     * @param record the record
+     * @return a future completed once the record is on disk, or failed with
+     *         the IOException if it could not be written
+     */
+    public Future<Void> write(final byte[] record) {
+        PendingRecord pending = new PendingRecord(record);
+        if (!stopped && queue.offer(pending)) {
+            if (!stopped || !queue.remove(pending)) {
+                return pending.future;
+            }
+            // Stopped meanwhile, so the writer may not see it
+        } else if (!stopped) {
+            overflowCount.incrementAndGet();
+        }
+
+        try {
+            journal.append(record);
+            journal.sync();
+            writtenCount.incrementAndGet();
+            pending.future.set(null);
+        } catch (IOException ex) {
+            pending.future.setException(ex);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Writes the records still waiting and stops the writer thread.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            stopped = true;
+            thread = writer;
+        }
+
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Only left if the writer never started or gave up on the journal
+        List<PendingRecord> left = new ArrayList<PendingRecord>();
+        queue.drainTo(left);
+        if (!left.isEmpty() && !writeBatch(left)) {
+            failBatch(left);
+        }
+    }
+
+    /**
+     * Get the number of records waiting to be written.
+     *
+     * @return the queue size
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of records made durable.
+     *
+     * @return the written count
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Get the number of writes, each forced to disk once.
+     *
+     * @return the batch count
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Get the number of records written by their caller because the queue
+     * was full.
+     *
+     * @return the overflow count
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Writes batches until stopped and the queue is empty.
+     */
+    private void runWriter() {
+        List<PendingRecord> batch = new ArrayList<PendingRecord>();
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    if (stopped) {
+                        queue.drainTo(batch, MAX_BATCH);
+                        if (batch.isEmpty()) {
+                            return;
+                        }
+                    } else {
+                        PendingRecord first = queue.poll(IDLE_CHECK_MILLIS,
+                                TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.add(first);
+                        gather(batch);
+                    }
+                }
+
+                if (writeBatch(batch)) {
+                    batch.clear();
+                } else if (!stopped) {
+                    Thread.sleep(RETRY_MILLIS);
+                } else {
+                    failBatch(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException ex) {
+                // Not expected, write what is left and exit
+                stopped = true;
+            }
+        }
+    }
+
+    /**
+     * Adds the records that arrive within the flush interval to a batch.
+     *
+     * @param batch the batch, holding its first record
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void gather(final List<PendingRecord> batch)
+            throws InterruptedException {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        while (batch.size() < MAX_BATCH) {
+            queue.drainTo(batch, MAX_BATCH - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= MAX_BATCH || remaining <= 0 || stopped) {
+                return;
+            }
+
+            PendingRecord next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Appends a batch in one write, forces it to disk, and completes its
+     * futures.
+     *
+     * @param batch the batch
+     * @return false if the journal could not be written
+     */
+    private boolean writeBatch(final List<PendingRecord> batch) {
+        List<byte[]> records = new ArrayList<byte[]>(batch.size());
+        for (PendingRecord pending : batch) {
+            records.add(pending.record);
+        }
+
+        try {
+            journal.append(records);
+            journal.sync();
+        } catch (IOException ex) {
+            log.error("FailsafeWriter | Failed to write " + batch.size()
+                    + " failed update records, retrying: " + ex.getMessage(),
+                    ex);
+            return false;
+        }
+
+        writtenCount.addAndGet(batch.size());
+        batchCount++;
+        for (PendingRecord pending : batch) {
+            pending.future.set(null);
+        }
+        return true;
+    }
+
+    /**
+     * Fails the futures of a batch that could not be written.
+     *
+     * @param batch the batch
+     */
+    private void failBatch(final List<PendingRecord> batch) {
+        IOException cause = new IOException("The failed update journal "
+                + "could not be written before shutdown");
+        for (PendingRecord pending : batch) {
+            log.error("FailsafeWriter | Lost failed update record: "
+                    + describe(pending.record));
+            pending.future.setException(cause);
+        }
+    }
+
+    /**
+     * Describes a record for the log.
+     *
+     * @param record the record
+     * @return the failed update it holds
+     */
+    private static String describe(final byte[] record) {
+        try {
+            return FailedUpdate.decode(record).toString();
+        } catch (IOException ex) {
+            return record.length + " unreadable bytes";
+        }
+    }
+
+    /**
+     * A record waiting to be written.
+     */
+    private static final class PendingRecord {
+        /**
+         * The record.
+         */
+        private final byte[] record;
+        /**
+         * Completed once the record is on disk.
+         */
+        private final SettableFuture<Void> future =
+                new SettableFuture<Void>();
+
+        /**
+         * Constructor.
+         *
+         * @param record the record
+         */
+        PendingRecord(final byte[] record) {
+            this.record = record;
+        }
+    }
+}
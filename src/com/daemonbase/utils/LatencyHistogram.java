@@ -0,0 +1,162 @@
+package com.cellulant.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock free histogram of latencies in microseconds, cheap enough to
+ * record every task.</p>
+ *
+ * <p>Values below 64 have a bucket each. Above that, every power of two is
+ * split into 32 buckets, so a percentile is reported to within about 3% of
+ * the recorded value. Values from one microsecond to about twelve days fit in
+ * a fixed array of 1,152 counters.</p>
+ */
+public final class LatencyHistogram {
+    /**
+     * Number of buckets per power of two, as a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Largest value that can be recorded, larger values are clamped.
+     */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    /**
+     * Number of recorded values per bucket.
+     */
+    private final AtomicLongArray counts =
+            new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    /**
+     * Number of recorded values.
+     */
+    private final AtomicLong count = new AtomicLong();
+    /**
+     * Sum of the recorded values.
+     */
+    private final AtomicLong sum = new AtomicLong();
+    /**
+     * Largest recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param micros the latency in microseconds
+     */
+    public void record(final long micros) {
+        long value = Math.max(0, Math.min(MAX_VALUE, micros));
+
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the largest recorded value.
+     *
+     * @return the maximum in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     *
+     * @return the mean in microseconds, 0 if nothing was recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values
+     * fall.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the percentile in microseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(final double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(n * Math.min(100, percentile) / 100.0);
+        rank = Math.max(1, rank);
+
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Clears all the recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Get the bucket a value falls in.
+     *
+     * @param value the value
+     * @return the bucket index
+     */
+    private static int indexOf(final long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the largest value that falls in a bucket.
+     *
+     * @param index the bucket index
+     * @return the upper bound of the bucket
+     */
+    private static long upperBoundOf(final int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index - (long) shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,182 @@
+package com.cellulant.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} completed by whoever holds it, rather than by running a
+ * task. The first call to {@link #set}, {@link #setException} or
+ * {@link #cancel} wins, and later calls are ignored. Listeners added with
+ * {@link #addListener} run once it is done, on the thread that completed it.
+ *
+ * @param <V> the result type
+ */
+public class SettableFuture<V> implements Future<V> {
+    /**
+     * Released once the future is done.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+    /**
+     * The result, if completed normally.
+     */
+    private V value;
+    /**
+     * The failure, if completed exceptionally.
+     */
+    private Throwable failure;
+    /**
+     * Whether the future was cancelled.
+     */
+    private boolean cancelled;
+    /**
+     * Whether the future has been completed.
+     */
+    private boolean completed;
+    /**
+     * Run once the future is done; null after that.
+     */
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+    /**
+     * Creates a future that is already completed.
+     *
+     * @param <V> the result type
+     * @param value the result
+     * @return the completed future
+     */
+    public static <V> SettableFuture<V> completed(final V value) {
+        SettableFuture<V> future = new SettableFuture<V>();
+        future.set(value);
+        return future;
+    }
+
+    /**
+     * Completes the future with a result.
+     *
+     * @param result the result
+     * @return true if this call completed the future
+     */
+    public boolean set(final V result) {
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            value = result;
+        }
+        done.countDown();
+        runListeners();
+        return true;
+    }
+
+    /**
+     * Completes the future with a failure.
+     *
+     * @param cause the failure
+     * @return true if this call completed the future
+     */
+    public boolean setException(final Throwable cause) {
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            failure = cause;
+        }
+        done.countDown();
+        runListeners();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            cancelled = true;
+        }
+        done.countDown();
+        runListeners();
+        return true;
+    }
+
+    /**
+     * Runs a listener once the future is done, or now if it already is.
+     *
+     * @param listener the listener
+     */
+    public void addListener(final Runnable listener) {
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Runs the listeners added before the future was completed.
+     */
+    private void runListeners() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = listeners;
+            listeners = null;
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Not completed within " + timeout + " "
+                    + unit);
+        }
+        return getResult();
+    }
+
+    /**
+     * Get the outcome of a completed future.
+     *
+     * @return the result
+     *
+     * @throws ExecutionException if the future failed
+     */
+    private synchronized V getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,247 @@
+package com.cellulant.utils;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>A hashed timer wheel for large numbers of timeouts that are nearly always
+ * cancelled before they fire, such as task deadlines. Scheduling and
+ * cancelling are O(1) and lock free, and a single ticker thread serves every
+ * timeout, instead of one timer per task.</p>
+ *
+ * <p>Timeouts fire on the first tick at or after their deadline, so the tick
+ * length is the precision. Actions run on the ticker thread and must be
+ * short.</p>
+ */
+public final class TimerWheel {
+    /**
+     * Length of a tick, in nanoseconds.
+     */
+    private final long tickNanos;
+    /**
+     * The timeouts of each slot, only touched by the ticker thread.
+     */
+    private final LinkedList<Timeout>[] wheel;
+    /**
+     * Timeouts scheduled since the last tick.
+     */
+    private final Queue<Timeout> scheduled =
+            new ConcurrentLinkedQueue<Timeout>();
+    /**
+     * When the wheel started, from System.nanoTime().
+     */
+    private final long startTime;
+    /**
+     * The thread that advances the wheel.
+     */
+    private final Thread ticker;
+    /**
+     * Whether the wheel has been stopped.
+     */
+    private volatile boolean stopped;
+    /**
+     * Number of ticks processed so far.
+     */
+    private long tick;
+    /**
+     * Logging class instance.
+     */
+    private final Logging log;
+
+    /**
+     * Creates and starts a timer wheel.
+     *
+     * @param name the name of the ticker thread
+     * @param tickMillis the length of a tick, in milliseconds
+     * @param slots the number of slots in the wheel
+     * @param log the logging class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(final String name, final long tickMillis,
+            final int slots, final Logging log) {
+        if (tickMillis <= 0 || slots <= 0) {
+            throw new IllegalArgumentException("Invalid timer wheel: tick "
+                    + tickMillis + " ms, " + slots + " slots");
+        }
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.log = log;
+        this.wheel = new LinkedList[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new LinkedList<Timeout>();
+        }
+
+        startTime = System.nanoTime();
+        ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTicker();
+            }
+        }, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Schedules an action to run once the delay has elapsed.
+     *
+     * @param action the action to run on the ticker thread
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return a handle to cancel the timeout
+     *
+     * @throws IllegalStateException if the wheel has been stopped
+     */
+    public Timeout schedule(final Runnable action, final long delay,
+            final TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("Timer wheel stopped");
+        }
+
+        long deadline = System.nanoTime() - startTime
+                + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(action, deadline);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the ticker thread. Pending timeouts never fire.
+     */
+    public void stop() {
+        stopped = true;
+        ticker.interrupt();
+    }
+
+    /**
+     * Advances the wheel one slot per tick until stopped.
+     */
+    private void runTicker() {
+        while (!stopped) {
+            long sleepNanos = (tick + 1) * tickNanos
+                    - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ex) {
+                    if (stopped) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            transferScheduled();
+            expire(wheel[(int) (tick % wheel.length)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves the newly scheduled timeouts into their slots.
+     */
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            // Anything already due goes in the current slot
+            long due = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due % wheel.length)].add(timeout);
+        }
+    }
+
+    /**
+     * Fires the due timeouts of a slot and drops the cancelled ones.
+     *
+     * @param slot the slot
+     */
+    private void expire(final LinkedList<Timeout> slot) {
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.isCancelled()) {
+                it.remove();
+            } else if (timeout.rounds <= 0) {
+                it.remove();
+                timeout.fire();
+            } else {
+                timeout.rounds--;
+            }
+        }
+    }
+
+    /**
+     * A scheduled action that has not fired yet.
+     */
+    public final class Timeout {
+        /**
+         * The action to run.
+         */
+        private final Runnable action;
+        /**
+         * When the timeout is due, relative to the start of the wheel.
+         */
+        private final long deadline;
+        /**
+         * Set once the timeout fires or is cancelled.
+         */
+        private final AtomicBoolean done = new AtomicBoolean();
+        /**
+         * Full turns of the wheel left before the timeout is due.
+         */
+        private long rounds;
+
+        /**
+         * Constructor.
+         *
+         * @param action the action to run
+         * @param deadline when the timeout is due
+         */
+        Timeout(final Runnable action, final long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return false if it already fired or was cancelled
+         */
+        public boolean cancel() {
+            return done.compareAndSet(false, true);
+        }
+
+        /**
+         * Check whether the timeout was cancelled or fired.
+         *
+         * @return true if the timeout will not fire any more
+         */
+        private boolean isCancelled() {
+            return done.get();
+        }
+
+        /**
+         * Runs the action unless the timeout was cancelled.
+         */
+        private void fire() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                action.run();
+            } catch (RuntimeException ex) {
+                log.error("TimerWheel | Timeout action failed: "
+                        + ex.getMessage(), ex);
+            }
+        }
+    }
+}